@@ -0,0 +1,219 @@
+package cn.sspku.zx.dtm.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.server.quorum.QuorumPeerConfig;
+import org.apache.zookeeper.server.quorum.QuorumPeerMain;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ZooKeeper running inside the benchmark process, either a standalone server or an ensemble of several peers.
+ *
+ *      standalone : one server on basePort;
+ *      ensemble   : peer i serves clients on basePort + i, talks to the quorum on basePort + 100 + i
+ *                   and elects the leader on basePort + 200 + i.
+ *
+ * data lives in temporary directories removed by stop().
+ */
+public class EmbeddedZooKeeper {
+
+    private static final Logger LOG              = LoggerFactory.getLogger(EmbeddedZooKeeper.class);
+
+    private static final int    TICK_TIME        = 2000;
+    private static final int    MAX_CONNECTIONS  = 1000;
+    private static final long   START_TIMEOUT_MS = 30000;
+
+    /**
+     * one peer of an ensemble, runFromConfig blocks until the peer is shut down
+     */
+    private static class Peer extends QuorumPeerMain implements Runnable {
+
+        private final QuorumPeerConfig config;
+
+        Peer(QuorumPeerConfig config) {
+            this.config = config;
+        }
+
+        @Override
+        public void run() {
+
+            try {
+
+                runFromConfig(config);
+
+            } catch (IOException e) {
+
+                LOG.error("Peer on " + config.getClientPortAddress() + " stopped.", e);
+            }
+        }
+
+        void shutdown() {
+
+            if (quorumPeer != null)
+                quorumPeer.shutdown();
+        }
+    }
+
+    private final int         basePort;
+    private final int         size;
+
+    private File              dataDir;
+    private ServerCnxnFactory factory;
+    private Peer[]            peers;
+
+    /**
+     * a standalone server
+     */
+    public EmbeddedZooKeeper(int port) {
+        this(port, 1);
+    }
+
+    /**
+     * @param basePort
+     * @param size number of servers, 1 for a standalone server
+     */
+    public EmbeddedZooKeeper(int basePort, int size) {
+
+        if (size <= 0)
+            throw new IllegalArgumentException("size must be positive: " + size);
+        this.basePort = basePort;
+        this.size = size;
+    }
+
+    /**
+     * start the servers and wait until they serve clients
+     */
+    public void start() throws Exception {
+
+        dataDir = File.createTempFile("dtm-zk-", "");
+        if (!dataDir.delete() || !dataDir.mkdirs())
+            throw new IOException("Failed to create " + dataDir);
+
+        if (size == 1) {
+            factory = ServerCnxnFactory.createFactory(new InetSocketAddress(basePort),
+                MAX_CONNECTIONS);
+            factory.startup(new ZooKeeperServer(dataDir, dataDir, TICK_TIME));
+        } else {
+            peers = new Peer[size];
+            for (int i = 0; i < size; i++) {
+                peers[i] = new Peer(configOf(i));
+                Thread thread = new Thread(peers[i], "dtm-zk-peer-" + (i + 1));
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        awaitServing();
+    }
+
+    private QuorumPeerConfig configOf(int i) throws Exception {
+
+        File peerDir = new File(dataDir, "peer-" + (i + 1));
+        if (!peerDir.mkdirs())
+            throw new IOException("Failed to create " + peerDir);
+
+        Writer myid = new FileWriter(new File(peerDir, "myid"));
+        try {
+            myid.write(String.valueOf(i + 1));
+        } finally {
+            myid.close();
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty("tickTime", String.valueOf(TICK_TIME));
+        properties.setProperty("initLimit", "10");
+        properties.setProperty("syncLimit", "5");
+        properties.setProperty("dataDir", peerDir.getAbsolutePath());
+        properties.setProperty("clientPort", String.valueOf(basePort + i));
+        properties.setProperty("maxClientCnxns", String.valueOf(MAX_CONNECTIONS));
+        for (int j = 0; j < size; j++)
+            properties.setProperty("server." + (j + 1), "localhost:" + (basePort + 100 + j) + ":"
+                                                        + (basePort + 200 + j));
+
+        QuorumPeerConfig config = new QuorumPeerConfig();
+        config.parseProperties(properties);
+        return config;
+    }
+
+    /**
+     * a session can only be established once a quorum is formed
+     */
+    private void awaitServing() throws Exception {
+
+        final CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper zk = new ZooKeeper(getConnectString(), TICK_TIME * 5, new Watcher() {
+
+            @Override
+            public void process(WatchedEvent event) {
+                if (event.getState() == KeeperState.SyncConnected)
+                    connected.countDown();
+            }
+        });
+        try {
+
+            if (!connected.await(START_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                throw new IllegalStateException("ZooKeeper on " + getConnectString()
+                                                + " did not start in time.");
+            zk.exists("/", false);
+
+        } finally {
+
+            zk.close();
+        }
+    }
+
+    public void stop() {
+
+        if (factory != null)
+            factory.shutdown();
+        factory = null;
+
+        if (peers != null)
+            for (Peer peer : peers)
+                peer.shutdown();
+        peers = null;
+
+        delete(dataDir);
+    }
+
+    private static void delete(File file) {
+
+        if (file == null)
+            return;
+
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    /**
+     * @return connect string listing every server
+     */
+    public String getConnectString() {
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size; i++)
+            sb.append(i == 0 ? "" : ",").append("localhost:").append(basePort + i);
+        return sb.toString();
+    }
+
+    public int getSize() {
+        return size;
+    }
+}
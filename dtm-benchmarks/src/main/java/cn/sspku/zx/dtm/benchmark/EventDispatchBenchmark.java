@@ -0,0 +1,91 @@
+package cn.sspku.zx.dtm.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.data.Stat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import cn.sspku.zx.dtm.example.zk.twopc.XPaths;
+import cn.sspku.zx.dtm.example.zk.twopc.XStripedDispatcher;
+
+/**
+ * handing ZK events of many transactions over to the stripes of XStripedDispatcher, as the ZK event thread does.
+ *
+ * each invocation dispatches BATCH events of distinct transactions and waits until all of them are handled,
+ * every event burns some CPU to stand for the work of a callback; 'stripes = 0' handles the events inline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventDispatchBenchmark {
+
+    private static final int   BATCH = 1024;
+
+    @Param({ "0", "1", "4", "16" })
+    private int                stripes;
+
+    /** CPU tokens burnt by the callback of each event */
+    @Param({ "100", "2000" })
+    private int                work;
+
+    private XStripedDispatcher dispatcher;
+    private DataCallback       callback;
+    private String[]           paths;
+    private volatile CountDownLatch pending;
+
+    @Setup
+    public void setUp() {
+
+        dispatcher = new XStripedDispatcher("dx-benchmark");
+        if (stripes > 0) {
+            dispatcher.setStripeCount(stripes);
+            dispatcher.start();
+        }
+
+        callback = dispatcher.data(new DataCallback() {
+
+            @Override
+            public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+                Blackhole.consumeCPU(work);
+                pending.countDown();
+            }
+        });
+
+        paths = new String[BATCH];
+        for (int i = 0; i < BATCH; i++)
+            paths[i] = XPaths.participantNode(XPaths.xid(i % 4, i), 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void dispatch() throws InterruptedException {
+
+        pending = new CountDownLatch(BATCH);
+        for (String path : paths)
+            callback.processResult(0, path, null, null, null);
+        pending.await();
+    }
+}
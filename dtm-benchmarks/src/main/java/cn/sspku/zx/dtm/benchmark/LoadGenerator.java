@@ -0,0 +1,493 @@
+package cn.sspku.zx.dtm.benchmark;
+
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import cn.sspku.zx.dtm.example.zk.twopc.DXCoordinator;
+import cn.sspku.zx.dtm.example.zk.twopc.DXParticipant;
+import cn.sspku.zx.dtm.example.zk.twopc.XFutures;
+import cn.sspku.zx.dtm.example.zk.twopc.XHistogram;
+import cn.sspku.zx.dtm.example.zk.twopc.XMetrics;
+import cn.sspku.zx.dtm.example.zk.twopc.XMetrics.ZkOp;
+import cn.sspku.zx.dtm.example.zk.twopc.XOutcome;
+import cn.sspku.zx.dtm.example.zk.twopc.XMemoryStore;
+import cn.sspku.zx.dtm.example.zk.twopc.XShards;
+import cn.sspku.zx.dtm.example.zk.twopc.XStore;
+import cn.sspku.zx.dtm.example.zk.twopc.XZkStore;
+
+/**
+ * drives two-phrase-commit traffic through coordinators and participants against an embedded ZooKeeper,
+ * or an XMemoryStore with store=memory, to measure the capacity of a given setup.
+ *
+ *      closed loop : 'concurrency' clients each run one transaction after another;
+ *      open loop   : transactions start at 'rate' per second whether or not earlier ones finished,
+ *                    latency counts from the scheduled start, so a backlog shows up in it;
+ *
+ * each transaction is begun by the next coordinator and joined by 'participantsPerTx' participants in turn.
+ * a branch fails its preparation with a probability chosen so that about 'abortRate' of all transactions abort.
+ *
+ * the options are given as key=value arguments, see Options for the keys and their defaults, e.g.
+ *
+ *      java -cp benchmarks.jar cn.sspku.zx.dtm.benchmark.LoadGenerator zkNodes=3 mode=open rate=500 participantsPerTx=8
+ *
+ * the report gives tx/s, p50/p99/p999 latency and ZK operations per transaction of the measured period;
+ * tx/s and ZK operations count the transactions finished within the period, latency every transaction due in it.
+ */
+public final class LoadGenerator {
+
+    /**
+     * the options of a run
+     */
+    static class Options {
+
+        /** 'zk' for an embedded ZooKeeper, 'memory' for an XMemoryStore */
+        String  store            = "zk";
+        /** 1 for a standalone server, 3 for an ensemble */
+        int     zkNodes          = 1;
+        int     zkPort           = 21810;
+        int     coordinators     = 1;
+        int     participants     = 4;
+        /** 0 means every participant joins every transaction */
+        int     participantsPerTx;
+        /** 'closed' or 'open' */
+        String  mode             = "closed";
+        int     concurrency      = 16;
+        int     rate             = 200;
+        /** open loop only, transactions due while this many are in flight are dropped */
+        int     maxInFlight      = 5000;
+        int     warmupSeconds    = 5;
+        int     durationSeconds  = 30;
+        double  abortRate;
+        long    prepareMillis;
+        long    commitMillis;
+        boolean decisionNodeMode;
+        long    timeoutMillis    = 30000;
+
+        static Options parse(String[] args) {
+
+            Properties properties = new Properties();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (eq <= 0)
+                    throw new IllegalArgumentException("Expect key=value: " + arg);
+                properties.setProperty(arg.substring(0, eq), arg.substring(eq + 1));
+            }
+
+            Options options = new Options();
+            options.store = properties.getProperty("store", options.store);
+            options.zkNodes = intOf(properties, "zkNodes", options.zkNodes);
+            options.zkPort = intOf(properties, "zkPort", options.zkPort);
+            options.coordinators = intOf(properties, "coordinators", options.coordinators);
+            options.participants = intOf(properties, "participants", options.participants);
+            options.participantsPerTx = intOf(properties, "participantsPerTx",
+                options.participantsPerTx);
+            options.mode = properties.getProperty("mode", options.mode);
+            options.concurrency = intOf(properties, "concurrency", options.concurrency);
+            options.rate = intOf(properties, "rate", options.rate);
+            options.maxInFlight = intOf(properties, "maxInFlight", options.maxInFlight);
+            options.warmupSeconds = intOf(properties, "warmupSeconds", options.warmupSeconds);
+            options.durationSeconds = intOf(properties, "durationSeconds", options.durationSeconds);
+            options.abortRate = Double.parseDouble(properties.getProperty("abortRate", "0"));
+            options.prepareMillis = intOf(properties, "prepareMillis", 0);
+            options.commitMillis = intOf(properties, "commitMillis", 0);
+            options.decisionNodeMode = Boolean.parseBoolean(properties.getProperty(
+                "decisionNodeMode", "false"));
+            options.timeoutMillis = intOf(properties, "timeoutMillis", (int) options.timeoutMillis);
+
+            if (!"zk".equals(options.store) && !"memory".equals(options.store))
+                throw new IllegalArgumentException("store must be zk or memory: " + options.store);
+            if (!"closed".equals(options.mode) && !"open".equals(options.mode))
+                throw new IllegalArgumentException("mode must be closed or open: " + options.mode);
+            if (options.participantsPerTx < 0 || options.participantsPerTx > options.participants)
+                throw new IllegalArgumentException("participantsPerTx must be within 0.."
+                                                   + options.participants);
+            if (options.participantsPerTx == 0)
+                options.participantsPerTx = options.participants;
+            if (options.abortRate < 0 || options.abortRate >= 1)
+                throw new IllegalArgumentException("abortRate must be within [0, 1): "
+                                                   + options.abortRate);
+            return options;
+        }
+
+        private static int intOf(Properties properties, String key, int defaultValue) {
+
+            String value = properties.getProperty(key);
+            return value == null ? defaultValue : Integer.parseInt(value);
+        }
+
+        @Override
+        public String toString() {
+            return ("memory".equals(store) ? "store=memory" : "zkNodes=" + zkNodes)
+                   + ", coordinators=" + coordinators + ", participants="
+                   + participants + ", participantsPerTx=" + participantsPerTx + ", mode=" + mode
+                   + ("open".equals(mode) ? ", rate=" + rate : ", concurrency=" + concurrency)
+                   + ", abortRate=" + abortRate + ", prepareMillis=" + prepareMillis
+                   + ", commitMillis=" + commitMillis + ", decisionNodeMode=" + decisionNodeMode;
+        }
+    }
+
+    /**
+     * a participant whose business callbacks take time and sometimes fail
+     */
+    private static class LoadParticipant extends DXParticipant {
+
+        private final long   prepareMillis;
+        private final long   commitMillis;
+        private final double failRate;
+
+        LoadParticipant(long prepareMillis, long commitMillis, double failRate) {
+            this.prepareMillis = prepareMillis;
+            this.commitMillis = commitMillis;
+            this.failRate = failRate;
+        }
+
+        @Override
+        protected void doBusinessPrepare() {
+
+            pause(prepareMillis);
+            if (failRate > 0 && ThreadLocalRandom.current().nextDouble() < failRate)
+                throw new IllegalStateException("Injected failure.");
+        }
+
+        @Override
+        protected void doBusinessCommit() {
+            pause(commitMillis);
+        }
+
+        private static void pause(long millis) {
+
+            if (millis <= 0)
+                return;
+            try {
+
+                Thread.sleep(millis);
+
+            } catch (InterruptedException e) {
+
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * results counted over one period, replaced when the warm-up is over
+     */
+    private static class Window {
+
+        final long       startNanos = System.nanoTime();
+        /** set once the window is over, completions after it are left out of the counts */
+        volatile long    endNanos   = Long.MAX_VALUE;
+        final long[]     zkOpsAtStart;
+        final XHistogram latency    = new XHistogram();
+        final AtomicLong committed  = new AtomicLong();
+        final AtomicLong aborted    = new AtomicLong();
+        final AtomicLong failed     = new AtomicLong();
+        final AtomicLong dropped    = new AtomicLong();
+
+        Window(long[] zkOpsAtStart) {
+            this.zkOpsAtStart = zkOpsAtStart;
+        }
+    }
+
+    private final Options         options;
+    private final XMetrics        metrics  = new XMetrics();
+    private final AtomicLong      sequence = new AtomicLong();
+    private final AtomicInteger   inFlight = new AtomicInteger();
+
+    private EmbeddedZooKeeper     zooKeeper;
+    private DXCoordinator[]       coordinators;
+    private DXParticipant[]       participants;
+
+    private volatile Window       window;
+    private volatile boolean      running;
+
+    LoadGenerator(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Options options = Options.parse(args);
+        LoadGenerator generator = new LoadGenerator(options);
+        System.out.println("Load: " + options);
+        try {
+
+            generator.start();
+            generator.run();
+
+        } finally {
+
+            generator.stop();
+        }
+        System.exit(0);
+    }
+
+    void start() throws Exception {
+
+        XStore.Provider stores;
+        XShards shards;
+        if ("memory".equals(options.store)) {
+            stores = new XMemoryStore();
+            shards = XShards.DEFAULT;
+        } else {
+            zooKeeper = new EmbeddedZooKeeper(options.zkPort, options.zkNodes);
+            zooKeeper.start();
+            stores = XZkStore.DEFAULT_PROVIDER;
+            shards = new XShards(new XShards.Shard(zooKeeper.getConnectString(), null));
+        }
+
+        coordinators = new DXCoordinator[options.coordinators];
+        for (int i = 0; i < coordinators.length; i++) {
+            coordinators[i] = new DXCoordinator();
+            coordinators[i].setShards(shards);
+            coordinators[i].setStoreProvider(stores);
+            coordinators[i].setMetrics(metrics);
+            coordinators[i].setCoordinatorId("load-coordinator-" + i);
+            coordinators[i].setDecisionNodeMode(options.decisionNodeMode);
+            coordinators[i].start();
+        }
+
+        //P(transaction aborts) = 1 - (1 - P(branch fails)) ^ participantsPerTx
+        double failRate = 1 - Math.pow(1 - options.abortRate, 1.0 / options.participantsPerTx);
+        participants = new DXParticipant[options.participants];
+        for (int i = 0; i < participants.length; i++) {
+            participants[i] = new LoadParticipant(options.prepareMillis, options.commitMillis,
+                failRate);
+            participants[i].setShards(shards);
+            participants[i].setStoreProvider(stores);
+            participants[i].setMetrics(metrics);
+            participants[i].start();
+        }
+    }
+
+    void stop() {
+
+        running = false;
+        if (participants != null)
+            for (DXParticipant participant : participants)
+                if (participant != null)
+                    participant.destroy();
+        if (coordinators != null)
+            for (DXCoordinator coordinator : coordinators)
+                if (coordinator != null)
+                    coordinator.destroy();
+        if (zooKeeper != null)
+            zooKeeper.stop();
+    }
+
+    /**
+     * warm up, measure, then wait for the transactions still in flight
+     */
+    void run() throws Exception {
+
+        running = true;
+        window = new Window(zkOps());
+
+        Thread[] clients = "open".equals(options.mode) ? new Thread[] { openLoop() } : closedLoop();
+        for (Thread client : clients)
+            client.start();
+
+        sleepReporting(options.warmupSeconds, "warm-up");
+        window = new Window(zkOps());
+        sleepReporting(options.durationSeconds, "measure");
+        Window measured = window;
+        long[] zkOpsAtEnd = zkOps();
+        measured.endNanos = System.nanoTime();
+        long measuredNanos = measured.endNanos - measured.startNanos;
+
+        running = false;
+        for (Thread client : clients)
+            client.join(options.timeoutMillis);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.timeoutMillis);
+        while (inFlight.get() > 0 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+
+        report(measured, measuredNanos, zkOpsAtEnd);
+    }
+
+    private Thread[] closedLoop() {
+
+        Thread[] clients = new Thread[options.concurrency];
+        for (int i = 0; i < clients.length; i++)
+            clients[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    while (running) {
+                        try {
+
+                            transaction(System.nanoTime()).get();
+
+                        } catch (Exception e) {
+                            //counted by the transaction itself
+                        }
+                    }
+                }
+            }, "dtm-load-client-" + i);
+        return clients;
+    }
+
+    private Thread openLoop() {
+
+        return new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                long interval = TimeUnit.SECONDS.toNanos(1) / options.rate;
+                long next = System.nanoTime();
+                while (running) {
+                    long wait = next - System.nanoTime();
+                    while (wait > 0 && running) {
+                        try {
+
+                            TimeUnit.NANOSECONDS.sleep(wait);
+
+                        } catch (InterruptedException e) {
+
+                            return;
+                        }
+                        wait = next - System.nanoTime();
+                    }
+
+                    Window current = window;
+                    if (inFlight.get() < options.maxInFlight)
+                        transaction(next);
+                    else if (next < current.endNanos)
+                        current.dropped.incrementAndGet();
+                    next += interval;
+                }
+            }
+        }, "dtm-load-pacer");
+    }
+
+    /**
+     * begin a transaction, register its participants and commit it
+     *
+     * @param startNanos when the transaction was due, latency counts from it
+     * @return future completing once the transaction is over
+     */
+    private CompletableFuture<XOutcome> transaction(final long startNanos) {
+
+        long seq = sequence.getAndIncrement();
+        final DXCoordinator coordinator = coordinators[(int) (seq % coordinators.length)];
+        final int first = (int) ((seq * options.participantsPerTx) % participants.length);
+        inFlight.incrementAndGet();
+
+        CompletableFuture<XOutcome> outcome = coordinator.begin().thenCompose(
+            new Function<Long, CompletionStage<XOutcome>>() {
+
+                @Override
+                public CompletionStage<XOutcome> apply(final Long xid) {
+
+                    CompletableFuture<?>[] registrations = new CompletableFuture<?>[options.participantsPerTx];
+                    for (int i = 0; i < registrations.length; i++)
+                        registrations[i] = participants[(first + i) % participants.length]
+                            .register(xid);
+
+                    return CompletableFuture.allOf(registrations).thenCompose(
+                        new Function<Void, CompletionStage<XOutcome>>() {
+
+                            @Override
+                            public CompletionStage<XOutcome> apply(Void registered) {
+                                return coordinator.commit(xid);
+                            }
+                        });
+                }
+            });
+
+        outcome = XFutures.within(outcome, options.timeoutMillis, TimeUnit.MILLISECONDS);
+        outcome.whenComplete(new BiConsumer<XOutcome, Throwable>() {
+
+            @Override
+            public void accept(XOutcome result, Throwable cause) {
+
+                inFlight.decrementAndGet();
+                long now = System.nanoTime();
+                Window current = window;
+                //transactions due outside the window are left out of the measurement
+                if (startNanos < current.startNanos || startNanos >= current.endNanos)
+                    return;
+                if (cause == null)
+                    current.latency.recordSince(startNanos);
+
+                //those finishing while in-flight ones drain still count for the latency, not for the throughput
+                if (now >= current.endNanos)
+                    return;
+                if (cause != null)
+                    current.failed.incrementAndGet();
+                else if (result.isCommitted())
+                    current.committed.incrementAndGet();
+                else
+                    current.aborted.incrementAndGet();
+            }
+        });
+        return outcome;
+    }
+
+    private void sleepReporting(int seconds, String phase) throws InterruptedException {
+
+        for (int i = 1; i <= seconds; i++) {
+            Thread.sleep(1000);
+            Window current = window;
+            System.out.println(String.format(Locale.ROOT,
+                "[%s %3ds] committed=%d aborted=%d failed=%d inFlight=%d p99=%.2fms", phase, i,
+                current.committed.get(), current.aborted.get(), current.failed.get(),
+                inFlight.get(), millis(current.latency.getValueAtPercentile(99))));
+        }
+    }
+
+    private void report(Window measured, long nanos, long[] zkOpsAtEnd) {
+
+        double seconds = nanos / 1e9;
+        long finished = measured.committed.get() + measured.aborted.get();
+
+        StringBuilder sb = new StringBuilder("\n===== ").append(options).append(" =====\n");
+        sb.append(String.format(Locale.ROOT,
+            "throughput : %.1f tx/s (committed %d, aborted %d, failed %d, dropped %d in %.1fs)%n",
+            finished / seconds, measured.committed.get(), measured.aborted.get(),
+            measured.failed.get(), measured.dropped.get(), seconds));
+        sb.append(String.format(Locale.ROOT,
+            "latency    : p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms mean=%.2fms%n",
+            millis(measured.latency.getValueAtPercentile(50)),
+            millis(measured.latency.getValueAtPercentile(99)),
+            millis(measured.latency.getValueAtPercentile(99.9)),
+            millis(measured.latency.getMax()), millis(measured.latency.getMean())));
+
+        long total = 0;
+        StringBuilder byOp = new StringBuilder();
+        for (ZkOp op : ZkOp.values()) {
+            long count = zkOpsAtEnd[op.ordinal()] - measured.zkOpsAtStart[op.ordinal()];
+            total += count;
+            if (count > 0)
+                byOp.append(String.format(Locale.ROOT, " %s=%.2f", op,
+                    finished == 0 ? 0.0 : (double) count / finished));
+        }
+        sb.append(String.format(Locale.ROOT, "zk ops/tx  : %.2f (%s )%n",
+            finished == 0 ? 0.0 : (double) total / finished, byOp.toString().trim()));
+        sb.append(metrics);
+        System.out.println(sb);
+    }
+
+    private long[] zkOps() {
+
+        ZkOp[] ops = ZkOp.values();
+        long[] counts = new long[ops.length];
+        for (ZkOp op : ops)
+            counts[op.ordinal()] = metrics.getZkLatency(op).getCount();
+        return counts;
+    }
+
+    private static double millis(double nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,58 @@
+package cn.sspku.zx.dtm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cn.sspku.zx.dtm.example.zk.twopc.XMessage.CoordinatorOrder;
+import cn.sspku.zx.dtm.example.zk.twopc.XMessage.ParticipantReport;
+import cn.sspku.zx.dtm.example.zk.twopc.XMessageCodec;
+
+/**
+ * encoding and decoding of the messages written into znodes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    private byte[] order;
+    private byte[] report;
+
+    @Setup
+    public void setUp() {
+
+        order = XMessageCodec.encode(CoordinatorOrder.COMMIT);
+        report = XMessageCodec.encode(ParticipantReport.PREPAERD);
+    }
+
+    /** the path taken by the coordinator for every fan-out and by the participant for every vote */
+    @Benchmark
+    public byte[] encodeOrder() {
+        return XMessageCodec.encode(CoordinatorOrder.COMMIT);
+    }
+
+    /** the lookup done by the participant for every read of its node */
+    @Benchmark
+    public CoordinatorOrder orderOf() {
+        return XMessageCodec.orderOf(order);
+    }
+
+    /** the lookup done by the coordinator for every vote */
+    @Benchmark
+    public ParticipantReport reportOf() {
+        return XMessageCodec.reportOf(report);
+    }
+}
@@ -0,0 +1,113 @@
+package cn.sspku.zx.dtm.benchmark;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cn.sspku.zx.dtm.example.zk.twopc.DXCoordinator;
+import cn.sspku.zx.dtm.example.zk.twopc.DXParticipant;
+import cn.sspku.zx.dtm.example.zk.twopc.XOutcome;
+import cn.sspku.zx.dtm.example.zk.twopc.XShards;
+
+/**
+ * a whole transaction, begin -> register -> prepare -> commit, driven through the futures of DXCoordinator
+ * against a ZooKeeper server in the same process.
+ *
+ *      latency    : one transaction at a time, sampled;
+ *      throughput : many transactions in flight from concurrent threads.
+ *
+ * the business callbacks do nothing, so the numbers are the cost of the protocol and of ZK alone.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TwoPhaseCommitBenchmark {
+
+    private static final int  PORT        = 21810;
+    private static final long WAIT_MILLIS = 30000;
+
+    @Param({ "1", "8", "64" })
+    private int               participants;
+
+    /** deliver the decision through one decision node instead of writing every participant node */
+    @Param({ "false", "true" })
+    private boolean           decisionNodeMode;
+
+    private EmbeddedZooKeeper server;
+    private DXCoordinator     coordinator;
+    private DXParticipant[]   branches;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        server = new EmbeddedZooKeeper(PORT);
+        server.start();
+
+        XShards shards = new XShards(new XShards.Shard(server.getConnectString(), null));
+        coordinator = new DXCoordinator();
+        coordinator.setShards(shards);
+        coordinator.setDecisionNodeMode(decisionNodeMode);
+        coordinator.getReaper().setRetentionMillis(1000);
+        coordinator.start();
+
+        branches = new DXParticipant[participants];
+        for (int i = 0; i < participants; i++) {
+            branches[i] = new DXParticipant();
+            branches[i].setShards(shards);
+            branches[i].start();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+
+        for (DXParticipant branch : branches)
+            branch.destroy();
+        coordinator.destroy();
+        server.stop();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public XOutcome latency() throws Exception {
+        return commitOne();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @Threads(16)
+    public XOutcome throughput() throws Exception {
+        return commitOne();
+    }
+
+    private XOutcome commitOne() throws Exception {
+
+        long xid = coordinator.begin().get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+
+        CompletableFuture<?>[] registrations = new CompletableFuture<?>[branches.length];
+        for (int i = 0; i < branches.length; i++)
+            registrations[i] = branches[i].register(xid);
+        CompletableFuture.allOf(registrations).get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+
+        XOutcome outcome = coordinator.commit(xid).get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        if (!outcome.isCommitted())
+            throw new IllegalStateException("Not committed: " + outcome);
+        return outcome;
+    }
+}
@@ -0,0 +1,98 @@
+package cn.sspku.zx.dtm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cn.sspku.zx.dtm.anno.TwoPhrase;
+import cn.sspku.zx.dtm.trans.TwoPhraseEngine;
+
+/**
+ * one two-phrase call, first action then second action and commit, directly and through a TwoPhraseEngine proxy
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TwoPhraseProxyBenchmark {
+
+    @TwoPhrase(firstAction = "reserve", secondAction = "debit", commit = "confirm", rollback = "cancel")
+    public interface Account {
+
+        boolean reserve(long amount);
+
+        long debit(long amount);
+
+        void confirm();
+
+        void cancel();
+    }
+
+    public static class InMemoryAccount implements Account {
+
+        private long balance  = Long.MAX_VALUE;
+        private long reserved;
+
+        @Override
+        public boolean reserve(long amount) {
+            reserved += amount;
+            return true;
+        }
+
+        @Override
+        public long debit(long amount) {
+            balance -= amount;
+            return balance;
+        }
+
+        @Override
+        public void confirm() {
+            reserved = 0;
+        }
+
+        @Override
+        public void cancel() {
+            reserved = 0;
+        }
+    }
+
+    private Account direct;
+    private Account proxy;
+    private long    amount;
+
+    @Setup
+    public void setUp() {
+
+        direct = new InMemoryAccount();
+        proxy = new TwoPhraseEngine().newProxy(Account.class, new InMemoryAccount());
+    }
+
+    @Benchmark
+    public long direct() {
+
+        amount++;
+        direct.reserve(amount);
+        long balance = direct.debit(amount);
+        direct.confirm();
+        return balance;
+    }
+
+    @Benchmark
+    public long proxy() {
+
+        amount++;
+        proxy.reserve(amount);
+        return proxy.debit(amount);
+    }
+}
@@ -0,0 +1,85 @@
+package cn.sspku.zx.dtm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cn.sspku.zx.dtm.example.zk.twopc.XVoteTally;
+
+/**
+ * tallying all votes of one transaction, as the coordinator does from registration to the last 'COMMITED'
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VoteTallyBenchmark {
+
+    @Param({ "1", "8", "64", "1024" })
+    private int participants;
+
+    /**
+     * register, prepare and commit every participant, checking the tally after each vote
+     */
+    @Benchmark
+    public boolean commitAll() {
+
+        XVoteTally tally = new XVoteTally();
+        for (int seq = 0; seq < participants; seq++)
+            tally.register(seq);
+
+        boolean allPrepared = false;
+        for (int seq = 0; seq < participants; seq++)
+            allPrepared = tally.prepared(seq) && tally.isAllPrepared();
+
+        boolean allCommitted = false;
+        for (int seq = 0; seq < participants; seq++)
+            allCommitted = tally.committed(seq) && tally.isAllCommitted();
+
+        return allPrepared & allCommitted;
+    }
+
+    /**
+     * every vote read twice, as happens when a node is re-read after a watch fires, the second read must be dropped
+     */
+    @Benchmark
+    public int duplicateVotes() {
+
+        XVoteTally tally = new XVoteTally();
+        for (int seq = 0; seq < participants; seq++)
+            tally.register(seq);
+
+        int counted = 0;
+        for (int seq = 0; seq < participants; seq++) {
+            if (tally.prepared(seq))
+                counted++;
+            if (tally.prepared(seq))
+                counted++;
+        }
+        return counted;
+    }
+
+    /**
+     * the fan-out list taken when the decision is written
+     */
+    @Benchmark
+    public int[] liveMembers() {
+
+        XVoteTally tally = new XVoteTally();
+        for (int seq = 0; seq < participants; seq++)
+            tally.register(seq);
+        tally.readOnly(0);
+        return tally.liveMembers();
+    }
+}
@@ -1,6 +1,22 @@
 package cn.sspku.zx.dtm.anno;
 
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
 
+/**
+ * runs a method, or every method of a class, within a distributed transaction.
+ *
+ * the transaction is started by the outermost annotated method and joined by nested ones, it is begun only once
+ * a two-phrase resource is touched. see cn.sspku.zx.dtm.trans.DXTransactionInterceptor.
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.METHOD, ElementType.TYPE })
 public @interface DistributedTransactional {
 
 }
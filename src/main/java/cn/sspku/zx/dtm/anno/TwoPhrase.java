@@ -1,7 +1,24 @@
 package cn.sspku.zx.dtm.anno;
 
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
 
-
+/**
+ * marks an interface of a two-phrase business resource and names its methods.
+ *
+ *      firstAction  : reserve the resource;
+ *      secondAction : do the task on the reserved resource;
+ *      commit       : make the task permanent, takes no parameters;
+ *      rollback     : undo the first and second action, takes no parameters.
+ *
+ * cn.sspku.zx.dtm.trans.TwoPhraseEngine turns an implementation into a transactional proxy.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
 public @interface TwoPhrase {
 	public String firstAction();
 	public String secondAction();
@@ -12,12 +12,12 @@ import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
-import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 
 public class DataMonitor implements Watcher, StatCallback {
 
-    ZooKeeper zk;
+    /** the ZK session is re-created on expiry, get it at each use */
+    SessionManager.SharedSession session;
 
     String znode;
 
@@ -29,15 +29,15 @@ public class DataMonitor implements Watcher, StatCallback {
 
     byte prevData[];
 
-    public DataMonitor(ZooKeeper zk, String znode, Watcher chainedWatcher,
+    public DataMonitor(SessionManager.SharedSession session, String znode, Watcher chainedWatcher,
             DataMonitorListener listener) {
-        this.zk = zk;
+        this.session = session;
         this.znode = znode;
         this.chainedWatcher = chainedWatcher;
         this.listener = listener;
         // Get things started by checking if the node exists. We are going
         // to be completely event driven
-        zk.exists(znode, true, this, null);
+        session.get().exists(znode, this, this, null);
     }
 
     /**
@@ -96,7 +96,7 @@ public class DataMonitor implements Watcher, StatCallback {
         else {
             if (path != null && path.equals(znode)) {
                 // Something has changed on the node, let's find out
-                zk.exists(znode, true, this, null);
+                session.get().exists(znode, this, this, null);
             }
         }
         if (chainedWatcher != null) {
@@ -128,7 +128,7 @@ public class DataMonitor implements Watcher, StatCallback {
                 return;
             default:
                 // Retry errors
-                zk.exists(znode, true, this, null);
+                session.get().exists(znode, this, this, null);
                 return;
         }
 
@@ -136,7 +136,7 @@ public class DataMonitor implements Watcher, StatCallback {
         byte b[] = null;
         if (exists) {
             try {
-                b = zk.getData(znode, false, null);
+                b = session.get().getData(znode, false, null);
             } catch (KeeperException e) {
                 // We don't need to worry about recovering now. The watch
                 // callbacks will kick off any exception handling
@@ -16,7 +16,6 @@ import java.io.OutputStream;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
-import org.apache.zookeeper.ZooKeeper;
 
 public class Executor implements Watcher, Runnable, DataMonitor.DataMonitorListener {
 
@@ -24,7 +23,7 @@ public class Executor implements Watcher, Runnable, DataMonitor.DataMonitorListe
 
     DataMonitor dm;
 
-    ZooKeeper zk;
+    SessionManager.SharedSession session;
 
     String filename;
 
@@ -37,8 +36,10 @@ public class Executor implements Watcher, Runnable, DataMonitor.DataMonitorListe
 
         this.filename = filename;
         this.exec = exec;
-        zk = new ZooKeeper(hostPort, 3000, this); //watch by itself
-        dm = new DataMonitor(zk, znode, null, this);
+        //shared with other components in this process
+        session = SessionManager.getDefault().acquire(hostPort);
+        dm = new DataMonitor(session, znode, null, this);
+        session.addWatcher(this); //watch by itself
     }
     
 
@@ -0,0 +1,295 @@
+package cn.sspku.zx.dtm.example.zk;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * hand out one shared ZK session per address to all components of a process.
+ *
+ *      1>a session is created by the first component acquiring its address and closed once the last one released it;
+ *      2>watchers of many components are multiplexed over the session, each component registers its own watcher;
+ *      3>connection state changes are fanned out to all registered watchers,
+ *        a watcher registered to a connected session is told 'SyncConnected' at once;
+ *      4>an expired session is re-created here, its watchers are told 'Expired' before the new session is created,
+ *        so they have seen 'Expired' before the 'SyncConnected' of the new session reaches them;
+ *        if it cannot be created, it is retried in the background with exponential backoff until it can be or the
+ *        session is closed.
+ *
+ * the address is a connect string, optionally followed by a chroot; addresses with different chroots get different sessions.
+ * events of watches set with 'watch = true' go to the default watcher and are thus fanned out to every watcher of the session,
+ * components should pass their own watcher instead.
+ */
+public class SessionManager {
+
+    private static final Logger         LOG                     = LoggerFactory
+                                                                    .getLogger(SessionManager.class);
+
+    /** the session timeout DXCoordinator and DXParticipant have always used */
+    public static final int             DEFAULT_SESSION_TIMEOUT = 9000;
+
+    private static final SessionManager DEFAULT                 = new SessionManager(
+                                                                    DEFAULT_SESSION_TIMEOUT);
+
+    /** first and longest delay between attempts to re-create an expired session */
+    private static final long           RETRY_BASE_MILLIS       = 200;
+    private static final long           RETRY_MAX_MILLIS        = 10000;
+
+    private final int                   sessionTimeout;
+
+    /** shared sessions by address, guarded by this */
+    private final Map<String, SharedSession> sessions         = new HashMap<String, SharedSession>();
+
+    public SessionManager(int sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+    }
+
+    /**
+     * @return the session manager shared by the whole process
+     */
+    public static SessionManager getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * get the shared session to address, creating it if no component holds it yet.
+     *
+     * every acquire must be paired with a release of the returned session.
+     *
+     * @param address
+     * @return
+     * @throws IOException if the session cannot be created
+     */
+    public synchronized SharedSession acquire(String address) throws IOException {
+
+        SharedSession session = sessions.get(address);
+        if (session == null) {
+            session = new SharedSession(address);
+            sessions.put(address, session);
+        }
+        session.refs++;
+        return session;
+    }
+
+    private synchronized void release(SharedSession session) throws InterruptedException {
+
+        if (--session.refs > 0)
+            return;
+
+        sessions.remove(session.address);
+        session.close();
+    }
+
+    /**
+     * create a ZK session, only overridden by tests
+     *
+     * @param address
+     * @param watcher
+     * @return the new session
+     * @throws IOException if the session cannot be created
+     */
+    ZooKeeper connect(String address, Watcher watcher) throws IOException {
+        return new ZooKeeper(address, sessionTimeout, watcher);
+    }
+
+    /**
+     * @return number of sessions currently open
+     */
+    public synchronized int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * one ZK session shared by all components working with the same address
+     */
+    public class SharedSession implements Watcher {
+
+        private final String         address;
+        private final List<Watcher>  watchers = new CopyOnWriteArrayList<Watcher>();
+        private volatile ZooKeeper   zk;
+        private volatile KeeperState state    = KeeperState.Disconnected;
+        private volatile CountDownLatch connected = new CountDownLatch(1);
+        private volatile boolean     closed;
+
+        /** number of components holding the session, guarded by the manager */
+        private int                  refs;
+
+        SharedSession(String address) throws IOException {
+            this.address = address;
+            this.zk = connect(address, this);
+        }
+
+        /**
+         * @return the current ZK session, it is replaced once expired, so do not keep it across operations
+         */
+        public ZooKeeper get() {
+            return zk;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public KeeperState getState() {
+            return state;
+        }
+
+        /**
+         * register a watcher for connection state changes of the session
+         *
+         * @param watcher
+         */
+        public void addWatcher(Watcher watcher) {
+
+            watchers.add(watcher);
+            if (state == KeeperState.SyncConnected)
+                watcher.process(new WatchedEvent(EventType.None, KeeperState.SyncConnected, null));
+        }
+
+        public void removeWatcher(Watcher watcher) {
+
+            watchers.remove(watcher);
+        }
+
+        /**
+         * wait until the session is connected
+         *
+         * @return whether the session got connected in time
+         */
+        public boolean awaitConnected(long timeout, TimeUnit unit) throws InterruptedException {
+
+            return connected.await(timeout, unit);
+        }
+
+        /**
+         * give the session back, it is closed once no component holds it any more
+         */
+        public void release() throws InterruptedException {
+
+            SessionManager.this.release(this);
+        }
+
+        private synchronized void close() throws InterruptedException {
+
+            closed = true;
+            watchers.clear();
+            zk.close();
+        }
+
+        /**
+         * replace the expired session, the dead one is kept until a new one could be created
+         *
+         * @return whether a new session is created, false if it failed or the session is closed
+         */
+        private synchronized boolean reconnect() {
+
+            if (closed)
+                return false;
+
+            try {
+
+                zk = connect(address, this);
+                return true;
+
+            } catch (IOException e) {
+
+                LOG.error("Failed to re-create the session to " + address, e);
+                return false;
+            }
+        }
+
+        /**
+         * retry reconnect() with exponential backoff on a thread of its own, until it succeeds or the session is closed
+         */
+        private void retryReconnect() {
+
+            Thread retry = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    long delay = RETRY_BASE_MILLIS;
+                    while (!closed) {
+                        try {
+
+                            Thread.sleep(delay);
+
+                        } catch (InterruptedException e) {
+
+                            return;
+                        }
+
+                        if (reconnect()) {
+                            LOG.info("Re-created the session to " + address);
+                            return;
+                        }
+                        delay = Math.min(delay * 2, RETRY_MAX_MILLIS);
+                    }
+                }
+            }, "dx-session-retry-" + address);
+            retry.setDaemon(true);
+            retry.start();
+        }
+
+        /**
+         * @see org.apache.zookeeper.Watcher#process(org.apache.zookeeper.WatchedEvent)
+         */
+        @Override
+        public void process(WatchedEvent event) {
+
+            if (event.getType() == EventType.None) {
+                state = event.getState();
+                switch (event.getState()) {
+                    case SyncConnected:
+                        connected.countDown();
+                        break;
+                    case Disconnected:
+                        break;
+                    case Expired:
+                        if (closed)
+                            return;
+                        connected = new CountDownLatch(1);
+                        //the new session may connect at once, its watchers must have handled 'Expired' by then
+                        fanOut(event);
+                        if (!reconnect() && !closed)
+                            retryReconnect();
+                        return;
+                    default:
+                        break;
+                }
+            }
+            fanOut(event);
+        }
+
+        private void fanOut(WatchedEvent event) {
+
+            for (Watcher watcher : watchers) {
+                try {
+
+                    watcher.process(event);
+
+                } catch (RuntimeException e) {
+
+                    LOG.error("Watcher " + watcher + " failed on " + event, e);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "SharedSession[" + address + ", " + state + "]";
+        }
+    }
+}
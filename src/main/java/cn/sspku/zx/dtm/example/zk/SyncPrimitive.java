@@ -13,7 +13,6 @@ import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs.Ids;
-import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 
 /**
@@ -28,7 +27,7 @@ import org.apache.zookeeper.data.Stat;
  */
 public class SyncPrimitive implements Watcher {
 
-    static ZooKeeper zk = null;
+    static SessionManager.SharedSession session = null;
     static Integer mutex;
 
     String parent_node_name;
@@ -39,15 +38,16 @@ public class SyncPrimitive implements Watcher {
      * @param address
      */
     SyncPrimitive(String address) {
-        if(zk == null){
+        if(session == null){
             try {
                 System.out.println("Starting ZK:");
-                zk = new ZooKeeper(address, 3000, this);
                 mutex = new Integer(-1);
-                System.out.println("Finished starting ZK: " + zk);
+                session = SessionManager.getDefault().acquire(address);
+                session.addWatcher(this);
+                System.out.println("Finished starting ZK: " + session);
             } catch (IOException e) {
                 System.out.println(e.toString());
-                zk = null;
+                session = null;
                 System.out.println("Failed in  starting  ZK!!!");
             }
         }       
@@ -86,11 +86,11 @@ public class SyncPrimitive implements Watcher {
             this.max_capacity = max_capacity;
 
             // Create barrier parent node if it does not exist.
-            if (zk != null) {
+            if (session != null) {
                 try {
-                    Stat s = zk.exists(barrier_parent_node_name, false);
+                    Stat s = session.get().exists(barrier_parent_node_name, false);
                     if (s == null) {
-                        zk.create(barrier_parent_node_name, new byte[0], Ids.OPEN_ACL_UNSAFE,
+                        session.get().create(barrier_parent_node_name, new byte[0], Ids.OPEN_ACL_UNSAFE,
                                 CreateMode.PERSISTENT);
                     }
                 } catch (KeeperException e) {
@@ -122,11 +122,11 @@ public class SyncPrimitive implements Watcher {
          */
 
         boolean enter() throws KeeperException, InterruptedException{
-            zk.create(barrier_child_node_path, new byte[0], Ids.OPEN_ACL_UNSAFE,
+            session.get().create(barrier_child_node_path, new byte[0], Ids.OPEN_ACL_UNSAFE,
                     CreateMode.EPHEMERAL_SEQUENTIAL);
             while (true) {
                 synchronized (mutex) {
-                    List<String> list = zk.getChildren(parent_node_name, true);
+                    List<String> list = session.get().getChildren(parent_node_name, this);
 
                     if (list.size() < max_capacity) {
                         mutex.wait();
@@ -147,10 +147,10 @@ public class SyncPrimitive implements Watcher {
 
         boolean leave() throws KeeperException, InterruptedException{
             
-            zk.delete(barrier_child_node_path, 0);
+            session.get().delete(barrier_child_node_path, 0);
             while (true) {
                 synchronized (mutex) {
-                    List<String> list = zk.getChildren(parent_node_name, true);
+                    List<String> list = session.get().getChildren(parent_node_name, this);
                         if (list.size() > 0) {
                             mutex.wait();
                         } else {
@@ -179,11 +179,11 @@ public class SyncPrimitive implements Watcher {
             this.parent_node_name = queue_parent_node_name;
             
             // Create queue parent node if it does not exist.
-            if (zk != null) {
+            if (session != null) {
                 try {
-                    Stat s = zk.exists(parent_node_name, false);
+                    Stat s = session.get().exists(parent_node_name, false);
                     if (s == null) {
-                        zk.create(parent_node_name, new byte[0], Ids.OPEN_ACL_UNSAFE,
+                        session.get().create(parent_node_name, new byte[0], Ids.OPEN_ACL_UNSAFE,
                                 CreateMode.PERSISTENT);
                     }
                 } catch (KeeperException e) {
@@ -211,7 +211,7 @@ public class SyncPrimitive implements Watcher {
             value = b.array();
             
             // Add child with value i to the queue
-            zk.create(Paths.get(parent_node_name,ELE_PREFIX).toString(), value, Ids.OPEN_ACL_UNSAFE,
+            session.get().create(Paths.get(parent_node_name,ELE_PREFIX).toString(), value, Ids.OPEN_ACL_UNSAFE,
                         CreateMode.PERSISTENT_SEQUENTIAL);
 
             return true;
@@ -234,7 +234,7 @@ public class SyncPrimitive implements Watcher {
                 
                 synchronized (mutex) {
             
-                    List<String> list = zk.getChildren(parent_node_name, true);
+                    List<String> list = session.get().getChildren(parent_node_name, this);
                     if (list.size() == 0) {
                         System.out.println("Going to wait");
                         mutex.wait();
@@ -253,8 +253,8 @@ public class SyncPrimitive implements Watcher {
                         String min_node_path= Paths.get(parent_node_name, ELE_PREFIX + min_Num).toString();                       
                         System.out.println("Minimum node: " +min_node_path);
                         //obtain the data in this child node and remove it 
-                        byte[] b = zk.getData(min_node_path, false, stat);
-                        zk.delete(min_node_path, 0);
+                        byte[] b = session.get().getData(min_node_path, false, stat);
+                        session.get().delete(min_node_path, 0);
                         ByteBuffer buffer = ByteBuffer.wrap(b);
                         retvalue = buffer.getInt();
 
@@ -0,0 +1,57 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * state of the branch a DXParticipant takes in one distributed transaction
+ */
+public class DXBranch extends XStateMachine {
+
+    private final long      xid;
+
+    /** path of the participant node, known once registration succeeded */
+    private volatile String node;
+
+    /** completed with the xid once the participant node is created */
+    private final CompletableFuture<Long> registration = new CompletableFuture<Long>();
+
+    /** set by an abort arriving while the branch is PREPARING, the abort is run once the preparation returned */
+    private volatile boolean abortRequested;
+
+    public DXBranch(long xid) {
+        this.xid = xid;
+    }
+
+    public long getXid() {
+        return xid;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public void setNode(String node) {
+        this.node = node;
+    }
+
+    public boolean isAbortRequested() {
+        return abortRequested;
+    }
+
+    public void requestAbort() {
+        this.abortRequested = true;
+    }
+
+    /**
+     * the future is shared by all callers, compose on it but do not complete it.
+     */
+    public CompletableFuture<Long> whenRegistered() {
+        return registration;
+    }
+
+    @Override
+    public String toString() {
+        return "DXBranch[" + (node == null ? XPaths.xDir(xid) : node) + ", "
+               + nameOf(getState()) + "]";
+    }
+}
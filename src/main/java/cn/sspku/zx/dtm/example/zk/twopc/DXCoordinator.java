@@ -1,22 +1,37 @@
 package cn.sspku.zx.dtm.example.zk.twopc;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
 import org.apache.zookeeper.AsyncCallback.StatCallback;
 import org.apache.zookeeper.AsyncCallback.StringCallback;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.Watcher.Event.EventType;
-import org.apache.zookeeper.ZooDefs.Ids;
-import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import cn.sspku.zx.dtm.example.zk.SessionManager;
+import cn.sspku.zx.dtm.example.zk.twopc.XMetrics.AbortReason;
+import cn.sspku.zx.dtm.example.zk.twopc.XMetrics.Phase;
+import cn.sspku.zx.dtm.example.zk.twopc.XMetrics.ZkOp;
 import cn.sspku.zx.dtm.example.zk.twopc.XMessage.CoordinatorOrder;
+import cn.sspku.zx.dtm.example.zk.twopc.XMessage.ParticipantReport;
 
 /**
  * Following is general steps involved in distributed transaction, DTCoordinator acts as the coordinator of distributed transaction.
@@ -60,39 +75,144 @@ import cn.sspku.zx.dtm.example.zk.twopc.XMessage.CoordinatorOrder;
  * @author zhangxu
  * @version $Id: DXCoordinator.java, v 0.1 2015年9月9日 下午4:31:57 zhangxu Exp $
  */
-public class DXCoordinator implements Watcher {
+public class DXCoordinator {
 
     private static final Logger LOG             = LoggerFactory
                                                     .getLogger(DXCoordinator.class);
 
-    private ZooKeeper session;
-    private static final String DX_PREFIX       = "dx";
-    private static final String ZK_SERVER_URL   = "localhost:1281";
-    private static final int    SESSION_TIMEOUT = 9000;
+    /** one shared session per shard, and the watcher this coordinator registered to it */
+    private XStore[]            sessions;
+    private SessionWatcher[]    sessionWatchers;
+    private XStore.Provider     storeProvider   = XZkStore.DEFAULT_PROVIDER;
+    private XShards             shards          = XShards.DEFAULT;
 
-    private String              currentXDir;
+    /** shard of the next transaction, transactions are spread over shards round robin */
+    private final AtomicInteger nextShard       = new AtomicInteger();
+
+    /** default upper bound of setData operations packed into one ZK multi request */
+    public static final int     DEFAULT_MAX_BATCH_SIZE = 128;
+
+    /** default upper bound of transactions read at the same time during recovery */
+    public static final int     DEFAULT_RECOVERY_PARALLELISM = 64;
+
+    /** default deadline of the prepare phase, after which the transaction is aborted */
+    public static final long    DEFAULT_PREPARE_TIMEOUT_MILLIS = 30000;
+
+    /** default deadline of the commit phase, after which human intervention is asked for */
+    public static final long    DEFAULT_COMMIT_TIMEOUT_MILLIS = 60000;
+
+
+    /** all live transactions driven by this coordinator, keyed by xid */
+    private final ConcurrentMap<Long, DXTransaction> transactions = new ConcurrentHashMap<Long, DXTransaction>();
+
+    private int                 maxBatchSize    = DEFAULT_MAX_BATCH_SIZE;
+
+    /** whether phase two is delivered by one decision node instead of every participant node */
+    private boolean             decisionNodeMode;
+
+    /** local write-ahead log of commit decisions, optional */
+    private XDecisionLog        decisionLog;
+
+    /** owner written into transaction directories, unique per instance unless set */
+    private String              coordinatorId   = newCoordinatorId();
+    private boolean             coordinatorIdSet;
+
+    private int                 recoveryParallelism = DEFAULT_RECOVERY_PARALLELISM;
+
+    private volatile XRecovery.Report lastRecoveryReport;
+
+    /** whether a transaction with a single participant skips the vote */
+    private boolean             onePhaseEnabled = true;
+
+    private long                prepareTimeoutMillis = DEFAULT_PREPARE_TIMEOUT_MILLIS;
+
+    private long                commitTimeoutMillis = DEFAULT_COMMIT_TIMEOUT_MILLIS;
+
+    /** deadlines of all live transactions */
+    private XTimeoutWheel       timeoutWheel;
+
+    /** 
+     * ZK 3.4 client only offers a blocking multi(), so batches are submitted from these threads 
+     * instead of the ZK event thread; batches of one transaction are written in order, those of
+     * different transactions in parallel.
+     */
+    private final XStripedDispatcher writers    = new XStripedDispatcher("dx-coordinator-writer");
+
+    /** deletes directories of closed transactions in the background */
+    private final XReaper       reaper          = new XReaper(this);
+
+    /** handles the ZK events of transactions in parallel, those of one transaction in order */
+    private final XStripedDispatcher stripes    = new XStripedDispatcher("dx-coordinator");
+
+    private XMetrics            metrics         = XMetrics.getDefault();
+    /** timed callbacks of the order and decision writes, built once metrics is known in start() */
+    private StatCallback        timedWriteParticipantNode;
+    private StringCallback      timedWriteDecisionNode;
+
+    /** transactions in flight, read by the metrics */
+    private final XMetrics.Gauge inFlight       = new XMetrics.Gauge() {
+
+                                                    @Override
+                                                    public long get() {
+                                                        return transactions.size();
+                                                    }
+                                                };
 
     /**
-     * initialize the session to ZK server;
+     * acquire the shared session to each shard;
+     * 
+     * @throws IOException if a session cannot be created
      */
-    public void start() {
-        try {
-            session = new ZooKeeper(ZK_SERVER_URL, SESSION_TIMEOUT, this);
+    public void start() throws IOException {
+
+        if (!coordinatorIdSet)
+            LOG.warn("No coordinator id is set, using " + coordinatorId
+                     + ", transactions in doubt will not be recovered after a restart.");
 
-        } catch (IOException e) {
+        writers.start();
+        timeoutWheel = new XTimeoutWheel();
+        timeoutWheel.start();
+        reaper.start();
+        stripes.start();
+        metrics.addTransactionGauge(inFlight);
+        timedWriteParticipantNode = metrics.timedStatByContext(ZkOp.SET_DATA,
+            writeParticipantNodeCallback);
+        timedWriteDecisionNode = metrics.timedStringByContext(ZkOp.CREATE,
+            writeDecisionNodeCallback);
 
+        sessions = new XStore[shards.size()];
+        sessionWatchers = new SessionWatcher[shards.size()];
+        for (int i = 0; i < shards.size(); i++)
+            sessions[i] = storeProvider.acquire(shards.get(i).getAddress());
+        //watchers are registered last, recovery of a connected shard starts right away
+        for (int i = 0; i < shards.size(); i++) {
+            sessionWatchers[i] = new SessionWatcher(i);
+            sessions[i].addWatcher(sessionWatchers[i]);
         }
     }
 
     /**
-     * close the session to ZK server and release resources
+     * release the sessions to all shards and other resources
      */
     public void destroy() {
 
         try {
 
-            session.close();
-            session = null;
+            reaper.stop();
+            stripes.stop();
+            metrics.removeTransactionGauge(inFlight);
+
+            writers.stop();
+
+            timeoutWheel.stop();
+            timeoutWheel = null;
+
+            for (int i = 0; i < sessions.length; i++) {
+                sessions[i].removeWatcher(sessionWatchers[i]);
+                sessions[i].release();
+            }
+            sessions = null;
+            sessionWatchers = null;
 
         } catch (InterruptedException e) {
 
@@ -101,175 +221,1242 @@ public class DXCoordinator implements Watcher {
     }
 
     /** 
-     * @see org.apache.zookeeper.Watcher#process(org.apache.zookeeper.WatchedEvent)
-     * 
-     * watch for session changes
+     * watch for changes of the session to one shard:
+     *      recover in-doubt transactions of the shard once connected after start or after the session expired;
+     *      on expiry all watches are gone, so the live transactions of the shard are dropped and recovered from ZK,
+     *      the session itself is re-created by the session manager.
      */
-    @Override
-    public void process(WatchedEvent event) {
+    private class SessionWatcher implements Watcher {
 
-        if (event.getType() != EventType.None)
-            return;
+        private final int        shard;
 
-        switch (event.getState()) {
-            case SyncConnected:
-                break;
-            case Expired:
-                break;
-            case Disconnected:
-                break;
+        /** whether in-doubt transactions should be recovered once the session is connected */
+        private volatile boolean recoveryPending = true;
 
-            default:
-                break;
+        SessionWatcher(int shard) {
+            this.shard = shard;
         }
+
+        @Override
+        public synchronized void process(WatchedEvent event) {
+
+            if (event.getType() != EventType.None)
+                return;
+
+            switch (event.getState()) {
+                case SyncConnected:
+                    if (recoveryPending) {
+                        recoveryPending = false;
+                        startRecovery(shard);
+                    }
+                    break;
+                case Expired:
+                    for (DXTransaction x : transactions.values())
+                        if (XPaths.shardOf(x.getXid()) == shard
+                            && transactions.remove(x.getXid(), x)) {
+                            //a pending phase timeout would otherwise act on the transaction re-adopted by recovery
+                            x.resetTimeout(null);
+                            x.abandon(new IllegalStateException("Session to "
+                                                                + shards.get(shard)
+                                                                + " expired, " + x
+                                                                + " is left to recovery."));
+                        }
+                    recoveryPending = true;
+                    break;
+                case Disconnected:
+                    break;
+
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * run recovery of a shard in its own thread, it blocks on its parallelism bound and must stay off the ZK event thread
+     */
+    private void startRecovery(int shard) {
+
+        final XRecovery recovery = new XRecovery(this, sessions[shard], shard, coordinatorId,
+            decisionLog, recoveryParallelism);
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                recovery.run();
+                lastRecoveryReport = recovery.getReport();
+            }
+        }, "dx-recovery-" + shard);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the current session to the shard of the transaction xid, it is replaced once expired
+     */
+    XStore sessionOf(long xid) {
+
+        return sessions[shards.indexOf(xid)];
+    }
+
+    /**
+     * @return the garbage collector of closed transactions, to tune it or read its metrics
+     */
+    public XReaper getReaper() {
+
+        return reaper;
+    }
+
+    /**
+     * @return the metrics this coordinator records to
+     */
+    public XMetrics getMetrics() {
+
+        return metrics;
+    }
+
+    /**
+     * record to metrics instead of the process-wide ones, set before start()
+     * 
+     * @param metrics
+     */
+    public void setMetrics(XMetrics metrics) {
+
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the dispatcher of ZK events, to tune its stripes before start() or read their queue depths
+     */
+    public XStripedDispatcher getDispatcher() {
+
+        return stripes;
+    }
+
+    /**
+     * @return the threads writing orders in batches, to tune their number before start() or read their queue depths
+     */
+    public XStripedDispatcher getWriters() {
+
+        return writers;
     }
 
+    /**
+     * @return statistics of the latest finished recovery, or null if none has finished
+     */
+    public XRecovery.Report getLastRecoveryReport() {
+
+        return lastRecoveryReport;
+    }
 
     /**
      * Duty One:
      * 
-     * start a distributed transaction by creating a unique transaction directory 
+     * start a distributed transaction by creating a unique transaction directory in the next shard, 
+     * the shard and the sequence number of the directory make up the xid of the transaction
      */
     public void beginX() {
 
-        session.create(DX_PREFIX, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
-            createXDirCallback,  null);
+        begin();
+    }
+
+    /**
+     * start a distributed transaction like beginX
+     * 
+     * @return future of the xid, completed once the transaction is registered in the transaction table
+     */
+    public CompletableFuture<Long> begin() {
+
+        return begin((nextShard.getAndIncrement() & Integer.MAX_VALUE) % shards.size());
+    }
+
+    /**
+     * start a distributed transaction in the given shard instead of the next one
+     * 
+     * @param shard index of the shard
+     * @return future of the xid, completed once the transaction is registered in the transaction table
+     */
+    public CompletableFuture<Long> begin(int shard) {
+
+        if (shard < 0 || shard >= shards.size())
+            throw new IllegalArgumentException("Shard " + shard + " out of " + shards.size()
+                                               + " shards.");
+        BeginRequest request = new BeginRequest(shard);
+        beginX(request);
+        return request.future;
+    }
+
+    private void beginX(BeginRequest request) {
+
+        sessions[request.shard].create(XPaths.xDirPrefix(request.shard),
+            coordinatorId.getBytes(), CreateMode.PERSISTENT_SEQUENTIAL,
+            metrics.timedString(ZkOp.CREATE, createXDirCallback), request);
+    }
+
+    /**
+     * a pending begin, passed as ctx through the retries of creating the transaction directory
+     */
+    private static class BeginRequest {
+
+        final int                     shard;
+        final CompletableFuture<Long> future     = new CompletableFuture<Long>();
+        final long                    startNanos = System.nanoTime();
+
+        BeginRequest(int shard) {
+            this.shard = shard;
+        }
     }
 
     /**
      * callback for ZK.create in method beignX.
      * 
-     * guarantee that XDir is successfully created
+     * guarantee that XDir is successfully created in the shard of the BeginRequest passed as ctx and register 
+     * the new transaction into the transaction table
      */
     StringCallback createXDirCallback = new StringCallback() {
 
                                           @Override
                                           public void processResult(int rc, String path,
                                                                     Object ctx, String name) {
-                                              currentXDir = name;
+
+                                              BeginRequest request = (BeginRequest) ctx;
+                                              switch (Code.get(rc)) {
+                                                  case OK:
+                                                      DXTransaction x = new DXTransaction(XPaths
+                                                          .xidOf(name));
+                                                      //recovery may have listed the new directory and adopted it first
+                                                      if (transactions.putIfAbsent(x.getXid(), x) != null) {
+                                                          request.future
+                                                              .completeExceptionally(new IllegalStateException(
+                                                                  "Transaction " + name
+                                                                          + " was adopted by recovery before it began."));
+                                                          break;
+                                                      }
+                                                      metrics.recordPhase(Phase.BEGIN,
+                                                          request.startNanos);
+                                                      xBegun(x);
+                                                      request.future.complete(x.getXid());
+                                                      break;
+                                                  case NONODE:
+                                                      //the root does not exist yet, create it and retry
+                                                      sessions[request.shard].create(
+                                                          XPaths.DX_ROOT, new byte[0],
+                                                          CreateMode.PERSISTENT,
+                                                          metrics.timedString(ZkOp.CREATE,
+                                                              createRootCallback), ctx);
+                                                      break;
+                                                  case CONNECTIONLOSS:
+                                                      beginX(request);
+                                                      break;
+                                                  default:
+                                                      LOG.error("Failed to begin a transaction: "
+                                                                + Code.get(rc));
+                                                      request.future.completeExceptionally(KeeperException
+                                                          .create(Code.get(rc), path));
+                                                      break;
+                                              }
+                                          }
+                                      };
+
+    /**
+     * callback for creating the root of all transaction directories in the shard of the BeginRequest passed as ctx
+     */
+    StringCallback createRootCallback = new StringCallback() {
+
+                                          @Override
+                                          public void processResult(int rc, String path,
+                                                                    Object ctx, String name) {
+
+                                              BeginRequest request = (BeginRequest) ctx;
+                                              if (rc == Code.OK.intValue()
+                                                  || rc == Code.NODEEXISTS.intValue()) {
+                                                  beginX(request);
+                                              } else {
+                                                  LOG.error("Failed to create the root "
+                                                            + XPaths.DX_ROOT + " in "
+                                                            + shards.get(request.shard) + ": "
+                                                            + Code.get(rc));
+                                                  request.future.completeExceptionally(KeeperException
+                                                      .create(Code.get(rc), path));
+                                              }
                                           }
                                       };
-                                      
+
+    /**
+     * invoked once a new transaction is registered in the transaction table, override it to hand
+     * the xid over to the participants
+     * 
+     * @param x
+     */
+    protected void xBegun(DXTransaction x) {
+    }
+
+    /**
+     * @param xid
+     * @return the live transaction with xid, or null if it is unknown to this coordinator
+     */
+    public DXTransaction getTransaction(long xid) {
+
+        return transactions.get(xid);
+    }
+
+    /**
+     * look up a live transaction that the caller refers to by xid
+     */
+    private DXTransaction requireTransaction(long xid) {
+
+        DXTransaction x = transactions.get(xid);
+        if (x == null)
+            throw new IllegalArgumentException("Unknown transaction: " + xid);
+
+        return x;
+    }
+
     /**
      * Duty Two:
      *      
      *      Notify all participants to prepare a transaction by writing 'PREPARE' in each participant node.     
+     *      the participants registered by now make up the transaction, late comers are ignored.
+     *
+     * @param xid
      */
-    public void notifyToPrepareX() {
+    public void notifyToPrepareX(long xid) {
+
+        DXTransaction x = requireTransaction(xid);
+        if (!x.transit(XStateMachine.INIT, XStateMachine.PREPARING)) {
+            LOG.warn("Reject to prepare " + x);
+            return;
+        }
+        x.resetTimeout(timeoutWheel.schedule(new PhaseTimeout(x, XStateMachine.PREPARING),
+            prepareTimeoutMillis, TimeUnit.MILLISECONDS));
 
-        notifyParticipants(CoordinatorOrder.PREPARE);
+        sessionOf(xid).getChildren(x.getXDir(), null,
+            metrics.timedChildren(ZkOp.GET_CHILDREN, notifyParticipantsCallback), xid);
     }
 
     /**
-     * notify all participants to execute a specific order.
-     * @param order
+     * notify all participants to prepare like notifyToPrepareX
+     * 
+     * @param xid
+     * @return future of the outcome of phase one, committed if every participant voted 'PREPARED' or 'READ_ONLY'
      */
-    private void notifyParticipants(CoordinatorOrder order) {
+    public CompletableFuture<XOutcome> prepare(long xid) {
+
+        DXTransaction x = transactions.get(xid);
+        if (x == null)
+            return XFutures.failed(new IllegalArgumentException("Unknown transaction: " + xid));
 
-        session.getChildren(currentXDir, participantsWatcher, notifyParticipantsCallback, order);
+        if (x.getState() == XStateMachine.INIT)
+            notifyToPrepareX(xid);
+        return x.whenPrepared();
     }
 
     /**
-     * watcher for ZK.getChildren in method notifyToPrapareX.
+     * drive the transaction through both phases, it is prepared first unless already done;
+     * the commitment itself follows automatically once every participant is prepared.
      * 
-     * watch the participants collection:
-     *          if there is a node disappearance or vote 'ABORT', abort the whole transaction.
-     *          if all participants vote 'PREPARE', commit the whole transaction.
+     * @param xid
+     * @return future of the final outcome, which is aborted if some participant did not prepare
      */
-    Watcher participantsWatcher = new Watcher() {
+    public CompletableFuture<XOutcome> commit(long xid) {
 
-                                                    @Override
-                                                    public void process(WatchedEvent event) {
+        DXTransaction x = transactions.get(xid);
+        if (x == null)
+            return XFutures.failed(new IllegalArgumentException("Unknown transaction: " + xid));
 
-                                                        if (event.getType() == EventType.NodeChildrenChanged) {
+        if (x.getState() == XStateMachine.INIT)
+            notifyToPrepareX(xid);
+        return x.whenCompleted();
+    }
 
-                                                            abortX();
-                                                        } else if (event.getType() == EventType.NodeCreated) {
+    /**
+     * abort the transaction unless commitment has already been decided
+     * 
+     * @param xid
+     * @return future of the final outcome, which is committed if the abortion came too late
+     */
+    public CompletableFuture<XOutcome> abort(long xid) {
 
-                                                            //if one votes 'ABORT', abort the X
-                                                            //if all vote 'PREPARE' commit the X
-                                                            //else continue watching
-                                                            commitX();
-                                                        }
-                                                    }
-                                                };
+        DXTransaction x = transactions.get(xid);
+        if (x == null)
+            return XFutures.failed(new IllegalArgumentException("Unknown transaction: " + xid));
+
+        CompletableFuture<XOutcome> future = x.whenCompleted();
+        if (x.transit(XStateMachine.INIT, XStateMachine.ABORTING)) {
+            //the participants are not known yet, list them to deliver 'ABORT'
+            metrics.recordAbort(AbortReason.REQUESTED);
+            x.markDecided();
+            sessionOf(xid).getChildren(x.getXDir(), null,
+                metrics.timedChildren(ZkOp.GET_CHILDREN, notifyParticipantsCallback), xid);
+        } else {
+            abortX(x, AbortReason.REQUESTED);
+        }
+        return future;
+    }
 
     /** 
      * callback for ZK.getChildren in method notifyToPrepareX.
      *  
-     *  write 'PREPARE' to each participant node to notify them to prepare for the current transaction.
+     *  register each participant of the transaction whose xid is passed as ctx into its vote tally, 
+     *  watch its node for votes and write 'PREPARE' to it.
      *  */
-    ChildrenCallback notifyParticipantsCallback = new ChildrenCallback() {
+    ChildrenCallback notifyParticipantsCallback = stripes.children(new ChildrenCallback() {
 
                                                     @Override
                                                     public void processResult(int rc, String path,
                                                                               Object ctx,
                                                                               List<String> children) {
 
-                                                        //notify each participant to prepare the X
-                                                        writeMsgToAllParticipantNodes(children,
-                                                            (CoordinatorOrder) ctx);
+                                                        DXTransaction x = transactions.get(ctx);
+                                                        if (x == null)
+                                                            return;
+
+                                                        if (rc != Code.OK.intValue()) {
+                                                            LOG.error("Failed to list participants of "
+                                                                      + x + ": " + Code.get(rc));
+                                                            abortX(x, AbortReason.LIST_FAILED);
+                                                            return;
+                                                        }
+
+                                                        XVoteTally tally = x.getTally();
+                                                        for (String child : children) {
+                                                            if (XPaths.isParticipant(child)
+                                                                && tally.register(XPaths
+                                                                    .participantSeqOf(child)))
+                                                                //read the node before the order is written, so the watch is armed in time
+                                                                sessionOf(x.getXid()).getData(
+                                                                    x.getXDir() + "/"
+                                                                                + child,
+                                                                    participantWatcher,
+                                                                    metrics.timedData(ZkOp.GET_DATA,
+                                                                        participantVoteCallback),
+                                                                    ctx);
+                                                        }
+
+                                                        if (x.getState() == XStateMachine.ABORTING) {
+                                                            //aborted before being prepared
+                                                            deliverDecision(x);
+                                                            closeX(x);
+                                                            return;
+                                                        }
+
+                                                        if (tally.getRegistered() == 0) {
+                                                            //nothing to prepare, the transaction is trivially committed
+                                                            x.transit(XStateMachine.PREPARING,
+                                                                XStateMachine.PREPARED);
+                                                            x.transit(XStateMachine.PREPARED,
+                                                                XStateMachine.COMMITTING);
+                                                            closeX(x);
+                                                            return;
+                                                        }
+
+                                                        if (!x.markNotified(XStateMachine.PREPARING))
+                                                            return;
+
+                                                        x.markPreparing();
+
+                                                        if (onePhaseEnabled
+                                                            && tally.getRegistered() == 1) {
+                                                            //the only participant decides the outcome itself, no vote is needed
+                                                            x.setOnePhase(true);
+                                                            writeMsgToAllParticipantNodes(x,
+                                                                CoordinatorOrder.ONE_PHASE_COMMIT);
+                                                        } else {
+                                                            writeMsgToAllParticipantNodes(x,
+                                                                CoordinatorOrder.PREPARE);
+                                                        }
                                                     }
-                                                };
+                                                });
+
+    /**
+     * watcher on each participant node.
+     * 
+     *          re-read the node on every data change, so that each vote costs one read;
+     *          if the node disappears, the participant is counted as aborted.
+     *          
+     * the transaction is routed by the xid in the path of the watched node.
+     */
+    Watcher participantWatcher = stripes.watcher(new Watcher() {
+
+                                                    @Override
+                                                    public void process(WatchedEvent event) {
+
+                                                        long xid = XPaths.xidOf(event.getPath());
+                                                        DXTransaction x = transactions.get(xid);
+                                                        if (x == null)
+                                                            return;
+
+                                                        if (event.getType() == EventType.NodeDataChanged) {
+
+                                                            sessionOf(xid).getData(event.getPath(),
+                                                                participantWatcher,
+                                                                metrics.timedData(ZkOp.GET_DATA,
+                                                                    participantVoteCallback), xid);
+                                                        } else if (event.getType() == EventType.NodeDeleted) {
+
+                                                            participantLost(x, XPaths
+                                                                .participantSeqOf(event.getPath()));
+                                                        }
+                                                    }
+                                                });
 
     /**
-     * write message to each child in children
+     * callback for ZK.getData on a participant node, count the vote it carries.
      * 
-     * @param children
+     *          if one votes 'ABORTED', abort the X
+     *          if all vote 'PREPARED' or 'READ_ONLY', commit the X with those voted 'PREPARED'
+     *          if all vote 'READ_ONLY', close the X without phase two
+     *          if all report 'COMMITED', close the X
+     *          else continue watching
+     *          
+     * orders written by the coordinator itself are not votes and thus ignored.
+     */
+    DataCallback participantVoteCallback = stripes.data(new DataCallback() {
+
+                                                    @Override
+                                                    public void processResult(int rc, String path,
+                                                                              Object ctx,
+                                                                              byte[] data, Stat stat) {
+
+                                                        DXTransaction x = transactions.get(ctx);
+                                                        if (x == null)
+                                                            return;
+
+                                                        int seq = XPaths.participantSeqOf(path);
+                                                        if (rc == Code.NONODE.intValue()) {
+                                                            participantLost(x, seq);
+                                                            return;
+                                                        }
+
+                                                        ParticipantReport report = ParticipantReport
+                                                            .parse(data);
+                                                        if (rc != Code.OK.intValue() || report == null)
+                                                            return;
+
+                                                        XVoteTally tally = x.getTally();
+                                                        switch (report) {
+                                                            case PREPAERD:
+                                                                if (tally.prepared(seq)
+                                                                    && tally.isAllPrepared()
+                                                                    && x.transit(
+                                                                        XStateMachine.PREPARING,
+                                                                        XStateMachine.PREPARED))
+                                                                    commitX(x);
+                                                                break;
+                                                            case READ_ONLY:
+                                                                if (x.isOnePhase())
+                                                                    completeOnePhase(x);
+                                                                if (!tally.readOnly(seq))
+                                                                    break;
+                                                                if (tally.isAllPrepared()
+                                                                    && x.transit(
+                                                                        XStateMachine.PREPARING,
+                                                                        XStateMachine.PREPARED))
+                                                                    commitX(x);
+                                                                else if (tally.isAllCommitted())
+                                                                    closeX(x);
+                                                                break;
+                                                            case ABORTED:
+                                                                if (tally.aborted(seq))
+                                                                    abortX(x,
+                                                                        AbortReason.VOTED_ABORT);
+                                                                break;
+                                                            case HEURISTIC:
+                                                                if (tally.heuristic(seq)) {
+                                                                    metrics.recordHeuristic();
+                                                                    heuristicX(x, seq);
+                                                                }
+                                                                break;
+                                                            case COMMITED:
+                                                                if (x.isOnePhase())
+                                                                    completeOnePhase(x);
+                                                                if (tally.committed(seq)
+                                                                    && tally.isAllCommitted())
+                                                                    closeX(x);
+                                                                break;
+                                                            default:
+                                                                break;
+                                                        }
+                                                    }
+                                                });
+
+    /**
+     * the only participant committed on its own, only the final outcome is recorded
+     */
+    private void completeOnePhase(DXTransaction x) {
+
+        if (x.transit(XStateMachine.PREPARING, XStateMachine.PREPARED)
+            && x.transit(XStateMachine.PREPARED, XStateMachine.COMMITTING))
+            x.resetTimeout(null);
+    }
+
+    /**
+     * a participant node disappeared: abort the transaction if it is not decided yet,
+     * otherwise the outcome of that branch is unknown.
+     */
+    private void participantLost(DXTransaction x, int seq) {
+
+        if (!x.getTally().aborted(seq))
+            return;
+
+        if (x.getState() == XStateMachine.COMMITTING || x.isOnePhase())
+            LOG.error("Participant " + seq + " disappeared while committing " + x
+                      + ", human intervention is required.");
+        else
+            abortX(x, AbortReason.PARTICIPANT_LOST);
+    }
+
+    /**
+     * @param state
+     * @return the order participants should execute when the transaction is in state, or null if there is none
+     */
+    private static CoordinatorOrder orderOf(int state) {
+
+        switch (state) {
+            case XStateMachine.PREPARING:
+                return CoordinatorOrder.PREPARE;
+            case XStateMachine.COMMITTING:
+                return CoordinatorOrder.COMMIT;
+            case XStateMachine.ABORTING:
+                return CoordinatorOrder.ABORT;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * write message to each live participant of the transaction.
+     * 
+     * all writes are packed into ZK multi requests of at most maxBatchSize operations, so a transaction
+     * costs one proposal per batch instead of one per participant, and each batch is applied atomically.
+     * 
+     * @param x
      * @param order
      */
-    private void writeMsgToAllParticipantNodes(List<String> children, CoordinatorOrder order) {
-        for (String participantPath : children) {
-            session.setData(participantPath, order.toString().getBytes(), -1,
-                writeParticipantNodeCallback, null);
+    private void writeMsgToAllParticipantNodes(DXTransaction x, CoordinatorOrder order) {
+
+        int[] members = x.getTally().liveMembers();
+        if (members.length == 0)
+            return;
+
+        XStore session = sessionOf(x.getXid());
+        byte[] data = XMessageCodec.encode(order);
+        List<Op> batch = new ArrayList<Op>(Math.min(members.length, maxBatchSize));
+        for (int seq : members) {
+            batch.add(Op.setData(XPaths.participantNode(x.getXid(), seq), data, -1));
+            if (batch.size() == maxBatchSize) {
+                writers.execute(x.getXid(), new WriteBatchTask(x, session, batch, data, order));
+                batch = new ArrayList<Op>(Math.min(members.length, maxBatchSize));
+            }
+        }
+        if (!batch.isEmpty())
+            writers.execute(x.getXid(), new WriteBatchTask(x, session, batch, data, order));
+    }
+
+    /**
+     * submit a batch of setData operations as one ZK multi request.
+     * 
+     * a multi request fails as a whole if any participant node has disappeared meanwhile,
+     * in which case the order is written to each node separately; so it is if the writer is interrupted.
+     * once the session expired nothing is written, the transaction is left to recovery.
+     */
+    private class WriteBatchTask extends XMetrics.TimedContext implements Runnable {
+
+        private final DXTransaction    x;
+        private final XStore           session;
+        private final List<Op>         ops;
+        private final byte[]           data;
+        private final CoordinatorOrder order;
+
+        WriteBatchTask(DXTransaction x, XStore session, List<Op> ops, byte[] data,
+                       CoordinatorOrder order) {
+            this.x = x;
+            this.session = session;
+            this.ops = ops;
+            this.data = data;
+            this.order = order;
+        }
+
+        @Override
+        public void run() {
+
+            long start = System.nanoTime();
+            try {
+
+                session.multi(ops);
+                metrics.recordZk(ZkOp.MULTI, start, true);
+                if (isDecision())
+                    decisionWritten(x);
+
+            } catch (KeeperException e) {
+
+                metrics.recordZk(ZkOp.MULTI, start, false);
+                if (e.code() == Code.SESSIONEXPIRED) {
+                    //the transaction is abandoned, recovery reads the nodes again
+                    LOG.warn("Session expired before order " + order + " of " + x
+                             + " was written, it is left to recovery.");
+                    return;
+                }
+                LOG.warn("Failed to write order " + order + " to " + ops.size()
+                         + " participant nodes in one batch: " + e.code());
+                writeEach();
+
+            } catch (InterruptedException e) {
+
+                Thread.currentThread().interrupt();
+                LOG.warn("Interrupted while writing order " + order + " to " + ops.size()
+                         + " participant nodes in one batch, writing them one by one.");
+                writeEach();
+            }
+        }
+
+        boolean isDecision() {
+            return order == CoordinatorOrder.COMMIT || order == CoordinatorOrder.ABORT;
+        }
+
+        /**
+         * write the order to each node of the batch with async requests
+         */
+        private void writeEach() {
+
+            zkStarted();
+            for (Op op : ops)
+                session.setData(op.getPath(), data, -1, timedWriteParticipantNode, this);
+        }
+
+        @Override
+        public String toString() {
+            return order + " of " + x;
         }
     }
 
     /** 
-     * callback for ZK.setData in method writeMsgToAllParticipantNodes
+     * callback for ZK.setData in WriteBatchTask, with the WriteBatchTask passed as ctx
      * 
-     * make sure that each participant get notified by the message sent by the coordinator
+     * a disappeared participant is handled by participantWatcher, other failures are logged.
      *  */
-    StatCallback writeParticipantNodeCallback = new StatCallback() {
+    StatCallback writeParticipantNodeCallback = stripes.stat(new StatCallback() {
 
                                                   @Override
                                                   public void processResult(int rc, String path,
                                                                             Object ctx, Stat stat) {
+
+                                                      WriteBatchTask task = (WriteBatchTask) ctx;
+                                                      if (rc == Code.OK.intValue()) {
+                                                          if (task.isDecision())
+                                                              decisionWritten(task.x);
+                                                      } else if (rc != Code.NONODE.intValue()) {
+                                                          LOG.error("Failed to write order " + ctx
+                                                                    + " to " + path + ": "
+                                                                    + Code.get(rc));
+                                                      }
                                                   }
-                                              };
+                                              });
 
     /**
      * Duty Three:
      * 
      *      watch all participants' votes and decide to abort or commit the transaction;
+     *
+     * @param xid
      */
-    public void decideX() {
+    public void decideX(long xid) {
 
         //do nothing, because the participantWatcher set before will do this.
     }
 
     /**
-     * notify all participants to abort the transaction
+     * deadline of one phase of a transaction, it only takes effect if the transaction is still in that phase
+     * 
+     *      a transaction still preparing is aborted, since some participant never voted;
+     *      a transaction still committing asks for human intervention, since commitment cannot be undone;
+     *      so does a one-phase transaction, since its only participant may have committed already.
+     */
+    private class PhaseTimeout implements Runnable {
+
+        private final DXTransaction x;
+        private final int           phase;
+
+        PhaseTimeout(DXTransaction x, int phase) {
+            this.x = x;
+            this.phase = phase;
+        }
+
+        @Override
+        public void run() {
+
+            //an abandoned transaction is left to recovery
+            if (transactions.get(x.getXid()) != x || x.getState() != phase)
+                return;
+
+            if (phase == XStateMachine.PREPARING && x.isOnePhase()) {
+                alertX(x);
+            } else if (phase == XStateMachine.PREPARING) {
+                LOG.warn("Prepare phase of " + x + " timed out with " + x.getTally());
+                abortX(x, AbortReason.PREPARE_TIMEOUT);
+            } else if (phase == XStateMachine.COMMITTING) {
+                alertX(x);
+            }
+        }
+    }
+
+    /**
+     * the commitment of a transaction did not complete in time, human intervention is required.
+     * 
+     * override it to raise the alert through the monitoring system of the business.
+     * 
+     * @param x
+     */
+    protected void alertX(DXTransaction x) {
+
+        LOG.error("Commit phase of " + x + " timed out with " + x.getTally()
+                  + ", human intervention is required.");
+    }
+
+    /**
+     * a participant gave up committing and reported 'HEURISTIC', its resource may or may not have committed,
+     * so the transaction is never closed and human intervention is required.
+     * 
+     * override it to raise the alert through the monitoring system of the business.
+     * 
+     * @param x
+     * @param seq sequence number of the participant
+     */
+    protected void heuristicX(DXTransaction x, int seq) {
+
+        LOG.error("Participant " + seq + " gave up committing " + x + " with " + x.getTally()
+                  + ", human intervention is required.");
+    }
+
+    /**
+     * notify all participants to abort the transaction, unless commitment has already been decided.
+     * 
+     * nobody waits for aborted participants, so the transaction is closed right after the decision is delivered,
+     * maybe before the order is written; should it never be, recovery presumes the transaction aborted.
+     */
+    private void abortX(DXTransaction x, AbortReason reason) {
+
+        if (x.transitTo(XStateMachine.ABORTING)) {
+            metrics.recordAbort(reason);
+            voted(x);
+            deliverDecision(x);
+            closeX(x);
+        }
+    }
+
+    /**
+     * notify all participants to commit the transaction once all of them are prepared.
+     * 
+     * with a decision log, the commit decision is made durable locally before it is delivered; 
+     * abort decisions are never logged, a transaction unknown to the log is presumed aborted.
+     * should the log fail to take the decision, it is delivered as if there were no log.
+     */
+    private void commitX(final DXTransaction x) {
+
+        if (!x.transit(XStateMachine.PREPARED, XStateMachine.COMMITTING))
+            return;
+
+        voted(x);
+        if (x.getTally().getLive() == 0) {
+            //every participant voted 'READ_ONLY', there is nothing to commit
+            closeX(x);
+            return;
+        }
+        scheduleCommitTimeout(x);
+
+        if (decisionLog == null) {
+            deliverDecision(x);
+            return;
+        }
+
+        boolean logged = decisionLog.append(x.getXid(), CoordinatorOrder.COMMIT,
+            x.getTally().liveMembers(), new Runnable() {
+
+                @Override
+                public void run() {
+                    deliverDecision(x);
+                }
+            });
+        if (!logged) {
+            LOG.error("Failed to log the commit decision of " + x + ", delivering it unlogged.");
+            deliverDecision(x);
+        }
+    }
+
+    /**
+     * the outcome is decided, measure the voting and start measuring the delivery of the decision
+     */
+    private void voted(DXTransaction x) {
+
+        long preparingSince = x.takePreparingSince();
+        if (preparingSince != 0)
+            metrics.recordPhase(Phase.PREPARE_VOTE, preparingSince);
+        x.markDecided();
+    }
+
+    /**
+     * the decision is written to ZK
      */
-    private void abortX() {
-        notifyParticipants(CoordinatorOrder.ABORT);
+    private void decisionWritten(DXTransaction x) {
+
+        long decidedSince = x.takeDecidedSince();
+        if (decidedSince != 0)
+            metrics.recordPhase(Phase.DECISION, decidedSince);
+    }
+
+    private void scheduleCommitTimeout(DXTransaction x) {
+
+        x.resetTimeout(timeoutWheel.schedule(new PhaseTimeout(x, XStateMachine.COMMITTING),
+            commitTimeoutMillis, TimeUnit.MILLISECONDS));
     }
 
     /**
-     * notify all participants to commit the transaction
+     * deliver the decision of phase two, either by writing it to every participant node or,
+     * in decision node mode, by a single write no matter how many participants there are.
      */
-    private void commitX() {
-        notifyParticipants(CoordinatorOrder.COMMIT);
+    private void deliverDecision(DXTransaction x) {
+
+        int state = x.getState();
+        if (x.getTally().getLive() == 0 || !x.markNotified(state))
+            return;
+
+        if (decisionNodeMode)
+            writeDecisionNode(x, orderOf(state));
+        else
+            writeMsgToAllParticipantNodes(x, orderOf(state));
     }
 
+    /**
+     * create the decision node carrying order, all participants watch for it
+     */
+    private void writeDecisionNode(DXTransaction x, CoordinatorOrder order) {
+
+        DecisionWrite write = new DecisionWrite(x, XMessageCodec.encode(order));
+        write.zkStarted();
+        sessionOf(x.getXid()).create(XPaths.decisionNode(x.getXid()), write.data,
+            CreateMode.PERSISTENT, timedWriteDecisionNode, write);
+    }
+
+    /**
+     * a pending write of a decision node, passed as ctx through its retries
+     */
+    private static class DecisionWrite extends XMetrics.TimedContext {
+
+        final DXTransaction x;
+        final byte[]        data;
+
+        DecisionWrite(DXTransaction x, byte[] data) {
+            this.x = x;
+            this.data = data;
+        }
+    }
+
+    /**
+     * callback for ZK.create in method writeDecisionNode, retry on connection loss with the DecisionWrite passed as ctx
+     */
+    StringCallback writeDecisionNodeCallback = stripes.string(new StringCallback() {
+
+                                                 @Override
+                                                 public void processResult(int rc, String path,
+                                                                           Object ctx, String name) {
+
+                                                     DecisionWrite write = (DecisionWrite) ctx;
+                                                     switch (Code.get(rc)) {
+                                                         case OK:
+                                                         case NODEEXISTS:
+                                                             decisionWritten(write.x);
+                                                             break;
+                                                         case CONNECTIONLOSS:
+                                                             write.zkStarted();
+                                                             sessionOf(XPaths.xidOf(path)).create(
+                                                                 path, write.data,
+                                                                 CreateMode.PERSISTENT,
+                                                                 timedWriteDecisionNode, ctx);
+                                                             break;
+                                                         default:
+                                                             LOG.error("Failed to write decision "
+                                                                       + path + ": "
+                                                                       + Code.get(rc));
+                                                             break;
+                                                     }
+                                                 }
+                                             });
+
     /**
      * Duty four:
      * 
-     *      clear and release relative resources if X succeeded finally;
+     *      clear and release relative resources if X succeeded finally, its directory is handed over to the reaper;
      *      or ask for human intervention by alerting
+     *
+     * @param xid
      */
-    public void closeX() {
+    public void closeX(long xid) {
 
-        //do nothing, because the participantWatcher set before will do this.
+        DXTransaction x = transactions.get(xid);
+        if (x != null)
+            closeX(x);
+    }
+
+    /**
+     * close x unless it has been abandoned, another transaction with the same xid may have been adopted meanwhile
+     */
+    private void closeX(DXTransaction x) {
+
+        long xid = x.getXid();
+        if (transactions.get(xid) != x)
+            return;
+
+        if (x.transit(XStateMachine.COMMITTING, XStateMachine.COMMITTED)
+            || x.transit(XStateMachine.ABORTING, XStateMachine.ABORTED) || x.isCompleted()) {
+
+            transactions.remove(xid, x);
+            x.resetTimeout(null);
+            metrics.recordPhase(Phase.COMPLETION, x.getStartNanos());
+            if (decisionLog != null)
+                decisionLog.close(xid);
+            reaper.reap(xid);
+        } else {
+
+            LOG.warn("Reject to close " + x);
+        }
+    }
+
+    /**
+     * adopt a recovered transaction into the transaction table with the votes read from its participant nodes
+     * 
+     * @return the adopted transaction, or null if it is already driven by this coordinator
+     */
+    private DXTransaction adopt(long xid, int[] members, ParticipantReport[] votes) {
+
+        DXTransaction x = new DXTransaction(xid);
+        XVoteTally tally = x.getTally();
+        for (int seq : members)
+            tally.register(seq);
+
+        for (int i = 0; i < members.length; i++) {
+            if (votes[i] == ParticipantReport.PREPAERD) {
+                tally.prepared(members[i]);
+            } else if (votes[i] == ParticipantReport.READ_ONLY) {
+                tally.readOnly(members[i]);
+            } else if (votes[i] == ParticipantReport.COMMITED) {
+                tally.prepared(members[i]);
+                tally.committed(members[i]);
+            } else if (votes[i] == ParticipantReport.ABORTED) {
+                tally.aborted(members[i]);
+            } else if (votes[i] == ParticipantReport.HEURISTIC) {
+                tally.prepared(members[i]);
+                tally.heuristic(members[i]);
+            }
+        }
+
+        return transactions.putIfAbsent(xid, x) == null ? x : null;
+    }
+
+    /**
+     * re-drive the commit decision of a recovered transaction, then watch its participants for 'COMMITED'
+     * 
+     * @return whether the transaction is adopted
+     */
+    boolean recoverCommit(long xid, int[] members, ParticipantReport[] votes) {
+
+        DXTransaction x = adopt(xid, members, votes);
+        if (x == null)
+            return false;
+
+        x.transit(XStateMachine.INIT, XStateMachine.PREPARING);
+        x.markNotified(XStateMachine.PREPARING);
+        x.transit(XStateMachine.PREPARING, XStateMachine.PREPARED);
+        x.transit(XStateMachine.PREPARED, XStateMachine.COMMITTING);
+        scheduleCommitTimeout(x);
+        deliverDecision(x);
+
+        for (int seq : x.getTally().liveMembers())
+            sessionOf(xid).getData(XPaths.participantNode(xid, seq), participantWatcher,
+                metrics.timedData(ZkOp.GET_DATA, participantVoteCallback), xid);
+        return true;
+    }
+
+    /**
+     * a recovered one-phase transaction whose only participant has not reported yet, wait for its outcome
+     * 
+     * @return whether the transaction is adopted
+     */
+    boolean recoverOnePhase(long xid, int[] members, ParticipantReport[] votes) {
+
+        DXTransaction x = adopt(xid, members, votes);
+        if (x == null)
+            return false;
+
+        x.setOnePhase(true);
+        x.transit(XStateMachine.INIT, XStateMachine.PREPARING);
+        x.markNotified(XStateMachine.PREPARING);
+        x.resetTimeout(timeoutWheel.schedule(new PhaseTimeout(x, XStateMachine.PREPARING),
+            prepareTimeoutMillis, TimeUnit.MILLISECONDS));
+        for (int seq : x.getTally().liveMembers())
+            sessionOf(xid).getData(XPaths.participantNode(xid, seq), participantWatcher,
+                metrics.timedData(ZkOp.GET_DATA, participantVoteCallback), xid);
+        return true;
+    }
+
+    /**
+     * re-drive the abortion of a recovered transaction
+     * 
+     * @return whether the transaction is adopted
+     */
+    boolean recoverAbort(long xid, int[] members, ParticipantReport[] votes) {
+
+        DXTransaction x = adopt(xid, members, votes);
+        if (x == null)
+            return false;
+
+        abortX(x, AbortReason.RECOVERED);
+        return true;
+    }
+
+    /**
+     * a recovered transaction turned out to be completed
+     */
+    void recoverCompleted(long xid) {
+
+        if (decisionLog != null)
+            decisionLog.close(xid);
+        reaper.reap(xid);
+    }
+
+    /**
+     * share sessions through sessionManager instead of the process-wide one
+     * 
+     * @param sessionManager
+     */
+    public void setSessionManager(SessionManager sessionManager) {
+
+        this.storeProvider = XZkStore.providerOf(sessionManager);
+    }
+
+    /**
+     * run on the stores of storeProvider instead of ZK sessions, e.g. an XMemoryStore;
+     * participants of the transactions must use the same stores
+     * 
+     * @param storeProvider
+     */
+    public void setStoreProvider(XStore.Provider storeProvider) {
+
+        this.storeProvider = storeProvider;
+    }
+
+    /**
+     * spread transactions over shards, participants must be configured with the same shards
+     * 
+     * @param shards
+     */
+    public void setShards(XShards shards) {
+
+        this.shards = shards;
+    }
+
+    /**
+     * switch the one-phase commit of transactions with a single participant
+     * 
+     * @param onePhaseEnabled
+     */
+    public void setOnePhaseEnabled(boolean onePhaseEnabled) {
+
+        this.onePhaseEnabled = onePhaseEnabled;
+    }
+
+    /**
+     * set the deadline of the prepare phase, after which the transaction is aborted
+     * 
+     * @param prepareTimeoutMillis
+     */
+    public void setPrepareTimeoutMillis(long prepareTimeoutMillis) {
+
+        this.prepareTimeoutMillis = prepareTimeoutMillis;
+    }
+
+    /**
+     * set the deadline of the commit phase, after which human intervention is asked for
+     * 
+     * @param commitTimeoutMillis
+     */
+    public void setCommitTimeoutMillis(long commitTimeoutMillis) {
+
+        this.commitTimeoutMillis = commitTimeoutMillis;
+    }
+
+    /**
+     * set the id written into transaction directories, only transactions with this owner are recovered.
+     * 
+     * the id must be unique among the coordinators sharing a namespace and stable across restarts of one coordinator,
+     * the generated default is unique but changes with every instance, so nothing is recovered after a restart.
+     * 
+     * @param coordinatorId
+     */
+    public void setCoordinatorId(String coordinatorId) {
+
+        if (coordinatorId == null || coordinatorId.isEmpty())
+            throw new IllegalArgumentException("coordinatorId must not be empty.");
+        this.coordinatorId = coordinatorId;
+        this.coordinatorIdSet = true;
+    }
+
+    public String getCoordinatorId() {
+        return coordinatorId;
+    }
+
+    /**
+     * @return an id unique to this instance: pid@host of the JVM and a random suffix
+     */
+    private static String newCoordinatorId() {
+
+        return "dx-" + ManagementFactory.getRuntimeMXBean().getName() + "-"
+               + Long.toHexString(new SecureRandom().nextLong() & Long.MAX_VALUE);
+    }
+
+    /**
+     * set the upper bound of transactions read at the same time during recovery
+     * 
+     * @param recoveryParallelism
+     */
+    public void setRecoveryParallelism(int recoveryParallelism) {
+
+        if (recoveryParallelism <= 0)
+            throw new IllegalArgumentException("recoveryParallelism must be positive: "
+                                               + recoveryParallelism);
+
+        this.recoveryParallelism = recoveryParallelism;
+    }
+
+    /**
+     * record commit decisions in a local write-ahead log before delivering them, the log must have been opened
+     * 
+     * @param decisionLog
+     */
+    public void setDecisionLog(XDecisionLog decisionLog) {
+
+        this.decisionLog = decisionLog;
+    }
+
+    /**
+     * switch the delivery of phase two between one decision node and every participant node
+     * 
+     * @param decisionNodeMode
+     */
+    public void setDecisionNodeMode(boolean decisionNodeMode) {
+
+        this.decisionNodeMode = decisionNodeMode;
+    }
+
+    /**
+     * set the upper bound of operations in one batch, very large fan-outs are split into several batches
+     * 
+     * @param maxBatchSize
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+
+        if (maxBatchSize <= 0)
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+
+        this.maxBatchSize = maxBatchSize;
     }
 }
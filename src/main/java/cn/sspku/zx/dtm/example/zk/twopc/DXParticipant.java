@@ -5,21 +5,33 @@
 package cn.sspku.zx.dtm.example.zk.twopc;
 
 import java.io.IOException;
-import java.nio.file.Paths;
-
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
 import org.apache.zookeeper.AsyncCallback.StatCallback;
 import org.apache.zookeeper.AsyncCallback.StringCallback;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.Watcher.Event.EventType;
-import org.apache.zookeeper.ZooDefs.Ids;
-import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import cn.sspku.zx.dtm.example.zk.SessionManager;
+import cn.sspku.zx.dtm.example.zk.twopc.XMessage.CoordinatorOrder;
 import cn.sspku.zx.dtm.example.zk.twopc.XMessage.ParticipantReport;
+import cn.sspku.zx.dtm.example.zk.twopc.XMetrics.Phase;
+import cn.sspku.zx.dtm.example.zk.twopc.XMetrics.ZkOp;
 
 /**
  * DTParticipant acts as the  participant of distributed transaction
@@ -32,39 +44,90 @@ import cn.sspku.zx.dtm.example.zk.twopc.XMessage.ParticipantReport;
  * @author zhangxu
  * @version $Id: DTParticipant.java, v 0.1 2015年9月7日 下午9:38:44 zhangxu Exp $
  */
-public class DXParticipant implements Watcher {
+public class DXParticipant {
 
     private static final Logger LOG             = LoggerFactory.getLogger(DXParticipant.class);
 
-    private ZooKeeper           session;
-    private static final String DX_PREFIX       = "dx";
-    private static final String PARTICIPANT_PREFIX = "participant-";
-    private static final String ZK_SERVER_URL   = "localhost:1281";
-    private static final int    SESSION_TIMEOUT = 9000;
+    /** one store per shard */
+    private XStore[]            sessions;
+    private SessionWatcher[]    sessionWatchers;
+    private XStore.Provider     storeProvider   = XZkStore.DEFAULT_PROVIDER;
+    private XShards             shards          = XShards.DEFAULT;
+
+    /** all branches this participant takes part in, keyed by xid */
+    private final ConcurrentMap<Long, DXBranch> branches = new ConcurrentHashMap<Long, DXBranch>();
+
+    /** default number of threads running business callbacks unless an executor is set */
+    public static final int     DEFAULT_BUSINESS_THREADS = 16;
+
+    /** runs the business callbacks triggered by orders, so they never block the ZK event thread */
+    private Executor            businessExecutor;
+
+    /** the executor created by start(), shut down by destroy() */
+    private ExecutorService     ownedExecutor;
+
+    /** reschedules failed business commitments with backoff */
+    private final XCommitRetrier retrier = new XCommitRetrier(this);
+
+    /** completes registrations off the ZK event thread, so continuations of whenRegistered() do not block it */
+    private final XStripedDispatcher stripes = new XStripedDispatcher("dx-participant");
+
+    private XMetrics            metrics         = XMetrics.getDefault();
+
+    /** branches in flight, read by the metrics */
+    private final XMetrics.Gauge inFlight       = new XMetrics.Gauge() {
 
-    private String              currentXDir;
+                                                    @Override
+                                                    public long get() {
+                                                        return branches.size();
+                                                    }
+                                                };
 
     /**
-    * initialize the session to ZK server;
+    * acquire the shared session to each shard;
+    * 
+    * @throws IOException if a session cannot be created
     */
-    public void start() {
-        try {
-            session = new ZooKeeper(ZK_SERVER_URL, SESSION_TIMEOUT, this);
-
-        } catch (IOException e) {
+    public void start() throws IOException {
 
+        if (businessExecutor == null) {
+            ownedExecutor = XExecutors.newBoundedPool(DEFAULT_BUSINESS_THREADS);
+            businessExecutor = ownedExecutor;
+        }
+        retrier.start(businessExecutor);
+        stripes.start();
+        metrics.addBranchGauge(inFlight);
+
+        sessions = new XStore[shards.size()];
+        sessionWatchers = new SessionWatcher[shards.size()];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = storeProvider.acquire(shards.get(i).getAddress());
+            sessionWatchers[i] = new SessionWatcher(i);
+            sessions[i].addWatcher(sessionWatchers[i]);
         }
     }
 
     /**
-    * close the session to ZK server and release resources
+    * release the sessions to all shards and other resources
     */
     public void destroy() {
 
         try {
 
-            session.close();
-            session = null;
+            for (int i = 0; i < sessions.length; i++) {
+                sessions[i].removeWatcher(sessionWatchers[i]);
+                sessions[i].release();
+            }
+            sessions = null;
+            sessionWatchers = null;
+
+            retrier.stop();
+            stripes.stop();
+            metrics.removeBranchGauge(inFlight);
+            if (ownedExecutor != null) {
+                ownedExecutor.shutdown();
+                businessExecutor = ownedExecutor = null;
+            }
 
         } catch (InterruptedException e) {
 
@@ -72,109 +135,579 @@ public class DXParticipant implements Watcher {
         }
     }
 
-    /** 
-     * @see org.apache.zookeeper.Watcher#process(org.apache.zookeeper.WatchedEvent)
+    /**
+     * watcher on the session to one shard.
      * 
-     * watch for session changes
+     * the participant nodes are ephemeral, so they and the watches on them are gone once the session expired,
+     * the branches of the shard are resolved again as soon as the new session is connected.
      */
-    @Override
-    public void process(WatchedEvent event) {
+    private class SessionWatcher implements Watcher {
 
-        if (event.getType() != EventType.None)
-            return;
+        private final int        shard;
+
+        /** whether the branches should be resolved once the session is connected */
+        private volatile boolean resyncPending;
+
+        SessionWatcher(int shard) {
+            this.shard = shard;
+        }
 
-        switch (event.getState()) {
-            case SyncConnected:
-                break;
-            case Expired:
-                break;
-            case Disconnected:
-                break;
+        @Override
+        public synchronized void process(WatchedEvent event) {
+
+            if (event.getType() != EventType.None)
+                return;
+
+            switch (event.getState()) {
+                case SyncConnected:
+                    if (resyncPending) {
+                        resyncPending = false;
+                        resync(shard);
+                    }
+                    break;
+                case Expired:
+                    resyncPending = true;
+                    break;
+                case Disconnected:
+                    break;
+
+                default:
+                    break;
+            }
+        }
+    }
 
-            default:
-                break;
+    /**
+     * resolve the branches in the shard which lost their participant nodes with an expired session.
+     * 
+     *      1>the coordinator drops or counts as aborted a vanished participant, unless it has already decided to commit;
+     *      2>so a branch which has not voted 'PREPARED' yet is aborted at once, its vote could not be counted any more;
+     *      3>a prepared branch reads the decision node and the other participant nodes,
+     *        'COMMIT' is executed once any of them was told to commit or has committed,
+     *        'ABORT' once any was told to abort or has aborted, or once the transaction directory is gone;
+     *      4>while nothing is decided, the transaction directory and the other participant nodes are watched.
+     * 
+     * the participant node is not re-created, the coordinator would not count a new one.
+     */
+    private void resync(int shard) {
+
+        for (DXBranch branch : branches.values()) {
+            if (shards.indexOf(branch.getXid()) != shard || branch.getNode() == null)
+                continue;
+            if (branch.getState() < XStateMachine.PREPARED)
+                dispatch(CoordinatorOrder.ABORT, branch.getXid());
+            else
+                resolve(branch.getXid());
         }
     }
 
+    private void resolve(long xid) {
+
+        sessionOf(xid).getChildren(XPaths.xDir(xid), resolveWatcher,
+            metrics.timedChildren(ZkOp.GET_CHILDREN, resolveChildrenCallback), xid);
+    }
+
+    /**
+     * @return whether branch has been told neither to commit nor to abort
+     */
+    private static boolean isInDoubt(DXBranch branch) {
+
+        return branch != null && branch.getState() <= XStateMachine.PREPARED;
+    }
+
+    /**
+     * watcher on the transaction directory and the other participant nodes of a branch being resolved
+     */
+    Watcher resolveWatcher = new Watcher() {
+
+                                           @Override
+                                           public void process(WatchedEvent event) {
+
+                                               if (event.getType() == EventType.None)
+                                                   return;
+
+                                               long xid = XPaths.xidOf(event.getPath());
+                                               if (isInDoubt(branches.get(xid)))
+                                                   resolve(xid);
+                                           }
+                                       };
+
+    /**
+     * callback for ZK.getChildren on the transaction directory of a branch being resolved
+     */
+    ChildrenCallback resolveChildrenCallback = new ChildrenCallback() {
+
+                                           @Override
+                                           public void processResult(int rc, String path,
+                                                                     Object ctx,
+                                                                     List<String> children) {
+
+                                               long xid = (Long) ctx;
+                                               DXBranch branch = branches.get(xid);
+                                               if (!isInDoubt(branch))
+                                                   return;
+
+                                               if (rc == Code.NONODE.intValue()) {
+                                                   //closed without this branch, so it was aborted
+                                                   dispatch(CoordinatorOrder.ABORT, xid);
+                                                   return;
+                                               }
+                                               if (rc != Code.OK.intValue()) {
+                                                   LOG.warn("Failed to resolve " + branch + ": "
+                                                            + Code.get(rc));
+                                                   //tried again once the session is connected
+                                                   sessionWatchers[shards.indexOf(xid)]
+                                                       .resyncPending = true;
+                                                   return;
+                                               }
+
+                                               XStore session = sessionOf(xid);
+                                               if (children.contains(XPaths.DECISION)) {
+                                                   session.getData(XPaths.decisionNode(xid), null,
+                                                       metrics.timedData(ZkOp.GET_DATA,
+                                                           orderCallback),
+                                                       xid);
+                                                   return;
+                                               }
+                                               String own = branch.getNode();
+                                               for (String child : children) {
+                                                   String node = path + "/" + child;
+                                                   if (XPaths.isParticipant(child)
+                                                       && !node.equals(own))
+                                                       session.getData(node, resolveWatcher,
+                                                           metrics.timedData(ZkOp.GET_DATA,
+                                                               resolveDataCallback), xid);
+                                               }
+                                           }
+                                       };
+
+    /**
+     * callback for ZK.getData on another participant node of a branch being resolved, follow the decision it reveals
+     */
+    DataCallback resolveDataCallback = new DataCallback() {
+
+                                           @Override
+                                           public void processResult(int rc, String path,
+                                                                     Object ctx, byte[] data,
+                                                                     Stat stat) {
+
+                                               long xid = (Long) ctx;
+                                               if (rc != Code.OK.intValue()
+                                                   || !isInDoubt(branches.get(xid)))
+                                                   return;
+
+                                               CoordinatorOrder order = CoordinatorOrder
+                                                   .parse(data);
+                                               ParticipantReport report = ParticipantReport
+                                                   .parse(data);
+                                               if (order == CoordinatorOrder.COMMIT
+                                                   || report == ParticipantReport.COMMITED)
+                                                   dispatch(CoordinatorOrder.COMMIT, xid);
+                                               else if (order == CoordinatorOrder.ABORT
+                                                        || report == ParticipantReport.ABORTED)
+                                                   dispatch(CoordinatorOrder.ABORT, xid);
+                                           }
+                                       };
+
+    /**
+     * @return the session to the shard of the transaction xid
+     */
+    private XStore sessionOf(long xid) {
+
+        return sessions[shards.indexOf(xid)];
+    }
+
+    /**
+     * share sessions through sessionManager instead of the process-wide one
+     * 
+     * @param sessionManager
+     */
+    public void setSessionManager(SessionManager sessionManager) {
+
+        this.storeProvider = XZkStore.providerOf(sessionManager);
+    }
+
+    /**
+     * run on the stores of storeProvider instead of ZK sessions, e.g. an XMemoryStore;
+     * coordinators of the transactions must use the same stores
+     * 
+     * @param storeProvider
+     */
+    public void setStoreProvider(XStore.Provider storeProvider) {
+
+        this.storeProvider = storeProvider;
+    }
+
+    /**
+     * run business callbacks on executor instead of a pool of DEFAULT_BUSINESS_THREADS platform threads, 
+     * e.g. XExecutors.newVirtualThreadPerTask(); the executor is not shut down by destroy().
+     * 
+     * @param businessExecutor
+     */
+    public void setBusinessExecutor(Executor businessExecutor) {
+
+        this.businessExecutor = businessExecutor;
+    }
+
+    /**
+     * @return the retrier of failed business commitments, to tune its backoff or read its counters
+     */
+    public XCommitRetrier getRetrier() {
+
+        return retrier;
+    }
+
+    /**
+     * record to metrics instead of the process-wide ones, set before start()
+     * 
+     * @param metrics
+     */
+    public void setMetrics(XMetrics metrics) {
+
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the dispatcher of ZK events, to tune its stripes before start() or read their queue depths
+     */
+    public XStripedDispatcher getDispatcher() {
+
+        return stripes;
+    }
+
+    /**
+     * take part in transactions spread over shards, which must be the same as the coordinator's
+     * 
+     * @param shards
+     */
+    public void setShards(XShards shards) {
+
+        this.shards = shards;
+    }
+
     /**
      * Duty One:
      * 
      *     register itself to the coordinator by add a node in the certain transaction directory;
+     *
+     * @param xid
      */
-    public void registerToX() {
+    public void registerToX(long xid) {
+
+        register(xid);
+    }
+
+    /**
+     * register to the transaction like registerToX
+     * 
+     * @param xid
+     * @return future of the xid, completed once the participant node is created
+     */
+    public CompletableFuture<Long> register(long xid) {
+
+        DXBranch branch = new DXBranch(xid);
+        DXBranch existing = branches.putIfAbsent(xid, branch);
+        if (existing != null)
+            return existing.whenRegistered();
 
-        session.create(currentXDir, new byte[0], Ids.OPEN_ACL_UNSAFE,
-            CreateMode.EPHEMERAL_SEQUENTIAL, registerToXCallback, null);
+        sessionOf(xid).create(XPaths.participantPrefix(xid), new byte[0],
+            CreateMode.EPHEMERAL_SEQUENTIAL,
+            metrics.timedString(ZkOp.CREATE, registerToXCallback), xid);
+        return branch.whenRegistered();
+    }
+
+    /**
+     * @param xid
+     * @return future of the final outcome of the branch in the transaction, which the coordinator drives
+     */
+    public CompletableFuture<XOutcome> outcome(long xid) {
+
+        DXBranch branch = branches.get(xid);
+        if (branch == null)
+            return XFutures.failed(new IllegalArgumentException("Not registered to transaction: "
+                                                                + xid));
+        return branch.whenCompleted();
     }
 
     /**
      * callback for ZK.create in method registerToX.
      * 
-     * guarantee that participant node is successfully created
+     * guarantee that participant node is successfully created, then watch it for orders from the coordinator
      */
-    StringCallback registerToXCallback = new StringCallback() {
+    StringCallback registerToXCallback = stripes.string(new StringCallback() {
 
                                            @Override
                                            public void processResult(int rc, String path,
                                                                      Object ctx, String name) {
-                                               currentXDir = name;
+
+                                               if (rc != Code.OK.intValue()) {
+                                                   LOG.error("Failed to register to " + path
+                                                             + ": " + Code.get(rc));
+                                                   DXBranch branch = branches.remove(ctx);
+                                                   if (branch != null)
+                                                       branch.whenRegistered()
+                                                           .completeExceptionally(
+                                                               KeeperException.create(
+                                                                   Code.get(rc), path));
+                                                   return;
+                                               }
+
+                                               DXBranch branch = branches.get(ctx);
+                                               if (branch == null)
+                                                   return;
+
+                                               metrics.recordPhase(Phase.REGISTER,
+                                                   branch.getStartNanos());
+                                               branch.setNode(name);
+                                               XStore session = sessionOf((Long) ctx);
+                                               session.getData(name, orderWatcher,
+                                                   metrics.timedData(ZkOp.GET_DATA, orderCallback),
+                                                   ctx);
+                                               session.exists(XPaths.decisionNode((Long) ctx),
+                                                   decisionWatcher,
+                                                   metrics.timedStat(ZkOp.EXISTS, decisionCallback),
+                                                   ctx);
+                                               branch.whenRegistered().complete((Long) ctx);
+                                           }
+                                       });
+
+    /**
+     * watcher on the decision node of a transaction, read the decision once it is written
+     */
+    Watcher decisionWatcher = new Watcher() {
+
+                                           @Override
+                                           public void process(WatchedEvent event) {
+
+                                               if (event.getType() != EventType.NodeCreated)
+                                                   return;
+
+                                               long xid = XPaths.xidOf(event.getPath());
+                                               if (branches.containsKey(xid))
+                                                   sessionOf(xid).getData(event.getPath(), null,
+                                                       metrics.timedData(ZkOp.GET_DATA,
+                                                           orderCallback),
+                                                       xid);
+                                           }
+                                       };
+
+    /**
+     * callback for ZK.exists on the decision node, read the decision if it has already been written
+     */
+    StatCallback decisionCallback = new StatCallback() {
+
+                                           @Override
+                                           public void processResult(int rc, String path,
+                                                                     Object ctx, Stat stat) {
+
+                                               if (rc == Code.OK.intValue() && stat != null)
+                                                   sessionOf((Long) ctx).getData(path, null,
+                                                       metrics.timedData(ZkOp.GET_DATA,
+                                                           orderCallback),
+                                                       ctx);
                                            }
                                        };
 
+    /**
+     * watcher on the participant node, re-read it when the coordinator writes an order
+     */
+    Watcher orderWatcher = new Watcher() {
+
+                                           @Override
+                                           public void process(WatchedEvent event) {
+
+                                               if (event.getType() != EventType.NodeDataChanged)
+                                                   return;
+
+                                               long xid = XPaths.xidOf(event.getPath());
+                                               if (branches.containsKey(xid))
+                                                   sessionOf(xid).getData(event.getPath(),
+                                                       orderWatcher,
+                                                       metrics.timedData(ZkOp.GET_DATA,
+                                                           orderCallback),
+                                                       xid);
+                                           }
+                                       };
+
+    /**
+     * callback for ZK.getData on the participant node or the decision node, execute the order written by the coordinator.
+     * 
+     * the participant's own reports are written into the same node, they are not orders and thus ignored.
+     */
+    DataCallback orderCallback = new DataCallback() {
+
+                                           @Override
+                                           public void processResult(int rc, String path,
+                                                                     Object ctx, byte[] data,
+                                                                     Stat stat) {
+
+                                               if (rc != Code.OK.intValue())
+                                                   return;
+
+                                               CoordinatorOrder order = CoordinatorOrder
+                                                   .parse(data);
+                                               if (order == null)
+                                                   return;
+
+                                               dispatch(order, (Long) ctx);
+                                           }
+                                       };
+
+    /**
+     * hand an order over to the business executor, the vote is written from there once the business callback returned.
+     * 
+     * an order is executed at most once per branch by its state transitions, so duplicates may run concurrently.
+     */
+    private void dispatch(CoordinatorOrder order, long xid) {
+
+        try {
+
+            businessExecutor.execute(new OrderTask(order, xid));
+
+        } catch (RejectedExecutionException e) {
+
+            LOG.error("Business executor rejected order " + order + " of " + XPaths.xDir(xid), e);
+        }
+    }
+
+    /**
+     * execute one order of the coordinator on the business executor
+     */
+    private class OrderTask implements Runnable {
+
+        private final CoordinatorOrder order;
+        private final long             xid;
+
+        OrderTask(CoordinatorOrder order, long xid) {
+            this.order = order;
+            this.xid = xid;
+        }
+
+        @Override
+        public void run() {
+
+            switch (order) {
+                case PREPARE:
+                    prepareForX(xid);
+                    break;
+                case COMMIT:
+                    commitX(xid);
+                    break;
+                case ABORT:
+                    abortX(xid);
+                    break;
+                case ONE_PHASE_COMMIT:
+                    commitOnePhase(xid);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
     /**
      * Duty Two:
      *      
      *      prepare the transaction and vote;
      *      if exception occurred in business activity, vote 'ABORTED'
      *      else vote 'PREPARED'
+     *
+     * @param xid
      */
-    public void prepareForX() {
+    public void prepareForX(long xid) {
+
+        DXBranch branch = branches.get(xid);
+        if (prepare(branch))
+            votePrepared(branch);
+    }
+
+    /**
+     * a branch whose preparation changed nothing is released at once by voting 'READ_ONLY',
+     * it takes no part in phase two.
+     * 
+     * @return whether the branch is released
+     */
+    private boolean releaseIfReadOnly(DXBranch branch) {
+
+        if (!isBusinessReadOnly()
+            || !branch.transit(XStateMachine.PREPARING, XStateMachine.COMMITTED))
+            return false;
+
+        writeMsgToParticipantNode(branch, ParticipantReport.READ_ONLY);
+        branches.remove(branch.getXid());
+        return true;
+    }
+
+    /**
+     * do the business preparation, vote 'ABORTED' if it failed
+     * 
+     * @return whether the branch is prepared
+     */
+    private boolean prepare(DXBranch branch) {
+
+        if (branch == null || !branch.transit(XStateMachine.INIT, XStateMachine.PREPARING))
+            return false;
 
         try {
 
-            doBusinessPrepare();
+            doBusinessPrepare(branch.getXid());
 
         } catch (Exception e) {
 
-            voteAborted();
+            LOG.error("Failed to prepare " + branch, e);
+            if (branch.transit(XStateMachine.PREPARING, XStateMachine.ABORTED))
+                voteAborted(branch);
+            return false;
         }
 
-        votePrepared();
+        if (releaseIfReadOnly(branch)
+            || !branch.transit(XStateMachine.PREPARING, XStateMachine.PREPARED))
+            return false;
+
+        //an abort which arrived meanwhile waited for the preparation, it is run now
+        if (branch.isAbortRequested()) {
+            abortX(branch.getXid());
+            return false;
+        }
+        return true;
     }
 
     /**
      * vote 'PREPARED' in prepare phrase
      */
-    private void votePrepared() {
+    private void votePrepared(DXBranch branch) {
 
-        writeMsgToParticipantNode(ParticipantReport.PREPAERD);
+        writeMsgToParticipantNode(branch, ParticipantReport.PREPAERD);
     }
 
     /**
      * vote 'ABORTED' in prepare phrase
      */
-    private void voteAborted() {
+    private void voteAborted(DXBranch branch) {
 
-        writeMsgToParticipantNode(ParticipantReport.ABORTED);
+        writeMsgToParticipantNode(branch, ParticipantReport.ABORTED);
+        branches.remove(branch.getXid());
     }
 
     /**
      * vote 'COMMITED' in prepare phrase
      */
-    private void voteCommitted() {
+    private void voteCommitted(DXBranch branch) {
 
-        writeMsgToParticipantNode(ParticipantReport.COMMITED);
+        writeMsgToParticipantNode(branch, ParticipantReport.COMMITED);
+        branches.remove(branch.getXid());
     }
 
     /**
      * write message to participant node
      * 
+     * @param branch
      * @param report
      */
-    private void writeMsgToParticipantNode(ParticipantReport report) {
-        
-        session.setData(Paths.get(DX_PREFIX, PARTICIPANT_PREFIX).toString(), report.toString()
-            .getBytes(), -1, writeParticipantNodeCallback, report);
+    private void writeMsgToParticipantNode(DXBranch branch, ParticipantReport report) {
+
+        sessionOf(branch.getXid()).setData(branch.getNode(), XMessageCodec.encode(report),
+            -1, metrics.timedStat(ZkOp.SET_DATA, writeParticipantNodeCallback), report);
     }
 
     /** 
@@ -196,18 +729,105 @@ public class DXParticipant implements Watcher {
     protected void doBusinessPrepare() {
     }
 
+    /**
+     * do business activity of the transaction xid, it calls doBusinessPrepare() by default
+     * 
+     * @param xid
+     */
+    protected void doBusinessPrepare(long xid) {
+        doBusinessPrepare();
+    }
+
+    /**
+     * tell whether the business activity just prepared made no change, in which case the branch votes 'READ_ONLY'.
+     * 
+     * override it for read-only branches, e.g. validations.
+     */
+    protected boolean isBusinessReadOnly() {
+        return false;
+    }
+
     /**
      * commit the transaction
+     *
+     * @param xid
+     */
+    public void commitX(long xid) {
+
+        DXBranch branch = branches.get(xid);
+        if (branch == null || !branch.transit(XStateMachine.PREPARED, XStateMachine.COMMITTING))
+            return;
+
+        commit(branch);
+    }
+
+    /**
+     * prepare and commit at once as the only participant of a transaction, without voting 'PREPARED'.
+     * only the outcome, 'COMMITED', 'READ_ONLY' or 'ABORTED', is reported.
+     *
+     * @param xid
      */
-    public void commitX() {
+    public void commitOnePhase(long xid) {
+
+        DXBranch branch = branches.get(xid);
+        if (!prepare(branch) || !branch.transit(XStateMachine.PREPARED, XStateMachine.COMMITTING))
+            return;
+
+        commit(branch);
+    }
+
+    /**
+     * do the business commitment, hand it over to the retrier if it failed
+     */
+    private void commit(DXBranch branch) {
+
         try {
-            doBusinessCommit();
+
+            doBusinessCommit(branch.getXid());
 
         } catch (Exception e) {
-            commitX();
+
+            LOG.warn("Failed to commit " + branch + ", retrying later: " + e);
+            retrier.retry(branch, e);
+            return;
         }
 
-        voteCommitted();
+        committed(branch);
+    }
+
+    /**
+     * the business commitment succeeded, report 'COMMITED'
+     */
+    void committed(DXBranch branch) {
+
+        if (branch.transit(XStateMachine.COMMITTING, XStateMachine.COMMITTED))
+            voteCommitted(branch);
+    }
+
+    /**
+     * the retrier gave up the commitment, the branch is left in COMMITTING and reports 'HEURISTIC',
+     * so the coordinator learns the outcome too.
+     */
+    void gaveUp(DXBranch branch, XHeuristicReport report) {
+
+        writeMsgToParticipantNode(branch, ParticipantReport.HEURISTIC);
+        branches.remove(branch.getXid());
+        branch.abandon(new IllegalStateException("Heuristic hazard: " + report,
+            report.getLastCause()));
+        onHeuristicOutcome(report);
+    }
+
+    /**
+     * called once a branch is given up, it logs the report by default.
+     * 
+     * override it to raise an alarm or to record the branch for manual resolution.
+     *
+     * @param report
+     */
+    protected void onHeuristicOutcome(XHeuristicReport report) {
+
+        LOG.error("Gave up committing, human intervention is required: " + report,
+            report.getLastCause());
     }
 
     /**
@@ -215,4 +835,64 @@ public class DXParticipant implements Watcher {
      */
     protected void doBusinessCommit() {
     }
+
+    /**
+     * do the business commitment of the transaction xid, it calls doBusinessCommit() by default
+     * 
+     * @param xid
+     */
+    protected void doBusinessCommit(long xid) {
+        doBusinessCommit();
+    }
+
+    /**
+     * abort the transaction, a branch which has already voted 'ABORTED' is left alone.
+     * 
+     * a branch still PREPARING is aborted by prepare() once doBusinessPrepare returned,
+     * so the rollback never runs before or alongside the preparation it undoes.
+     *
+     * @param xid
+     */
+    public void abortX(long xid) {
+
+        DXBranch branch = branches.get(xid);
+        if (branch == null)
+            return;
+
+        if (branch.getState() == XStateMachine.PREPARING) {
+            branch.requestAbort();
+            //re-read, the preparation may have ended before it could see the request
+            if (branch.getState() == XStateMachine.PREPARING)
+                return;
+        }
+        if (!branch.transitTo(XStateMachine.ABORTING))
+            return;
+
+        try {
+
+            doBusinessRollback(xid);
+
+        } catch (Exception e) {
+
+            LOG.error("Failed to roll back " + branch, e);
+        }
+
+        branch.transit(XStateMachine.ABORTING, XStateMachine.ABORTED);
+        branches.remove(xid);
+    }
+
+    /**
+     * undo the business activity done in prepare phrase
+     */
+    protected void doBusinessRollback() {
+    }
+
+    /**
+     * undo the business activity of the transaction xid, it calls doBusinessRollback() by default
+     * 
+     * @param xid
+     */
+    protected void doBusinessRollback(long xid) {
+        doBusinessRollback();
+    }
 }
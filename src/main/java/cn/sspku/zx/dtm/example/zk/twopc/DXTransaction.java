@@ -0,0 +1,128 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * state of one distributed transaction driven by DXCoordinator, keyed by its xid in the coordinator's transaction table
+ */
+public class DXTransaction extends XStateMachine {
+
+    private static final AtomicIntegerFieldUpdater<DXTransaction> NOTIFIED = AtomicIntegerFieldUpdater
+                                                                               .newUpdater(
+                                                                                   DXTransaction.class,
+                                                                                   "notified");
+
+    private static final AtomicLongFieldUpdater<DXTransaction>    PREPARING_SINCE = AtomicLongFieldUpdater
+                                                                                      .newUpdater(
+                                                                                          DXTransaction.class,
+                                                                                          "preparingSince");
+
+    private static final AtomicLongFieldUpdater<DXTransaction>    DECIDED_SINCE   = AtomicLongFieldUpdater
+                                                                                      .newUpdater(
+                                                                                          DXTransaction.class,
+                                                                                          "decidedSince");
+
+    private final long       xid;
+    private final String     xDir;
+
+    /** the latest state whose order has been fanned out to participants */
+    private volatile int     notified = -1;
+
+    private final XVoteTally tally    = new XVoteTally();
+
+    /** whether the only participant prepares and commits on its own */
+    private volatile boolean onePhase;
+
+    /** deadline of the current phase */
+    private volatile XTimeoutWheel.Timeout timeout;
+
+    /** when 'PREPARE' was fanned out, 0 once the voting is measured */
+    private volatile long    preparingSince;
+
+    /** when the outcome was decided, 0 once the decision write is measured */
+    private volatile long    decidedSince;
+
+    public DXTransaction(long xid) {
+        this.xid = xid;
+        this.xDir = XPaths.xDir(xid);
+    }
+
+    public long getXid() {
+        return xid;
+    }
+
+    public String getXDir() {
+        return xDir;
+    }
+
+    public XVoteTally getTally() {
+        return tally;
+    }
+
+    public boolean isOnePhase() {
+        return onePhase;
+    }
+
+    public void setOnePhase(boolean onePhase) {
+        this.onePhase = onePhase;
+    }
+
+    /**
+     * replace the deadline of the previous phase with the one of the current phase
+     * 
+     * @param timeout the new deadline, or null to only cancel the previous one
+     */
+    public void resetTimeout(XTimeoutWheel.Timeout timeout) {
+
+        XTimeoutWheel.Timeout previous = this.timeout;
+        this.timeout = timeout;
+        if (previous != null)
+            previous.cancel();
+    }
+
+    /**
+     * claim the fan-out of the order belonging to state, so that each order is written only once
+     * even if the participants are listed several times
+     * 
+     * @param state
+     * @return whether the caller should write the order
+     */
+    public boolean markNotified(int state) {
+
+        for (;;) {
+            int n = notified;
+            if (n >= state)
+                return false;
+            if (NOTIFIED.compareAndSet(this, n, state))
+                return true;
+        }
+    }
+
+    public void markPreparing() {
+        preparingSince = System.nanoTime();
+    }
+
+    /**
+     * @return when 'PREPARE' was fanned out, or 0 if it was not or has been taken already
+     */
+    public long takePreparingSince() {
+        return PREPARING_SINCE.getAndSet(this, 0);
+    }
+
+    public void markDecided() {
+        decidedSince = System.nanoTime();
+    }
+
+    /**
+     * @return when the outcome was decided, or 0 if it was not or has been taken already
+     */
+    public long takeDecidedSince() {
+        return DECIDED_SINCE.getAndSet(this, 0);
+    }
+
+    @Override
+    public String toString() {
+        return "DXTransaction[" + xDir + ", " + nameOf(getState()) + "]";
+    }
+}
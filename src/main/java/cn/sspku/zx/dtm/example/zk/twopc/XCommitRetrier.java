@@ -0,0 +1,321 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * reschedules the business commitments of a DXParticipant which failed, instead of retrying them in a busy loop.
+ *
+ *      1>a failed commitment is tried again after a delay growing exponentially from baseDelayMillis up to maxDelayMillis,
+ *        half of each delay is random, so that the branches failing together do not retry together;
+ *      2>at most DEFAULT_MAX_CONCURRENCY retries of all participants in the process run at the same time,
+ *        unless a retrier is given a cap of its own; a retry finding no permit waits baseDelayMillis more
+ *        without spending an attempt;
+ *      3>a branch still failing after maxAttempts is given up with an XHeuristicReport, it is left in COMMITTING.
+ *
+ * delays are kept by one timing wheel shared by all running retriers, retries run on the business executor
+ * of their participant.
+ */
+public class XCommitRetrier {
+
+    private static final Logger LOG                       = LoggerFactory
+                                                              .getLogger(XCommitRetrier.class);
+
+    /** default delay before the first retry */
+    public static final long    DEFAULT_BASE_DELAY_MILLIS = 100;
+
+    /** default upper bound of the delay between two retries */
+    public static final long    DEFAULT_MAX_DELAY_MILLIS  = 30000;
+
+    /** default number of commitments tried per branch, the first one included */
+    public static final int     DEFAULT_MAX_ATTEMPTS      = 20;
+
+    /** default upper bound of retries running at the same time, in the whole process */
+    public static final int     DEFAULT_MAX_CONCURRENCY   = 8;
+
+    private static final long   TICK_MILLIS               = 10;
+
+    private static final Semaphore SHARED_PERMITS         = new Semaphore(DEFAULT_MAX_CONCURRENCY);
+
+    /** the wheel of all running retriers and their number, guarded by XCommitRetrier.class */
+    private static XTimeoutWheel sharedWheel;
+    private static int          wheelUsers;
+
+    /**
+     * the retries of one branch
+     */
+    private class Retry implements Runnable {
+
+        private final DXBranch branch;
+        private final long     firstFailure = System.nanoTime();
+        private int            attempts     = 1;
+        private Throwable      lastCause;
+
+        Retry(DXBranch branch, Throwable cause) {
+            this.branch = branch;
+            this.lastCause = cause;
+        }
+
+        @Override
+        public void run() {
+
+            try {
+
+                attempts++;
+                participant.doBusinessCommit(branch.getXid());
+
+            } catch (Exception e) {
+
+                lastCause = e;
+                failed(this);
+                return;
+
+            } finally {
+
+                permits.release();
+            }
+
+            succeeded.incrementAndGet();
+            participant.committed(branch);
+        }
+    }
+
+    private final DXParticipant participant;
+
+    private long                baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+    private long                maxDelayMillis  = DEFAULT_MAX_DELAY_MILLIS;
+    private int                 maxAttempts     = DEFAULT_MAX_ATTEMPTS;
+    private Semaphore           permits         = SHARED_PERMITS;
+
+    private XTimeoutWheel       wheel;
+    private Executor            executor;
+    private volatile boolean    running;
+
+    private final AtomicInteger pending         = new AtomicInteger();
+    private final AtomicLong    retried         = new AtomicLong();
+    private final AtomicLong    succeeded       = new AtomicLong();
+    private final AtomicLong    givenUp         = new AtomicLong();
+
+    public XCommitRetrier(DXParticipant participant) {
+        this.participant = participant;
+    }
+
+    /**
+     * join the shared timer, retries run on executor
+     *
+     * @param executor
+     */
+    public synchronized void start(Executor executor) {
+
+        if (running)
+            return;
+
+        this.executor = executor;
+        wheel = acquireWheel();
+        running = true;
+    }
+
+    /**
+     * leave the shared timer, pending retries are dropped and their branches stay in COMMITTING
+     */
+    public synchronized void stop() {
+
+        if (!running)
+            return;
+
+        running = false;
+        releaseWheel();
+        if (pending.get() > 0)
+            LOG.warn("Stopped with " + pending.get() + " commitments still to retry.");
+    }
+
+    private static synchronized XTimeoutWheel acquireWheel() {
+
+        if (wheelUsers++ == 0) {
+            sharedWheel = new XTimeoutWheel(TICK_MILLIS, XTimeoutWheel.DEFAULT_WHEEL_SIZE);
+            sharedWheel.start();
+        }
+        return sharedWheel;
+    }
+
+    private static synchronized void releaseWheel() {
+
+        if (--wheelUsers == 0) {
+            sharedWheel.stop();
+            sharedWheel = null;
+        }
+    }
+
+    /**
+     * schedule the first retry of a branch whose business commitment failed
+     *
+     * @param branch in COMMITTING
+     * @param cause
+     */
+    public void retry(DXBranch branch, Throwable cause) {
+
+        Retry retry = new Retry(branch, cause);
+        if (retry.attempts >= maxAttempts || !running) {
+            giveUp(retry);
+            return;
+        }
+
+        schedule(retry, backoff(retry.attempts));
+    }
+
+    private void failed(Retry retry) {
+
+        if (retry.attempts >= maxAttempts || !running) {
+            giveUp(retry);
+            return;
+        }
+
+        LOG.warn("Attempt " + retry.attempts + " to commit " + retry.branch + " failed: "
+                 + retry.lastCause);
+        schedule(retry, backoff(retry.attempts));
+    }
+
+    private void giveUp(Retry retry) {
+
+        givenUp.incrementAndGet();
+        participant.gaveUp(retry.branch,
+            new XHeuristicReport(retry.branch.getXid(), retry.branch.getNode(), retry.attempts,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - retry.firstFailure),
+                retry.lastCause));
+    }
+
+    /**
+     * @param attempts attempts made so far
+     * @return delay before the next attempt: the capped exponential delay, half of which is random
+     */
+    private long backoff(int attempts) {
+
+        int shift = Math.min(attempts - 1, 30);
+        long delay = Math.min(maxDelayMillis, baseDelayMillis << shift);
+        if (delay <= 0)
+            delay = maxDelayMillis;
+
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+
+    private void schedule(final Retry retry, long delayMillis) {
+
+        pending.incrementAndGet();
+        wheel.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                pending.decrementAndGet();
+                dispatch(retry);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * run on the wheel thread, hand the retry over to the executor if a permit is left
+     */
+    private void dispatch(Retry retry) {
+
+        if (!running)
+            return;
+
+        if (!permits.tryAcquire()) {
+            schedule(retry, baseDelayMillis);
+            return;
+        }
+
+        try {
+
+            retried.incrementAndGet();
+            executor.execute(retry);
+
+        } catch (RejectedExecutionException e) {
+
+            permits.release();
+            retried.decrementAndGet();
+            LOG.warn("Executor rejected the retry of " + retry.branch + ", trying later.");
+            schedule(retry, backoff(retry.attempts));
+        }
+    }
+
+    /**
+     * @return number of retries waiting for their delay to elapse
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return number of retries run
+     */
+    public long getRetried() {
+        return retried.get();
+    }
+
+    /**
+     * @return number of branches committed by a retry
+     */
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    /**
+     * @return number of branches given up with a heuristic report
+     */
+    public long getGivenUp() {
+        return givenUp.get();
+    }
+
+    public void setBaseDelayMillis(long baseDelayMillis) {
+
+        if (baseDelayMillis <= 0)
+            throw new IllegalArgumentException("baseDelayMillis must be positive: "
+                                               + baseDelayMillis);
+        this.baseDelayMillis = baseDelayMillis;
+    }
+
+    public void setMaxDelayMillis(long maxDelayMillis) {
+
+        if (maxDelayMillis <= 0)
+            throw new IllegalArgumentException("maxDelayMillis must be positive: " + maxDelayMillis);
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @param maxAttempts commitments tried per branch, the first one included
+     */
+    public void setMaxAttempts(int maxAttempts) {
+
+        if (maxAttempts <= 0)
+            throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * give this retrier a cap of its own instead of sharing DEFAULT_MAX_CONCURRENCY with the whole process,
+     * set before start()
+     *
+     * @param maxConcurrency
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+
+        if (maxConcurrency <= 0)
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
+    @Override
+    public String toString() {
+        return "XCommitRetrier[pending=" + pending + ", retried=" + retried + ", succeeded="
+               + succeeded + ", givenUp=" + givenUp + "]";
+    }
+}
@@ -0,0 +1,516 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cn.sspku.zx.dtm.example.zk.twopc.XMessage.CoordinatorOrder;
+
+/**
+ * local append-only write-ahead log of the coordinator's decisions.
+ * 
+ *      a decision is appended to a memory-mapped segment file and becomes durable once the segment is forced to disk.
+ *      a background flusher forces the segment for all records appended since the last flush at once (group commit),
+ *      and then runs the callbacks waiting for those records.
+ *      
+ *      when a segment is full, the log rolls over to a new one; the oldest segments are unmapped and deleted
+ *      as soon as all transactions decided in them are closed.
+ *      
+ *      a record which cannot be written, e.g. because the next segment cannot be created, is reported to the
+ *      caller and leaves the log as it was, so the next record may succeed.
+ * 
+ * record layout, all numbers are varints unless noted otherwise:
+ * 
+ *      int length | byte type | xid | [byte decision | count | participant seq deltas ...] | int crc32
+ * 
+ * a length of zero marks the end of the written part of a segment.
+ */
+public class XDecisionLog {
+
+    private static final Logger LOG                  = LoggerFactory.getLogger(XDecisionLog.class);
+
+    public static final int     DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX       = ".xlog";
+    private static final byte   TYPE_DECISION        = 1;
+    private static final byte   TYPE_CLOSED          = 2;
+    /** length + crc32 around each record body */
+    private static final int    FRAME_OVERHEAD       = 8;
+
+    /**
+     * a decided but not yet closed transaction found in the log
+     */
+    public static class Record {
+
+        private final long             xid;
+        private final CoordinatorOrder decision;
+        private final int[]            participants;
+
+        Record(long xid, CoordinatorOrder decision, int[] participants) {
+            this.xid = xid;
+            this.decision = decision;
+            this.participants = participants;
+        }
+
+        public long getXid() {
+            return xid;
+        }
+
+        public CoordinatorOrder getDecision() {
+            return decision;
+        }
+
+        public int[] getParticipants() {
+            return participants;
+        }
+    }
+
+    private static class Segment {
+
+        final long             index;
+        final File             file;
+        final MappedByteBuffer buffer;
+        /** decisions in this segment whose transactions are not closed yet */
+        int                    live;
+
+        Segment(long index, File file, MappedByteBuffer buffer) {
+            this.index = index;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Waiter {
+
+        final long     record;
+        final Runnable onDurable;
+
+        Waiter(long record, Runnable onDurable) {
+            this.record = record;
+            this.onDurable = onDurable;
+        }
+    }
+
+    private final File                 dir;
+    private final int                  segmentSize;
+
+    private final List<Segment>        segments  = new ArrayList<Segment>();
+    private final Map<Long, Segment>   decided   = new HashMap<Long, Segment>();
+    private final Map<Long, Record>    inDoubt   = new HashMap<Long, Record>();
+    private final Queue<Waiter>        waiters   = new ArrayDeque<Waiter>();
+    private final CRC32                crc       = new CRC32();
+    private ByteBuffer                 scratch   = ByteBuffer.allocate(256);
+
+    private Segment                    active;
+    /** segment the flusher is forcing outside the lock, it must stay mapped */
+    private Segment                    forcing;
+    /** number of records appended and number of records known to be durable */
+    private long                       appended;
+    private long                       flushed;
+    private volatile boolean           running;
+    private Thread                     flusher;
+
+    public XDecisionLog(File dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public XDecisionLog(File dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * replay existing segments, then start appending after the last valid record
+     * 
+     * @throws IOException
+     */
+    public synchronized void open() throws IOException {
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create the decision log directory " + dir);
+
+        File[] files = dir.listFiles();
+        List<Long> indexes = new ArrayList<Long>();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.endsWith(SEGMENT_SUFFIX))
+                indexes.add(Long.parseLong(name.substring(0, name.length()
+                                                             - SEGMENT_SUFFIX.length())));
+        }
+        Collections.sort(indexes);
+
+        for (long index : indexes) {
+            Segment segment = map(index);
+            replay(segment);
+            segments.add(segment);
+        }
+
+        if (segments.isEmpty())
+            roll();
+        else
+            active = last();
+        truncate();
+
+        running = true;
+        flusher = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "dx-decision-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * @return decided but not yet closed transactions found when the log was opened
+     */
+    public synchronized Collection<Record> getInDoubt() {
+
+        return new ArrayList<Record>(inDoubt.values());
+    }
+
+    /**
+     * append a decision, onDurable is run by the flusher once the decision is on disk
+     * 
+     * @param xid
+     * @param decision
+     * @param participants sequence numbers of the participants, in ascending order
+     * @param onDurable
+     * @return false if the decision could not be written, onDurable is never run then
+     */
+    public boolean append(long xid, CoordinatorOrder decision, int[] participants,
+                          Runnable onDurable) {
+
+        synchronized (this) {
+
+            ensureScratch(32 + participants.length * 5);
+            scratch.put(TYPE_DECISION);
+            XMessageCodec.putVarLong(scratch, xid);
+            scratch.put((byte) decision.ordinal());
+            XMessageCodec.putVarLong(scratch, participants.length);
+            int prev = 0;
+            for (int seq : participants) {
+                XMessageCodec.putVarLong(scratch, seq - prev);
+                prev = seq;
+            }
+            if (!write())
+                return false;
+
+            active.live++;
+            decided.put(xid, active);
+            waiters.add(new Waiter(appended, onDurable));
+            notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * record that the transaction is closed, so the segment holding its decision can be truncated
+     * 
+     * @param xid
+     */
+    public synchronized void close(long xid) {
+
+        Segment segment = decided.remove(xid);
+        inDoubt.remove(xid);
+        if (segment == null)
+            return;
+
+        //a lost close record only leaves the decision in doubt, recovery finds the transaction completed
+        ensureScratch(16);
+        scratch.put(TYPE_CLOSED);
+        XMessageCodec.putVarLong(scratch, xid);
+        write();
+
+        if (--segment.live == 0)
+            truncate();
+    }
+
+    /**
+     * stop the flusher after forcing all appended records
+     */
+    public void destroy() {
+
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+
+        if (flusher == null)
+            return;
+
+        try {
+
+            flusher.join();
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * group commit: force the active segment once for everything appended so far, then release the waiters
+     */
+    private void flushLoop() {
+
+        for (;;) {
+            long target;
+            Segment segment;
+            synchronized (this) {
+                while (running && appended == flushed)
+                    waitQuietly();
+
+                if (!running && appended == flushed)
+                    return;
+
+                target = appended;
+                segment = active;
+                forcing = segment;
+            }
+
+            //older segments are forced on rollover, so forcing the active one covers all records up to target
+            segment.buffer.force();
+
+            List<Waiter> durable = new ArrayList<Waiter>();
+            synchronized (this) {
+                forcing = null;
+                flushed = target;
+                while (!waiters.isEmpty() && waiters.peek().record <= target)
+                    durable.add(waiters.poll());
+            }
+
+            for (Waiter waiter : durable) {
+                try {
+
+                    waiter.onDurable.run();
+
+                } catch (RuntimeException e) {
+
+                    LOG.error("Failed to run the callback of a durable decision.", e);
+                }
+            }
+        }
+    }
+
+    private void waitQuietly() {
+        try {
+
+            wait();
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    /**
+     * frame the record in scratch and copy it into the active segment, rolling over if it does not fit
+     * 
+     * @return false if the record was not written
+     */
+    private boolean write() {
+
+        scratch.flip();
+        try {
+
+            int length = scratch.remaining();
+            if (length + FRAME_OVERHEAD + 4 > segmentSize) {
+                LOG.error("Record of " + length + " bytes exceeds the segment size " + segmentSize
+                          + " of " + this);
+                return false;
+            }
+
+            if (active.buffer.remaining() < length + FRAME_OVERHEAD + 4)
+                roll();
+
+            crc.reset();
+            crc.update(scratch.array(), 0, length);
+            active.buffer.putInt(length);
+            active.buffer.put(scratch);
+            active.buffer.putInt((int) crc.getValue());
+            appended++;
+            return true;
+
+        } catch (IOException e) {
+
+            LOG.error("Failed to roll " + this + " over.", e);
+            return false;
+
+        } finally {
+
+            scratch.clear();
+        }
+    }
+
+    /**
+     * force the full segment and start a new one, the active segment is kept if the new one cannot be mapped
+     */
+    private void roll() throws IOException {
+
+        long index = 0;
+        if (active != null) {
+            active.buffer.force();
+            index = active.index + 1;
+        }
+
+        active = map(index);
+        segments.add(active);
+        truncate();
+    }
+
+    private Segment map(long index) throws IOException {
+
+        File file = new File(dir, String.format("%019d", index) + SEGMENT_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+
+            FileChannel channel = raf.getChannel();
+            return new Segment(index, file, channel.map(MapMode.READ_WRITE, 0, segmentSize));
+
+        } finally {
+
+            raf.close();
+        }
+    }
+
+    /**
+     * unmap and delete the oldest segments as long as every transaction decided in them is closed.
+     * 
+     * only a prefix of the log may go, since a segment also holds close records of decisions made in older segments.
+     * a segment being forced is kept until the next truncation.
+     */
+    private void truncate() {
+
+        while (segments.size() > 1 && segments.get(0).live == 0 && segments.get(0) != forcing) {
+            Segment segment = segments.remove(0);
+            unmap(segment.buffer);
+            if (!segment.file.delete())
+                LOG.warn("Failed to delete the decision log segment " + segment.file);
+        }
+    }
+
+    /**
+     * release the mapping now instead of when the buffer is garbage collected, until then the disk space
+     * of a deleted segment is not reclaimed, and on Windows the file cannot be deleted at all.
+     * 
+     * the buffer must never be touched again.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+
+        try {
+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+
+            } catch (NoSuchMethodException e) {
+
+                //java 8
+                Method cleanerOf = buffer.getClass().getMethod("cleaner");
+                cleanerOf.setAccessible(true);
+                Object cleaner = cleanerOf.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+                return;
+            }
+
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+
+        } catch (Exception e) {
+
+            LOG.warn("Failed to unmap a decision log segment, it is released once garbage collected.",
+                e);
+        }
+    }
+
+    private Segment last() {
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * read the valid records of a segment and leave its position right after them
+     */
+    private void replay(Segment segment) {
+
+        ByteBuffer buffer = segment.buffer;
+        while (buffer.remaining() >= FRAME_OVERHEAD) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length <= 0 || length + 4 > buffer.remaining()) {
+                buffer.position(start);
+                return;
+            }
+
+            ByteBuffer body = buffer.slice();
+            body.limit(length);
+            buffer.position(buffer.position() + length);
+            int expected = buffer.getInt();
+
+            byte[] bytes = new byte[length];
+            body.duplicate().get(bytes);
+            crc.reset();
+            crc.update(bytes, 0, length);
+            if ((int) crc.getValue() != expected) {
+                //a torn write at the tail, everything after it was never acknowledged
+                buffer.position(start);
+                return;
+            }
+
+            byte type = body.get();
+            long xid = XMessageCodec.getVarLong(body);
+            if (type == TYPE_DECISION) {
+                CoordinatorOrder decision = CoordinatorOrder.values()[body.get()];
+                int[] participants = new int[(int) XMessageCodec.getVarLong(body)];
+                int prev = 0;
+                for (int i = 0; i < participants.length; i++)
+                    participants[i] = prev = prev + (int) XMessageCodec.getVarLong(body);
+
+                inDoubt.put(xid, new Record(xid, decision, participants));
+                decided.put(xid, segment);
+                segment.live++;
+            } else if (type == TYPE_CLOSED) {
+                inDoubt.remove(xid);
+                Segment holder = decided.remove(xid);
+                if (holder != null)
+                    holder.live--;
+            }
+        }
+    }
+
+    private void ensureScratch(int capacity) {
+
+        if (scratch.capacity() < capacity)
+            scratch = ByteBuffer.allocate(Math.max(capacity, scratch.capacity() << 1));
+        scratch.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "XDecisionLog[" + dir + ", segments=" + segments.size() + "]";
+    }
+}
@@ -0,0 +1,99 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * executors the business callbacks of a DXParticipant can be dispatched to.
+ *
+ *      bounded pool            : a fixed number of platform threads, blocking callbacks beyond it wait in a queue;
+ *      virtual thread per task : one virtual thread per callback, only offered by a JVM of version 21 or later;
+ *      direct                  : the callback runs on the thread delivering the order, usually the ZK event thread.
+ */
+public final class XExecutors {
+
+    private static final Executor DIRECT = new Executor() {
+
+                                             @Override
+                                             public void execute(Runnable command) {
+                                                 command.run();
+                                             }
+                                         };
+
+    private XExecutors() {
+    }
+
+    /**
+     * @param threads
+     * @return a pool of daemon platform threads named 'dx-business-N'
+     */
+    public static ExecutorService newBoundedPool(int threads) {
+
+        if (threads <= 0)
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+
+                Thread thread = new Thread(r, "dx-business-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * looked up by reflection, so this code still runs on JVMs without virtual threads
+     *
+     * @return an executor starting a virtual thread for each callback
+     * @throws UnsupportedOperationException if the JVM offers no virtual threads
+     */
+    public static ExecutorService newVirtualThreadPerTask() {
+
+        try {
+
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+
+        } catch (NoSuchMethodException e) {
+
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later, running "
+                                                    + System.getProperty("java.version"));
+        } catch (ReflectiveOperationException e) {
+
+            throw new UnsupportedOperationException("Failed to create a virtual thread executor.", e);
+        }
+    }
+
+    /**
+     * @return whether newVirtualThreadPerTask is supported by this JVM
+     */
+    public static boolean isVirtualThreadSupported() {
+
+        try {
+
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+
+        } catch (NoSuchMethodException e) {
+
+            return false;
+        }
+    }
+
+    /**
+     * @return an executor running each callback on the calling thread
+     */
+    public static Executor direct() {
+
+        return DIRECT;
+    }
+}
@@ -0,0 +1,74 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * helpers for the futures of the transaction lifecycle.
+ *
+ * timeouts run on one timing wheel shared by the process, so thousands of pending futures cost no thread.
+ */
+public final class XFutures {
+
+    /** started on first use */
+    private static class WheelHolder {
+
+        static final XTimeoutWheel WHEEL = new XTimeoutWheel();
+
+        static {
+            WHEEL.start();
+        }
+    }
+
+    private XFutures() {
+    }
+
+    /**
+     * @param cause
+     * @return a future already failed with cause
+     */
+    public static <T> CompletableFuture<T> failed(Throwable cause) {
+
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+
+    /**
+     * bound the wait for future, the transaction itself goes on when the wait times out.
+     *
+     * @param future
+     * @param timeout
+     * @param unit
+     * @return a new future completing like future, or failing with TimeoutException once timeout elapsed
+     */
+    public static <T> CompletableFuture<T> within(CompletableFuture<T> future, final long timeout,
+                                                  final TimeUnit unit) {
+
+        final CompletableFuture<T> bounded = new CompletableFuture<T>();
+        final XTimeoutWheel.Timeout deadline = WheelHolder.WHEEL.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                bounded.completeExceptionally(new TimeoutException("Not completed within "
+                                                                   + timeout + " " + unit));
+            }
+        }, timeout, unit);
+
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+
+            @Override
+            public void accept(T result, Throwable cause) {
+
+                deadline.cancel();
+                if (cause != null)
+                    bounded.completeExceptionally(cause);
+                else
+                    bounded.complete(result);
+            }
+        });
+        return bounded;
+    }
+}
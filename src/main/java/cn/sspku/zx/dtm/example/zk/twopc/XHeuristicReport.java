@@ -0,0 +1,60 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+/**
+ * report of a branch whose commitment was given up after its attempt budget ran out.
+ *
+ * the transaction is decided to commit, but the resource manager of this branch may or may not have committed,
+ * so the outcome is a heuristic hazard which needs human intervention.
+ */
+public final class XHeuristicReport {
+
+    private final long      xid;
+    private final String    node;
+    private final int       attempts;
+    private final long      elapsedMillis;
+    private final Throwable lastCause;
+
+    public XHeuristicReport(long xid, String node, int attempts, long elapsedMillis,
+                            Throwable lastCause) {
+        this.xid = xid;
+        this.node = node;
+        this.attempts = attempts;
+        this.elapsedMillis = elapsedMillis;
+        this.lastCause = lastCause;
+    }
+
+    public long getXid() {
+        return xid;
+    }
+
+    /**
+     * @return path of the participant node, which reports 'HEURISTIC' to the coordinator
+     */
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * @return number of business commitments tried, the first one included
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return time between the first failure and giving up
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public Throwable getLastCause() {
+        return lastCause;
+    }
+
+    @Override
+    public String toString() {
+        return "XHeuristicReport[" + (node == null ? XPaths.xDir(xid) : node) + ", attempts="
+               + attempts + ", elapsed=" + elapsedMillis + "ms, lastCause=" + lastCause + "]";
+    }
+}
@@ -0,0 +1,188 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * lock-free histogram of latencies in nanoseconds.
+ *
+ *      values below 8 have a bucket each, every power of two above is split into 8 linear buckets,
+ *      so any value is known within 12.5% by 488 buckets covering the whole range of long;
+ *      recording is an index computation and a few atomic increments, it never allocates.
+ *
+ * percentiles are read from a racy view of the buckets, which is accurate enough for monitoring.
+ */
+public class XHistogram {
+
+    private static final int SUB_BITS    = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS     = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    /**
+     * immutable summary of a histogram, in milliseconds
+     */
+    public static class Summary {
+
+        private final long   count;
+        private final double mean;
+        private final double p50;
+        private final double p90;
+        private final double p99;
+        private final double max;
+
+        Summary(long count, double mean, double p50, double p90, double p99, double max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP90() {
+            return p90;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d, mean=%.3fms, p50=%.3fms, p90=%.3fms, p99=%.3fms, max=%.3fms",
+                count, mean, p50, p90, p99, max);
+        }
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong      count   = new AtomicLong();
+    private final AtomicLong      sum     = new AtomicLong();
+    private final AtomicLong      max     = new AtomicLong();
+
+    /**
+     * @param nanos latency, negative values count as 0
+     */
+    public void record(long nanos) {
+
+        if (nanos < 0)
+            nanos = 0;
+
+        buckets.incrementAndGet(indexOf(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos))
+            ;
+    }
+
+    /**
+     * record the time elapsed since startNanos, taken from System.nanoTime()
+     */
+    public void recordSince(long startNanos) {
+
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int indexOf(long value) {
+
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the greatest value falling into bucket index
+     */
+    static long upperBoundOf(int index) {
+
+        if (index < SUB_BUCKETS)
+            return index;
+
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        return ((SUB_BUCKETS + sub) * width) + width - 1;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return mean in nanoseconds, 0 if nothing is recorded
+     */
+    public double getMean() {
+
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @return max in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound of the bucket holding the percentile, in nanoseconds
+     */
+    public long getValueAtPercentile(double percentile) {
+
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += buckets.get(i);
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank)
+                return Math.min(upperBoundOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * @return summary in milliseconds
+     */
+    public Summary summary() {
+
+        return new Summary(getCount(), millis(getMean()), millis(getValueAtPercentile(50)),
+            millis(getValueAtPercentile(90)), millis(getValueAtPercentile(99)), millis(getMax()));
+    }
+
+    private static double millis(double nanos) {
+
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return summary().toString();
+    }
+}
@@ -0,0 +1,924 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.common.PathUtils;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.CheckVersionRequest;
+import org.apache.zookeeper.proto.CreateRequest;
+import org.apache.zookeeper.proto.DeleteRequest;
+import org.apache.zookeeper.proto.SetDataRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * XStore.Provider keeping the node trees in memory, for single-process deployments, tests and benchmarks.
+ *
+ *      1>one tree per address, every acquire opens a new session on it, release closes the session;
+ *      2>nodes, sequential names, versions and ephemeral nodes behave as in ZK, so do the one-shot watches:
+ *        getData and exists watch the data and existence of a node, getChildren watches its children;
+ *      3>every operation is applied at once under the lock of its tree, its callback and the watch events it
+ *        triggers are queued to the sessions concerned, each session delivers them in order on its own thread;
+ *        the sessions of a stepped store have no thread, the caller delivers their events with step() or runPending(),
+ *        so a test can replay an interleaving event by event;
+ *      4>multi applies its ops in order and undoes them all if one fails, no watch fires before it succeeded;
+ *      5>a session is always connected, Session.expire() simulates the expiry of a ZK session.
+ *
+ * the data passed in is copied, the data handed out is the stored array and must not be modified.
+ */
+public class XMemoryStore implements XStore.Provider {
+
+    private static final Logger LOG      = LoggerFactory.getLogger(XMemoryStore.class);
+
+    /** trees by address, guarded by this */
+    private final Map<String, Tree> trees = new HashMap<String, Tree>();
+
+    /** whether the sessions deliver only when stepped by the caller */
+    private final boolean           stepped;
+
+    /** sessions of a stepped store in the order they were opened, guarded by this */
+    private final List<Session>     steppedSessions = new ArrayList<Session>();
+
+    public XMemoryStore() {
+        this(false);
+    }
+
+    /**
+     * @param stepped whether the sessions have no thread and deliver their events only when stepped by the caller
+     */
+    public XMemoryStore(boolean stepped) {
+        this.stepped = stepped;
+    }
+
+    @Override
+    public Session acquire(String address) {
+
+        Tree tree;
+        synchronized (this) {
+            tree = trees.get(address);
+            if (tree == null) {
+                tree = new Tree(address);
+                trees.put(address, tree);
+            }
+        }
+        Session session = new Session(tree, stepped);
+        if (stepped) {
+            synchronized (this) {
+                steppedSessions.add(session);
+            }
+        }
+        return session;
+    }
+
+    public boolean isStepped() {
+        return stepped;
+    }
+
+    /**
+     * deliver the events queued to the sessions of a stepped store on the calling thread,
+     * session by session in the order they were opened, until none is left;
+     * the events queued meanwhile by the callbacks are delivered too.
+     *
+     * @return number of events delivered
+     */
+    public int runPending() {
+
+        int total = 0;
+        for (;;) {
+            List<Session> sessions;
+            synchronized (this) {
+                sessions = new ArrayList<Session>(steppedSessions);
+            }
+
+            int delivered = 0;
+            for (Session session : sessions)
+                delivered += session.runPending();
+            if (delivered == 0)
+                return total;
+            total += delivered;
+        }
+    }
+
+    /**
+     * @param address
+     * @return number of nodes in the tree of address, the root included
+     */
+    public int getNodeCount(String address) {
+
+        Tree tree;
+        synchronized (this) {
+            tree = trees.get(address);
+        }
+        if (tree == null)
+            return 0;
+        synchronized (tree) {
+            return tree.nodes.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "XMemoryStore";
+    }
+
+    /**
+     * one node, guarded by the lock of its tree
+     */
+    private static class Node {
+
+        final long        czxid;
+        final long        ctime;
+        final long        ephemeralOwner;
+        final Set<String> children = new LinkedHashSet<String>();
+        byte[]            data;
+        long              mzxid;
+        long              mtime;
+        long              pzxid;
+        int               version;
+        int               cversion;
+
+        Node(byte[] data, long zxid, long ephemeralOwner) {
+            this.data = data;
+            this.czxid = this.mzxid = this.pzxid = zxid;
+            this.ctime = this.mtime = System.currentTimeMillis();
+            this.ephemeralOwner = ephemeralOwner;
+        }
+
+        Stat stat() {
+            return new Stat(czxid, mzxid, ctime, mtime, version, cversion, 0, ephemeralOwner,
+                data == null ? 0 : data.length, children.size(), pzxid);
+        }
+    }
+
+    /**
+     * a watcher set by a session
+     */
+    private static class Watch {
+
+        final Session session;
+        final Watcher watcher;
+
+        Watch(Session session, Watcher watcher) {
+            this.session = session;
+            this.watcher = watcher;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (!(o instanceof Watch))
+                return false;
+            Watch other = (Watch) o;
+            return session == other.session && watcher == other.watcher;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(session) * 31 + System.identityHashCode(watcher);
+        }
+    }
+
+    /**
+     * one tree of nodes and its watches, all guarded by the tree itself
+     */
+    private static class Tree {
+
+        final String                  address;
+        final Map<String, Node>       nodes         = new HashMap<String, Node>();
+        final Map<String, Set<Watch>> dataWatches   = new HashMap<String, Set<Watch>>();
+        final Map<String, Set<Watch>> childWatches  = new HashMap<String, Set<Watch>>();
+        /** open sessions by id */
+        final Map<Long, Session>      sessions      = new HashMap<Long, Session>();
+        long                          zxid;
+        long                          lastSessionId;
+
+        Tree(String address) {
+            this.address = address;
+            nodes.put("/", new Node(null, 0, 0));
+        }
+
+        Node get(String path) throws KeeperException {
+
+            Node node = nodes.get(path);
+            if (node == null)
+                throw KeeperException.create(Code.NONODE, path);
+            return node;
+        }
+
+        /**
+         * @return the name of the created node
+         */
+        String create(Session session, String path, byte[] data, CreateMode mode,
+                      List<Runnable> undo) throws KeeperException {
+
+            PathUtils.validatePath(path, mode.isSequential());
+            int slash = path.lastIndexOf('/');
+            final String parentPath = slash == 0 ? "/" : path.substring(0, slash);
+            final Node parent = nodes.get(parentPath);
+            if (parent == null)
+                throw KeeperException.create(Code.NONODE, path);
+            if (parent.ephemeralOwner != 0)
+                throw KeeperException.create(Code.NOCHILDRENFOREPHEMERALS, path);
+
+            final String name = mode.isSequential() ? path + sequenceOf(parent.cversion) : path;
+            if (nodes.containsKey(name))
+                throw KeeperException.create(Code.NODEEXISTS, name);
+
+            final String child = name.substring(slash + 1);
+            final long parentPzxid = parent.pzxid;
+            final Session owner = mode.isEphemeral() ? session : null;
+            zxid++;
+            nodes.put(name, new Node(data == null ? null : data.clone(), zxid,
+                owner != null ? owner.id : 0));
+            parent.children.add(child);
+            parent.cversion++;
+            parent.pzxid = zxid;
+            if (owner != null)
+                owner.ephemerals.add(name);
+
+            if (undo != null)
+                undo.add(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        nodes.remove(name);
+                        parent.children.remove(child);
+                        parent.cversion--;
+                        parent.pzxid = parentPzxid;
+                        if (owner != null)
+                            owner.ephemerals.remove(name);
+                    }
+                });
+            return name;
+        }
+
+        Stat setData(String path, byte[] data, int version, List<Runnable> undo)
+                                                                                 throws KeeperException {
+
+            final Node node = get(path);
+            if (version != -1 && version != node.version)
+                throw KeeperException.create(Code.BADVERSION, path);
+
+            final byte[] oldData = node.data;
+            final long oldMzxid = node.mzxid;
+            final long oldMtime = node.mtime;
+            node.data = data == null ? null : data.clone();
+            node.mzxid = ++zxid;
+            node.mtime = System.currentTimeMillis();
+            node.version++;
+
+            if (undo != null)
+                undo.add(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        node.data = oldData;
+                        node.mzxid = oldMzxid;
+                        node.mtime = oldMtime;
+                        node.version--;
+                    }
+                });
+            return node.stat();
+        }
+
+        void delete(final String path, int version, List<Runnable> undo) throws KeeperException {
+
+            if ("/".equals(path))
+                throw KeeperException.create(Code.BADARGUMENTS, path);
+            final Node node = get(path);
+            if (version != -1 && version != node.version)
+                throw KeeperException.create(Code.BADVERSION, path);
+            if (!node.children.isEmpty())
+                throw KeeperException.create(Code.NOTEMPTY, path);
+
+            int slash = path.lastIndexOf('/');
+            final Node parent = nodes.get(slash == 0 ? "/" : path.substring(0, slash));
+            final String child = path.substring(slash + 1);
+            final long parentPzxid = parent.pzxid;
+            nodes.remove(path);
+            parent.children.remove(child);
+            parent.cversion++;
+            parent.pzxid = ++zxid;
+            final Session owner = node.ephemeralOwner != 0 ? ownerOf(node) : null;
+            if (owner != null)
+                owner.ephemerals.remove(path);
+
+            if (undo != null)
+                undo.add(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        nodes.put(path, node);
+                        parent.children.add(child);
+                        parent.cversion--;
+                        parent.pzxid = parentPzxid;
+                        if (owner != null)
+                            owner.ephemerals.add(path);
+                    }
+                });
+        }
+
+        void check(String path, int version) throws KeeperException {
+
+            Node node = get(path);
+            if (version != -1 && version != node.version)
+                throw KeeperException.create(Code.BADVERSION, path);
+        }
+
+        /**
+         * @return the session owning the ephemeral node
+         */
+        Session ownerOf(Node node) {
+
+            Session owner = sessions.get(node.ephemeralOwner);
+            if (owner == null)
+                throw new IllegalStateException("No session " + node.ephemeralOwner + " in "
+                                                + address);
+            return owner;
+        }
+
+        void addWatch(Map<String, Set<Watch>> watches, String path, Session session,
+                      Watcher watcher) {
+
+            if (watcher == null)
+                return;
+            Set<Watch> set = watches.get(path);
+            if (set == null) {
+                set = new LinkedHashSet<Watch>(2);
+                watches.put(path, set);
+            }
+            set.add(new Watch(session, watcher));
+        }
+
+        /**
+         * fire the watches triggered by a change of path, each watcher is told once
+         */
+        void trigger(String path, EventType type) {
+
+            Set<Watch> fired = null;
+            switch (type) {
+                case NodeCreated:
+                case NodeDataChanged:
+                    fired = dataWatches.remove(path);
+                    break;
+                case NodeChildrenChanged:
+                    fired = childWatches.remove(path);
+                    break;
+                case NodeDeleted:
+                    fired = dataWatches.remove(path);
+                    Set<Watch> children = childWatches.remove(path);
+                    if (fired == null)
+                        fired = children;
+                    else if (children != null)
+                        fired.addAll(children);
+                    break;
+                default:
+                    break;
+            }
+            if (fired == null)
+                return;
+
+            WatchedEvent event = new WatchedEvent(type, KeeperState.SyncConnected, path);
+            for (Watch watch : fired)
+                watch.session.deliver(watch.watcher, event);
+        }
+
+        void created(String name) {
+
+            trigger(name, EventType.NodeCreated);
+            trigger(parentOf(name), EventType.NodeChildrenChanged);
+        }
+
+        void deleted(String path) {
+
+            trigger(path, EventType.NodeDeleted);
+            trigger(parentOf(path), EventType.NodeChildrenChanged);
+        }
+
+        static String parentOf(String path) {
+
+            int slash = path.lastIndexOf('/');
+            return slash == 0 ? "/" : path.substring(0, slash);
+        }
+
+        /**
+         * drop the ephemeral nodes and the watches of a session
+         */
+        void close(Session session) {
+
+            for (String path : new ArrayList<String>(session.ephemerals)) {
+                try {
+
+                    delete(path, -1, null);
+                    deleted(path);
+
+                } catch (KeeperException e) {
+
+                    LOG.warn("Failed to delete ephemeral node " + path + " of session "
+                             + session.id + ": " + e.code());
+                }
+            }
+            session.ephemerals.clear();
+            sessions.remove(session.id);
+            removeWatches(dataWatches, session);
+            removeWatches(childWatches, session);
+        }
+
+        private static void removeWatches(Map<String, Set<Watch>> watches, Session session) {
+
+            Iterator<Set<Watch>> sets = watches.values().iterator();
+            while (sets.hasNext()) {
+                Set<Watch> set = sets.next();
+                Iterator<Watch> it = set.iterator();
+                while (it.hasNext())
+                    if (it.next().session == session)
+                        it.remove();
+                if (set.isEmpty())
+                    sets.remove();
+            }
+        }
+    }
+
+    /**
+     * ZK pads the sequence to ten digits
+     */
+    private static String sequenceOf(int sequence) {
+
+        String digits = Integer.toString(sequence);
+        StringBuilder sb = new StringBuilder(10);
+        for (int i = digits.length(); i < 10; i++)
+            sb.append('0');
+        return sb.append(digits).toString();
+    }
+
+    /**
+     * one session on a tree, it delivers its callbacks and watch events on its own thread,
+     * or on the thread stepping it if the store is stepped
+     */
+    public static class Session implements XStore, Runnable {
+
+        /** stops the event thread once everything queued before it is delivered */
+        private static final Runnable  CLOSE     = new Runnable() {
+
+                                                     @Override
+                                                     public void run() {
+                                                     }
+                                                 };
+
+        private final Tree             tree;
+        private final BlockingQueue<Runnable> events = new LinkedBlockingQueue<Runnable>();
+        private final List<Watcher>    watchers  = new CopyOnWriteArrayList<Watcher>();
+        /** null if the session is stepped */
+        private final Thread           thread;
+
+        /** guarded by the tree */
+        private long                   id;
+        private final Set<String>      ephemerals = new LinkedHashSet<String>();
+        private volatile boolean       closed;
+
+        Session(Tree tree, boolean stepped) {
+
+            this.tree = tree;
+            synchronized (tree) {
+                this.id = ++tree.lastSessionId;
+                tree.sessions.put(id, this);
+            }
+            if (stepped) {
+                this.thread = null;
+                return;
+            }
+            this.thread = new Thread(this, "dx-memory-store-" + id);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        @Override
+        public void run() {
+
+            while (true) {
+                Runnable event;
+                try {
+
+                    event = events.take();
+
+                } catch (InterruptedException e) {
+
+                    return;
+                }
+                if (event == CLOSE)
+                    return;
+
+                handle(event);
+            }
+        }
+
+        private void handle(Runnable event) {
+
+            try {
+
+                event.run();
+
+            } catch (RuntimeException e) {
+
+                LOG.error("Failed to deliver an event of " + this, e);
+            }
+        }
+
+        /**
+         * deliver the next event queued to a session of a stepped store on the calling thread
+         *
+         * @return whether an event was delivered
+         * @throws IllegalStateException if the session delivers on its own thread
+         */
+        public boolean step() {
+
+            if (thread != null)
+                throw new IllegalStateException(this + " delivers on its own thread.");
+
+            Runnable event = events.poll();
+            if (event == null)
+                return false;
+            if (event != CLOSE)
+                handle(event);
+            return true;
+        }
+
+        /**
+         * step a session of a stepped store until no event is queued to it
+         *
+         * @return number of events delivered
+         */
+        public int runPending() {
+
+            int delivered = 0;
+            while (step())
+                delivered++;
+            return delivered;
+        }
+
+        /**
+         * @return number of events queued and not delivered yet
+         */
+        public int getPending() {
+            return events.size();
+        }
+
+        private void deliver(Runnable event) {
+            events.add(event);
+        }
+
+        private void deliver(final Watcher watcher, final WatchedEvent event) {
+
+            events.add(new Runnable() {
+
+                @Override
+                public void run() {
+                    watcher.process(event);
+                }
+            });
+        }
+
+        @Override
+        public void create(final String path, byte[] data, CreateMode mode,
+                           final StringCallback cb, final Object ctx) {
+
+            synchronized (tree) {
+                int rc = Code.OK.intValue();
+                String name = null;
+                try {
+
+                    checkOpen();
+                    name = tree.create(this, path, data, mode, null);
+                    tree.created(name);
+
+                } catch (KeeperException e) {
+
+                    rc = e.code().intValue();
+                }
+
+                final int result = rc;
+                final String created = name;
+                deliver(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        cb.processResult(result, path, ctx, created);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void setData(final String path, byte[] data, int version, final StatCallback cb,
+                            final Object ctx) {
+
+            synchronized (tree) {
+                int rc = Code.OK.intValue();
+                Stat stat = null;
+                try {
+
+                    checkOpen();
+                    stat = tree.setData(path, data, version, null);
+                    tree.trigger(path, EventType.NodeDataChanged);
+
+                } catch (KeeperException e) {
+
+                    rc = e.code().intValue();
+                }
+
+                final int result = rc;
+                final Stat updated = stat;
+                deliver(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        cb.processResult(result, path, ctx, updated);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void getData(final String path, Watcher watcher, final DataCallback cb,
+                            final Object ctx) {
+
+            synchronized (tree) {
+                int rc = Code.OK.intValue();
+                byte[] data = null;
+                Stat stat = null;
+                try {
+
+                    checkOpen();
+                    Node node = tree.get(path);
+                    data = node.data;
+                    stat = node.stat();
+                    tree.addWatch(tree.dataWatches, path, this, watcher);
+
+                } catch (KeeperException e) {
+
+                    rc = e.code().intValue();
+                }
+
+                final int result = rc;
+                final byte[] read = data;
+                final Stat readStat = stat;
+                deliver(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        cb.processResult(result, path, ctx, read, readStat);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void exists(final String path, Watcher watcher, final StatCallback cb,
+                           final Object ctx) {
+
+            synchronized (tree) {
+                int rc = Code.OK.intValue();
+                Stat stat = null;
+                try {
+
+                    checkOpen();
+                    //a watch is left on a missing node too, it fires once the node is created
+                    tree.addWatch(tree.dataWatches, path, this, watcher);
+                    stat = tree.get(path).stat();
+
+                } catch (KeeperException e) {
+
+                    rc = e.code().intValue();
+                }
+
+                final int result = rc;
+                final Stat read = stat;
+                deliver(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        cb.processResult(result, path, ctx, read);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void getChildren(final String path, Watcher watcher, final ChildrenCallback cb,
+                                final Object ctx) {
+
+            synchronized (tree) {
+                int rc = Code.OK.intValue();
+                List<String> children = null;
+                try {
+
+                    children = getChildren(path, watcher);
+
+                } catch (KeeperException e) {
+
+                    rc = e.code().intValue();
+                }
+
+                final int result = rc;
+                final List<String> read = children;
+                deliver(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        cb.processResult(result, path, ctx, read);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public List<String> getChildren(String path, Watcher watcher) throws KeeperException {
+
+            synchronized (tree) {
+                checkOpen();
+                List<String> children = new ArrayList<String>(tree.get(path).children);
+                tree.addWatch(tree.childWatches, path, this, watcher);
+                return children;
+            }
+        }
+
+        @Override
+        public void delete(String path, int version) throws KeeperException {
+
+            synchronized (tree) {
+                checkOpen();
+                tree.delete(path, version, null);
+                tree.deleted(path);
+            }
+        }
+
+        @Override
+        public List<OpResult> multi(Iterable<Op> ops) throws KeeperException {
+
+            synchronized (tree) {
+                checkOpen();
+
+                List<Op> applied = new ArrayList<Op>();
+                List<Runnable> undo = new ArrayList<Runnable>();
+                List<OpResult> results = new ArrayList<OpResult>();
+                try {
+
+                    for (Op op : ops) {
+                        applied.add(op);
+                        results.add(apply(op, undo));
+                    }
+
+                } catch (KeeperException e) {
+
+                    for (int i = undo.size() - 1; i >= 0; i--)
+                        undo.get(i).run();
+                    throw e;
+                }
+
+                //the ops succeeded, fire their watches in order
+                for (int i = 0; i < applied.size(); i++) {
+                    Op op = applied.get(i);
+                    switch (op.getType()) {
+                        case OpCode.create:
+                            tree.created(((OpResult.CreateResult) results.get(i)).getPath());
+                            break;
+                        case OpCode.setData:
+                            tree.trigger(op.getPath(), EventType.NodeDataChanged);
+                            break;
+                        case OpCode.delete:
+                            tree.deleted(op.getPath());
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                return results;
+            }
+        }
+
+        private OpResult apply(Op op, List<Runnable> undo) throws KeeperException {
+
+            switch (op.getType()) {
+                case OpCode.create:
+                    CreateRequest create = (CreateRequest) op.toRequestRecord();
+                    return new OpResult.CreateResult(tree.create(this, create.getPath(),
+                        create.getData(), CreateMode.fromFlag(create.getFlags()), undo));
+                case OpCode.setData:
+                    SetDataRequest setData = (SetDataRequest) op.toRequestRecord();
+                    return new OpResult.SetDataResult(tree.setData(setData.getPath(),
+                        setData.getData(), setData.getVersion(), undo));
+                case OpCode.delete:
+                    DeleteRequest delete = (DeleteRequest) op.toRequestRecord();
+                    tree.delete(delete.getPath(), delete.getVersion(), undo);
+                    return new OpResult.DeleteResult();
+                case OpCode.check:
+                    CheckVersionRequest check = (CheckVersionRequest) op.toRequestRecord();
+                    tree.check(check.getPath(), check.getVersion());
+                    return new OpResult.CheckResult();
+                default:
+                    throw KeeperException.create(Code.UNIMPLEMENTED, op.getPath());
+            }
+        }
+
+        private void checkOpen() throws KeeperException {
+
+            if (closed)
+                throw KeeperException.create(Code.SESSIONEXPIRED);
+        }
+
+        @Override
+        public void addWatcher(Watcher watcher) {
+
+            watchers.add(watcher);
+            if (!closed)
+                watcher.process(new WatchedEvent(EventType.None, KeeperState.SyncConnected, null));
+        }
+
+        @Override
+        public void removeWatcher(Watcher watcher) {
+            watchers.remove(watcher);
+        }
+
+        /**
+         * drop the ephemeral nodes and watches of the session as ZK does when a session expires,
+         * then go on under a new session id; the connection watchers are told 'Expired' and 'SyncConnected'.
+         */
+        public void expire() {
+
+            synchronized (tree) {
+                if (closed)
+                    return;
+                tree.close(this);
+                id = ++tree.lastSessionId;
+                tree.sessions.put(id, this);
+                deliverState(KeeperState.Expired);
+                deliverState(KeeperState.SyncConnected);
+            }
+        }
+
+        private void deliverState(KeeperState state) {
+
+            final WatchedEvent event = new WatchedEvent(EventType.None, state, null);
+            deliver(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (Watcher watcher : watchers)
+                        watcher.process(event);
+                }
+            });
+        }
+
+        @Override
+        public void release() {
+
+            synchronized (tree) {
+                if (closed)
+                    return;
+                closed = true;
+                tree.close(this);
+                watchers.clear();
+                deliver(CLOSE);
+            }
+        }
+
+        /**
+         * @return id of the session, it changes when the session expires
+         */
+        public long getSessionId() {
+
+            synchronized (tree) {
+                return id;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "XMemoryStore.Session[" + tree.address + ", " + getSessionId()
+                   + (closed ? ", closed]" : "]");
+        }
+    }
+}
@@ -5,7 +5,8 @@
 package cn.sspku.zx.dtm.example.zk.twopc;
 
 /**
- * define message constants used in communication between coordinator and participant
+ * define message constants used in communication between coordinator and participant, 
+ * they are encoded into znodes by XMessageCodec
  * 
  * @author zhangxu
  * @version $Id: XMessage.java, v 0.1 2015年9月9日 下午4:14:54 zhangxu Exp $
@@ -13,10 +14,37 @@ package cn.sspku.zx.dtm.example.zk.twopc;
 public interface XMessage {
 
     enum CoordinatorOrder {
-        PREPARE, COMMIT, ABORT
+        PREPARE, COMMIT, ABORT,
+
+        /** prepare and commit at once, sent to the only participant of a transaction */
+        ONE_PHASE_COMMIT;
+
+        /**
+         * @param data content of a participant node
+         * @return the order carried by data, or null if data is not an order
+         */
+        public static CoordinatorOrder parse(byte[] data) {
+
+            return XMessageCodec.orderOf(data);
+        }
     }
 
     enum ParticipantReport {
-        PREPAERD, COMMITED, ABORTED
+        PREPAERD, COMMITED, ABORTED,
+
+        /** prepared without any change, the participant needs no phase two */
+        READ_ONLY,
+
+        /** the participant gave up committing, its resource may or may not have committed */
+        HEURISTIC;
+
+        /**
+         * @param data content of a participant node
+         * @return the report carried by data, or null if data is not a report
+         */
+        public static ParticipantReport parse(byte[] data) {
+
+            return XMessageCodec.reportOf(data);
+        }
     }
 }
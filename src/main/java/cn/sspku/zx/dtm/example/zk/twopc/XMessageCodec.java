@@ -0,0 +1,118 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.nio.ByteBuffer;
+
+import cn.sspku.zx.dtm.example.zk.twopc.XMessage.CoordinatorOrder;
+import cn.sspku.zx.dtm.example.zk.twopc.XMessage.ParticipantReport;
+
+/**
+ * compact binary codec of the messages exchanged through znodes.
+ * 
+ *      byte version | byte code
+ * 
+ *      code      : 0x01.. orders by ordinal + 1, 0x41.. reports by ordinal + 1
+ * 
+ * the xid is not written, it is given by the path of the znode; so the payload of an order or a report is the same
+ * for every transaction, it is encoded once and shared by all writes, which allocate nothing.
+ */
+public final class XMessageCodec {
+
+    public static final byte                VERSION      = 1;
+
+    /** encoded length of every message */
+    public static final int                 LENGTH       = 2;
+
+    private static final int                REPORT_FLAG  = 0x40;
+    private static final int                ORDINAL_MASK = 0x3F;
+
+    private static final CoordinatorOrder[] ORDERS       = CoordinatorOrder.values();
+    private static final ParticipantReport[] REPORTS     = ParticipantReport.values();
+
+    /** payloads indexed by ordinal, never modified once built */
+    private static final byte[][]           ORDER_PAYLOADS  = new byte[ORDERS.length][];
+    private static final byte[][]           REPORT_PAYLOADS = new byte[REPORTS.length][];
+
+    static {
+        for (CoordinatorOrder order : ORDERS)
+            ORDER_PAYLOADS[order.ordinal()] = new byte[] { VERSION, (byte) (order.ordinal() + 1) };
+        for (ParticipantReport report : REPORTS)
+            REPORT_PAYLOADS[report.ordinal()] = new byte[] { VERSION,
+                    (byte) (REPORT_FLAG | (report.ordinal() + 1)) };
+    }
+
+    private XMessageCodec() {
+    }
+
+    /**
+     * @return the payload of order, shared by all callers so it must not be modified
+     */
+    public static byte[] encode(CoordinatorOrder order) {
+        return ORDER_PAYLOADS[order.ordinal()];
+    }
+
+    /**
+     * @return the payload of report, shared by all callers so it must not be modified
+     */
+    public static byte[] encode(ParticipantReport report) {
+        return REPORT_PAYLOADS[report.ordinal()];
+    }
+
+    /**
+     * @return the order carried by data, or null if data is not an order
+     */
+    public static CoordinatorOrder orderOf(byte[] data) {
+
+        if (!isMessage(data) || (data[1] & REPORT_FLAG) != 0)
+            return null;
+
+        return ORDERS[(data[1] & ORDINAL_MASK) - 1];
+    }
+
+    /**
+     * @return the report carried by data, or null if data is not a report
+     */
+    public static ParticipantReport reportOf(byte[] data) {
+
+        if (!isMessage(data) || (data[1] & REPORT_FLAG) == 0)
+            return null;
+
+        return REPORTS[(data[1] & ORDINAL_MASK) - 1];
+    }
+
+    private static boolean isMessage(byte[] data) {
+
+        if (data == null || data.length < LENGTH || data[0] != VERSION)
+            return false;
+
+        int ordinal = data[1] & ORDINAL_MASK;
+        return ordinal > 0
+               && ordinal <= ((data[1] & REPORT_FLAG) == 0 ? ORDERS.length : REPORTS.length);
+    }
+
+    /**
+     * write value as an unsigned varint, 7 bits per byte, least significant group first
+     */
+    public static void putVarLong(ByteBuffer buffer, long value) {
+
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * @return the unsigned varint read from buffer
+     */
+    public static long getVarLong(ByteBuffer buffer) {
+
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint.");
+    }
+}
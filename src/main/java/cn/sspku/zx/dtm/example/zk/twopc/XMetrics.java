@@ -0,0 +1,476 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * metrics of the coordinators and participants of a process.
+ *
+ *      phases    : latency of begin, register, prepare-vote, decision and completion of each transaction;
+ *      ZK        : latency and failures of each type of ZK operation issued by the transaction lifecycle;
+ *      gauges    : transactions and branches in flight, read from the components when asked;
+ *      aborts    : aborted transactions by reason.
+ *
+ * recording never allocates nor locks; timing an asynchronous ZK operation costs one small wrapper of its callback,
+ * unless the ctx of the operation is a TimedContext carrying its start time, then one wrapper built up front serves
+ * every operation.
+ * the metrics are exported through JMX, and pushed to XMetricsReporters if reporting is started.
+ */
+public class XMetrics implements XMetricsMXBean {
+
+    private static final Logger   LOG         = LoggerFactory.getLogger(XMetrics.class);
+
+    /** name of the MBean of the default metrics */
+    public static final String    OBJECT_NAME = "cn.sspku.zx.dtm:type=XMetrics,name=default";
+
+    public enum Phase {
+        /** from beginX until the transaction directory is created */
+        BEGIN,
+        /** from registerToX until the participant node is created */
+        REGISTER,
+        /** from writing 'PREPARE' until all votes are in */
+        PREPARE_VOTE,
+        /** from the end of voting until the decision is written */
+        DECISION,
+        /** from beginX until the transaction is closed */
+        COMPLETION
+    }
+
+    public enum ZkOp {
+        CREATE, GET_DATA, SET_DATA, EXISTS, GET_CHILDREN, MULTI, DELETE
+    }
+
+    public enum AbortReason {
+        /** a participant voted 'ABORTED' */
+        VOTED_ABORT,
+        /** a participant node disappeared before the decision */
+        PARTICIPANT_LOST,
+        /** some participant did not vote in time */
+        PREPARE_TIMEOUT,
+        /** the participants could not be listed */
+        LIST_FAILED,
+        /** aborted through DXCoordinator.abort */
+        REQUESTED,
+        /** an in-doubt transaction rolled back by recovery */
+        RECOVERED
+    }
+
+    /**
+     * value read when the metrics are read, e.g. the size of a table
+     */
+    public interface Gauge {
+        long get();
+    }
+
+    /**
+     * ctx of ZK operations whose callback is wrapped once by timedStatByContext or timedStringByContext
+     */
+    public static class TimedContext {
+
+        /** published to the ZK event thread by the request queue of the client */
+        private long zkStartNanos;
+
+        /**
+         * mark the start of the ZK operations about to be sent with this ctx
+         */
+        public void zkStarted() {
+            zkStartNanos = System.nanoTime();
+        }
+    }
+
+    private static final Phase[]       PHASES        = Phase.values();
+    private static final ZkOp[]        ZK_OPS        = ZkOp.values();
+    private static final AbortReason[] ABORT_REASONS = AbortReason.values();
+
+    private static final XMetrics      DEFAULT       = new XMetrics().register(OBJECT_NAME);
+
+    private final XHistogram[]         phases        = newHistograms(PHASES.length);
+    private final XHistogram[]         zkLatencies   = newHistograms(ZK_OPS.length);
+    private final AtomicLongArray      zkErrors      = new AtomicLongArray(ZK_OPS.length);
+    private final AtomicLongArray      aborts        = new AtomicLongArray(ABORT_REASONS.length);
+    private final AtomicLong           heuristics    = new AtomicLong();
+
+    private final List<Gauge>          transactionGauges = new CopyOnWriteArrayList<Gauge>();
+    private final List<Gauge>          branchGauges  = new CopyOnWriteArrayList<Gauge>();
+
+    private ScheduledExecutorService   reporting;
+
+    /**
+     * @return the metrics shared by the whole process, registered to the platform MBean server
+     */
+    public static XMetrics getDefault() {
+        return DEFAULT;
+    }
+
+    private static XHistogram[] newHistograms(int n) {
+
+        XHistogram[] histograms = new XHistogram[n];
+        for (int i = 0; i < n; i++)
+            histograms[i] = new XHistogram();
+        return histograms;
+    }
+
+    /**
+     * register to the platform MBean server under name, a failure is logged only
+     *
+     * @param name
+     * @return this
+     */
+    public XMetrics register(String name) {
+
+        try {
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if (!server.isRegistered(objectName))
+                server.registerMBean(this, objectName);
+
+        } catch (JMException e) {
+
+            LOG.warn("Failed to register metrics as " + name, e);
+        }
+        return this;
+    }
+
+    /**
+     * record the time elapsed since startNanos, taken from System.nanoTime(), in phase
+     */
+    public void recordPhase(Phase phase, long startNanos) {
+
+        phases[phase.ordinal()].recordSince(startNanos);
+    }
+
+    /**
+     * record a synchronous ZK operation started at startNanos
+     *
+     * @param op
+     * @param startNanos
+     * @param ok whether the operation succeeded
+     */
+    public void recordZk(ZkOp op, long startNanos, boolean ok) {
+
+        zkLatencies[op.ordinal()].recordSince(startNanos);
+        if (!ok)
+            zkErrors.incrementAndGet(op.ordinal());
+    }
+
+    /**
+     * record an asynchronous ZK operation, NONODE and NODEEXISTS are answers rather than failures
+     */
+    private void recordZk(ZkOp op, long startNanos, int rc) {
+
+        recordZk(op, startNanos, rc == Code.OK.intValue() || rc == Code.NONODE.intValue()
+                                 || rc == Code.NODEEXISTS.intValue());
+    }
+
+    public void recordAbort(AbortReason reason) {
+
+        aborts.incrementAndGet(reason.ordinal());
+    }
+
+    /**
+     * record a participant which reported 'HEURISTIC'
+     */
+    public void recordHeuristic() {
+
+        heuristics.incrementAndGet();
+    }
+
+    public void addTransactionGauge(Gauge gauge) {
+        transactionGauges.add(gauge);
+    }
+
+    public void removeTransactionGauge(Gauge gauge) {
+        transactionGauges.remove(gauge);
+    }
+
+    public void addBranchGauge(Gauge gauge) {
+        branchGauges.add(gauge);
+    }
+
+    public void removeBranchGauge(Gauge gauge) {
+        branchGauges.remove(gauge);
+    }
+
+    /**
+     * @param op
+     * @param callback
+     * @return callback timing op from now until its result is delivered
+     */
+    public DataCallback timedData(final ZkOp op, final DataCallback callback) {
+
+        final long start = System.nanoTime();
+        return new DataCallback() {
+
+            @Override
+            public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+                recordZk(op, start, rc);
+                callback.processResult(rc, path, ctx, data, stat);
+            }
+        };
+    }
+
+    /**
+     * @see #timedData(ZkOp, DataCallback)
+     */
+    public StatCallback timedStat(final ZkOp op, final StatCallback callback) {
+
+        final long start = System.nanoTime();
+        return new StatCallback() {
+
+            @Override
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                recordZk(op, start, rc);
+                callback.processResult(rc, path, ctx, stat);
+            }
+        };
+    }
+
+    /**
+     * @param op
+     * @param callback
+     * @return callback timing op from TimedContext.zkStarted() of its ctx until its result is delivered
+     */
+    public StatCallback timedStatByContext(final ZkOp op, final StatCallback callback) {
+
+        return new StatCallback() {
+
+            @Override
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                recordZk(op, ((TimedContext) ctx).zkStartNanos, rc);
+                callback.processResult(rc, path, ctx, stat);
+            }
+        };
+    }
+
+    /**
+     * @see #timedData(ZkOp, DataCallback)
+     */
+    public StringCallback timedString(final ZkOp op, final StringCallback callback) {
+
+        final long start = System.nanoTime();
+        return new StringCallback() {
+
+            @Override
+            public void processResult(int rc, String path, Object ctx, String name) {
+                recordZk(op, start, rc);
+                callback.processResult(rc, path, ctx, name);
+            }
+        };
+    }
+
+    /**
+     * @see #timedStatByContext(ZkOp, StatCallback)
+     */
+    public StringCallback timedStringByContext(final ZkOp op, final StringCallback callback) {
+
+        return new StringCallback() {
+
+            @Override
+            public void processResult(int rc, String path, Object ctx, String name) {
+                recordZk(op, ((TimedContext) ctx).zkStartNanos, rc);
+                callback.processResult(rc, path, ctx, name);
+            }
+        };
+    }
+
+    /**
+     * @see #timedData(ZkOp, DataCallback)
+     */
+    public ChildrenCallback timedChildren(final ZkOp op, final ChildrenCallback callback) {
+
+        final long start = System.nanoTime();
+        return new ChildrenCallback() {
+
+            @Override
+            public void processResult(int rc, String path, Object ctx, List<String> children) {
+                recordZk(op, start, rc);
+                callback.processResult(rc, path, ctx, children);
+            }
+        };
+    }
+
+    public XHistogram getPhase(Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    public XHistogram getZkLatency(ZkOp op) {
+        return zkLatencies[op.ordinal()];
+    }
+
+    public long getZkErrors(ZkOp op) {
+        return zkErrors.get(op.ordinal());
+    }
+
+    public long getAborts(AbortReason reason) {
+        return aborts.get(reason.ordinal());
+    }
+
+    @Override
+    public long getHeuristicOutcomes() {
+        return heuristics.get();
+    }
+
+    @Override
+    public long getInFlightTransactions() {
+        return sum(transactionGauges);
+    }
+
+    @Override
+    public long getInFlightBranches() {
+        return sum(branchGauges);
+    }
+
+    private static long sum(List<Gauge> gauges) {
+
+        long sum = 0;
+        for (Gauge gauge : gauges)
+            sum += gauge.get();
+        return sum;
+    }
+
+    @Override
+    public Map<String, XHistogram.Summary> getPhaseLatencies() {
+
+        Map<String, XHistogram.Summary> summaries = new LinkedHashMap<String, XHistogram.Summary>();
+        for (Phase phase : PHASES)
+            summaries.put(phase.name(), phases[phase.ordinal()].summary());
+        return summaries;
+    }
+
+    @Override
+    public Map<String, XHistogram.Summary> getZkLatencies() {
+
+        Map<String, XHistogram.Summary> summaries = new LinkedHashMap<String, XHistogram.Summary>();
+        for (ZkOp op : ZK_OPS)
+            summaries.put(op.name(), zkLatencies[op.ordinal()].summary());
+        return summaries;
+    }
+
+    @Override
+    public Map<String, Long> getZkErrors() {
+
+        Map<String, Long> errors = new LinkedHashMap<String, Long>();
+        for (ZkOp op : ZK_OPS)
+            errors.put(op.name(), zkErrors.get(op.ordinal()));
+        return errors;
+    }
+
+    @Override
+    public Map<String, Long> getAbortCounts() {
+
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (AbortReason reason : ABORT_REASONS)
+            counts.put(reason.name(), aborts.get(reason.ordinal()));
+        return counts;
+    }
+
+    /**
+     * report to reporter every period on a daemon thread, until stopReporting is called
+     *
+     * @param reporter
+     * @param period
+     * @param unit
+     */
+    public synchronized void startReporting(final XMetricsReporter reporter, long period,
+                                            TimeUnit unit) {
+
+        if (reporting == null)
+            reporting = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+
+                    Thread thread = new Thread(r, "dx-metrics-reporter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+        reporting.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+
+                    reporter.report(XMetrics.this);
+
+                } catch (RuntimeException e) {
+
+                    LOG.error("Failed to report metrics to " + reporter, e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * stop all reporters
+     */
+    public synchronized void stopReporting() {
+
+        if (reporting != null) {
+            reporting.shutdown();
+            reporting = null;
+        }
+    }
+
+    /**
+     * @return a reporter writing the metrics to the log at INFO
+     */
+    public static XMetricsReporter logReporter() {
+
+        return new XMetricsReporter() {
+
+            @Override
+            public void report(XMetrics metrics) {
+                LOG.info(metrics.toString());
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder("XMetrics[inFlightTransactions=")
+            .append(getInFlightTransactions()).append(", inFlightBranches=")
+            .append(getInFlightBranches()).append("]");
+        for (Phase phase : PHASES)
+            if (phases[phase.ordinal()].getCount() > 0)
+                sb.append("\n  phase ").append(phase).append(": ")
+                    .append(phases[phase.ordinal()]);
+        for (ZkOp op : ZK_OPS)
+            if (zkLatencies[op.ordinal()].getCount() > 0)
+                sb.append("\n  zk ").append(op).append(": ").append(zkLatencies[op.ordinal()])
+                    .append(", errors=").append(zkErrors.get(op.ordinal()));
+        for (AbortReason reason : ABORT_REASONS)
+            if (aborts.get(reason.ordinal()) > 0)
+                sb.append("\n  abort ").append(reason).append(": ")
+                    .append(aborts.get(reason.ordinal()));
+        if (heuristics.get() > 0)
+            sb.append("\n  heuristic: ").append(heuristics.get());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,38 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.util.Map;
+
+/**
+ * JMX view of XMetrics, latencies are in milliseconds
+ */
+public interface XMetricsMXBean {
+
+    long getInFlightTransactions();
+
+    long getInFlightBranches();
+
+    /**
+     * @return latency of each phase by its name
+     */
+    Map<String, XHistogram.Summary> getPhaseLatencies();
+
+    /**
+     * @return latency of each ZK operation type by its name
+     */
+    Map<String, XHistogram.Summary> getZkLatencies();
+
+    /**
+     * @return failed ZK operations by type
+     */
+    Map<String, Long> getZkErrors();
+
+    /**
+     * @return aborted transactions by reason
+     */
+    Map<String, Long> getAbortCounts();
+
+    /**
+     * @return participants which gave up committing and reported 'HEURISTIC'
+     */
+    long getHeuristicOutcomes();
+}
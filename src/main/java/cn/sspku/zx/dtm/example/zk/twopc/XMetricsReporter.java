@@ -0,0 +1,14 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+/**
+ * receives the metrics periodically once passed to XMetrics.startReporting, e.g. to push them to a monitoring system
+ */
+public interface XMetricsReporter {
+
+    /**
+     * called on the reporting thread, it should return quickly
+     *
+     * @param metrics
+     */
+    void report(XMetrics metrics);
+}
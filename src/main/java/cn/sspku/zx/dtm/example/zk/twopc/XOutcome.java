@@ -0,0 +1,45 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+/**
+ * result a future of the transaction lifecycle completes with: the xid and the state reached when the phase finished
+ */
+public final class XOutcome {
+
+    private final long xid;
+    private final int  state;
+
+    public XOutcome(long xid, int state) {
+        this.xid = xid;
+        this.state = state;
+    }
+
+    public long getXid() {
+        return xid;
+    }
+
+    /**
+     * @return one of the states of XStateMachine
+     */
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * @return whether the transaction is, or is going to be, committed
+     */
+    public boolean isCommitted() {
+        return state >= XStateMachine.PREPARED && state <= XStateMachine.COMMITTED;
+    }
+
+    /**
+     * @return whether the transaction is, or is going to be, aborted
+     */
+    public boolean isAborted() {
+        return state == XStateMachine.ABORTING || state == XStateMachine.ABORTED;
+    }
+
+    @Override
+    public String toString() {
+        return "XOutcome[" + XPaths.xDir(xid) + ", " + XStateMachine.nameOf(state) + "]";
+    }
+}
@@ -0,0 +1,168 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+/**
+ * define the znode layout shared by coordinator and participant
+ * 
+ *      /dx                                         root of all transactions of a shard
+ *      /dx/x-003-0000000012                        transaction directory in shard 3 with sequence number 12
+ *      /dx/x-003-0000000012/participant-0000000003 participant node of a transaction branch
+ *      /dx/x-003-0000000012/decision               outcome of the transaction, when the coordinator runs in decision node mode
+ * 
+ * the xid packs the shard into its lowest SHARD_BITS bits above the sequence number, so anybody holding an xid
+ * finds its shard and its directory without any lookup.
+ */
+public final class XPaths {
+
+    public static final String DX_ROOT            = "/dx";
+    public static final String X_PREFIX           = "x-";
+    public static final String PARTICIPANT_PREFIX = "participant-";
+    public static final String DECISION           = "decision";
+
+    /** bits of an xid holding the index of its shard */
+    public static final int    SHARD_BITS         = 8;
+    public static final int    MAX_SHARDS         = 1 << SHARD_BITS;
+
+    private XPaths() {
+    }
+
+    /**
+     * @param shard
+     * @param seq sequence number of the transaction directory within the shard
+     * @return xid of the transaction
+     */
+    public static long xid(int shard, long seq) {
+
+        return seq << SHARD_BITS | shard;
+    }
+
+    /**
+     * @param xid
+     * @return index of the shard the transaction xid lives in
+     */
+    public static int shardOf(long xid) {
+
+        return (int) (xid & (MAX_SHARDS - 1));
+    }
+
+    /**
+     * @param xid
+     * @return sequence number of the transaction directory of xid within its shard
+     */
+    public static long seqOf(long xid) {
+
+        return xid >>> SHARD_BITS;
+    }
+
+    /**
+     * path used to create a new sequential transaction directory in shard
+     * 
+     * @param shard
+     */
+    public static String xDirPrefix(int shard) {
+
+        return DX_ROOT + "/" + X_PREFIX + String.format("%03d-", shard);
+    }
+
+    /**
+     * path of the transaction directory of xid
+     * 
+     * @param xid
+     */
+    public static String xDir(long xid) {
+
+        return xDirPrefix(shardOf(xid)) + String.format("%010d", seqOf(xid));
+    }
+
+    /**
+     * path used to create a new sequential participant node in the transaction xid
+     * 
+     * @param xid
+     */
+    public static String participantPrefix(long xid) {
+
+        return xDir(xid) + "/" + PARTICIPANT_PREFIX;
+    }
+
+    /**
+     * path of the participant node with sequence number seq in the transaction xid
+     * 
+     * @param xid
+     * @param seq
+     */
+    public static String participantNode(long xid, int seq) {
+
+        return participantPrefix(xid) + String.format("%010d", seq);
+    }
+
+    /**
+     * path of the single node carrying the outcome of the transaction xid
+     * 
+     * @param xid
+     */
+    public static String decisionNode(long xid) {
+
+        return xDir(xid) + "/" + DECISION;
+    }
+
+    /**
+     * @param name name of a child of a transaction directory
+     * @return whether the child is a participant node
+     */
+    public static boolean isParticipant(String name) {
+
+        return name.startsWith(PARTICIPANT_PREFIX);
+    }
+
+    /**
+     * extract the xid from a transaction directory or any path below it
+     * 
+     * @param path
+     * @return xid, or -1 if path does not belong to a transaction
+     */
+    public static long xidOf(String path) {
+
+        String prefix = DX_ROOT + "/" + X_PREFIX;
+        if (path == null || !path.startsWith(prefix))
+            return -1;
+
+        //x-SSS-NNNNNNNNNN
+        int begin = prefix.length();
+        int end = path.indexOf('/', begin);
+        if (end < 0)
+            end = path.length();
+        if (end - begin < 5 || path.charAt(begin + 3) != '-')
+            return -1;
+        try {
+
+            int shard = Integer.parseInt(path.substring(begin, begin + 3));
+            long seq = Long.parseLong(path.substring(begin + 4, end));
+            return shard < MAX_SHARDS ? xid(shard, seq) : -1;
+
+        } catch (NumberFormatException e) {
+
+            return -1;
+        }
+    }
+
+    /**
+     * extract the sequence number from a participant node name or path
+     * 
+     * @param path
+     * @return sequence number, or -1 if path is not a participant node
+     */
+    public static int participantSeqOf(String path) {
+
+        int begin = path.lastIndexOf(PARTICIPANT_PREFIX);
+        if (begin < 0)
+            return -1;
+
+        try {
+
+            return Integer.parseInt(path.substring(begin + PARTICIPANT_PREFIX.length()));
+
+        } catch (NumberFormatException e) {
+
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cn.sspku.zx.dtm.example.zk.twopc.XMetrics.ZkOp;
+
+/**
+ * background garbage collector of finished transaction directories, the eighth step of the two-phrase commit.
+ *
+ *      1>a closed transaction is kept for a retention window, so that slow participants can still read its decision;
+ *      2>due transactions are deleted together with their children by ZK multi requests of at most maxBatchSize operations;
+ *      3>deletes are throttled to maxOpsPerSecond, so that reaping never competes with live transactions;
+ *      4>if a batch fails, its nodes are deleted one by one, a directory that cannot be deleted is retried later.
+ *
+ * a directory removed by someone else meanwhile counts as reclaimed.
+ */
+public class XReaper {
+
+    private static final Logger LOG                        = LoggerFactory.getLogger(XReaper.class);
+
+    /** default time a closed transaction stays in ZK before it is deleted */
+    public static final long    DEFAULT_RETENTION_MILLIS   = 60000;
+
+    /** default upper bound of delete operations issued per second */
+    public static final int     DEFAULT_MAX_OPS_PER_SECOND = 1000;
+
+    /** default upper bound of delete operations packed into one ZK multi request */
+    public static final int     DEFAULT_MAX_BATCH_SIZE     = 128;
+
+    /** delay before a directory which could not be deleted is tried again */
+    private static final long   RETRY_DELAY_MILLIS         = 5000;
+
+    /** attempts to delete one directory before it is given up */
+    private static final int    MAX_ATTEMPTS               = 5;
+
+    /** length of the window over which the reclaim rate is measured */
+    private static final long   RATE_WINDOW_MILLIS         = 1000;
+
+    /**
+     * a transaction directory waiting to be deleted
+     */
+    private static class Entry implements Delayed {
+
+        private final long xid;
+        private final long dueNanos;
+        private final int  attempts;
+
+        Entry(long xid, long delayMillis, int attempts) {
+            this.xid = xid;
+            this.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            this.attempts = attempts;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long diff = dueNanos - ((Entry) o).dueNanos;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+
+    private static final Comparator<Entry> BY_SHARD = new Comparator<Entry>() {
+
+                                                        @Override
+                                                        public int compare(Entry a, Entry b) {
+                                                            return XPaths.shardOf(a.xid)
+                                                                   - XPaths.shardOf(b.xid);
+                                                        }
+                                                    };
+
+    private final DXCoordinator     coordinator;
+    private final DelayQueue<Entry> backlog         = new DelayQueue<Entry>();
+    private final AtomicLong        reclaimed       = new AtomicLong();
+    private final AtomicLong        failed          = new AtomicLong();
+
+    private volatile long           retentionMillis = DEFAULT_RETENTION_MILLIS;
+    private volatile int            maxOpsPerSecond = DEFAULT_MAX_OPS_PER_SECOND;
+    private volatile int            maxBatchSize    = DEFAULT_MAX_BATCH_SIZE;
+
+    private volatile boolean        running;
+    private Thread                  worker;
+
+    /** earliest time the next delete may be issued, only touched by the worker */
+    private long                    nextOpNanos;
+
+    private long                    windowStart     = System.currentTimeMillis();
+    private long                    windowReclaimed;
+    private volatile double         reclaimRate;
+
+    public XReaper(DXCoordinator coordinator) {
+        this.coordinator = coordinator;
+    }
+
+    public synchronized void start() {
+
+        if (running)
+            return;
+
+        running = true;
+        worker = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                work();
+            }
+        }, "dx-reaper");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * stop the worker, the backlog is kept and reaped once started again
+     */
+    public void stop() {
+
+        running = false;
+        if (worker == null)
+            return;
+
+        worker.interrupt();
+        try {
+
+            worker.join();
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * delete the directory of a finished transaction once the retention window has elapsed
+     *
+     * @param xid
+     */
+    public void reap(long xid) {
+
+        backlog.offer(new Entry(xid, retentionMillis, 0));
+    }
+
+    private void work() {
+
+        List<Entry> due = new ArrayList<Entry>();
+        while (running) {
+            try {
+
+                Entry first = backlog.poll(RATE_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    due.add(first);
+                    backlog.drainTo(due, maxBatchSize - 1);
+                    reap(due);
+                    due.clear();
+                }
+                rollWindow();
+
+            } catch (InterruptedException e) {
+
+                if (!running)
+                    return;
+            }
+        }
+    }
+
+    /**
+     * delete due directories, the children of a directory always precede it in the same or an earlier batch.
+     * 
+     * a batch never spans shards, so due directories are grouped by shard first.
+     */
+    private void reap(List<Entry> due) throws InterruptedException {
+
+        Collections.sort(due, BY_SHARD);
+        XStore session = null;
+        List<Op> ops = new ArrayList<Op>(maxBatchSize);
+        Map<String, Entry> dirs = new LinkedHashMap<String, Entry>();
+
+        for (Entry entry : due) {
+            XStore shardSession = coordinator.sessionOf(entry.xid);
+            if (shardSession != session && !ops.isEmpty())
+                flush(session, ops, dirs);
+            session = shardSession;
+
+            String xDir = XPaths.xDir(entry.xid);
+            List<String> children;
+            long start = System.nanoTime();
+            try {
+
+                children = session.getChildren(xDir, null);
+                coordinator.getMetrics().recordZk(ZkOp.GET_CHILDREN, start, true);
+
+            } catch (KeeperException.NoNodeException e) {
+
+                coordinator.getMetrics().recordZk(ZkOp.GET_CHILDREN, start, true);
+                record(1);
+                continue;
+            } catch (KeeperException e) {
+
+                coordinator.getMetrics().recordZk(ZkOp.GET_CHILDREN, start, false);
+                retry(entry, e);
+                continue;
+            }
+
+            for (String child : children) {
+                ops.add(Op.delete(xDir + "/" + child, -1));
+                if (ops.size() == maxBatchSize)
+                    flush(session, ops, dirs);
+            }
+            ops.add(Op.delete(xDir, -1));
+            dirs.put(xDir, entry);
+            if (ops.size() == maxBatchSize)
+                flush(session, ops, dirs);
+        }
+
+        if (!ops.isEmpty())
+            flush(session, ops, dirs);
+    }
+
+    /**
+     * submit ops as one multi request, then forget them and the directories they complete
+     */
+    private void flush(XStore session, List<Op> ops, Map<String, Entry> dirs)
+                                                                                 throws InterruptedException {
+
+        throttle(ops.size());
+        long start = System.nanoTime();
+        try {
+
+            session.multi(ops);
+            coordinator.getMetrics().recordZk(ZkOp.MULTI, start, true);
+            record(dirs.size());
+
+        } catch (KeeperException.ConnectionLossException e) {
+
+            coordinator.getMetrics().recordZk(ZkOp.MULTI, start, false);
+            for (Entry entry : dirs.values())
+                retry(entry, e);
+        } catch (KeeperException e) {
+
+            coordinator.getMetrics().recordZk(ZkOp.MULTI, start, false);
+            LOG.warn("Failed to delete " + ops.size() + " nodes in one batch: " + e.code());
+            deleteOneByOne(session, ops, dirs);
+        }
+
+        ops.clear();
+        dirs.clear();
+    }
+
+    /**
+     * a participant which registered late, or left meanwhile, fails the whole batch; delete each node by itself
+     */
+    private void deleteOneByOne(XStore session, List<Op> ops, Map<String, Entry> dirs)
+                                                                                         throws InterruptedException {
+
+        for (Op op : ops) {
+            Entry entry = dirs.get(op.getPath());
+            try {
+
+                session.delete(op.getPath(), -1);
+                if (entry != null)
+                    record(1);
+
+            } catch (KeeperException.NoNodeException e) {
+
+                if (entry != null)
+                    record(1);
+            } catch (KeeperException e) {
+
+                if (entry != null)
+                    retry(entry, e);
+            }
+        }
+    }
+
+    private void retry(Entry entry, KeeperException e) {
+
+        if (entry.attempts + 1 < MAX_ATTEMPTS) {
+            backlog.offer(new Entry(entry.xid, RETRY_DELAY_MILLIS, entry.attempts + 1));
+        } else {
+            failed.incrementAndGet();
+            LOG.error("Gave up deleting " + XPaths.xDir(entry.xid) + " after " + MAX_ATTEMPTS
+                      + " attempts: " + e.code());
+        }
+    }
+
+    /**
+     * wait until ops more deletes fit into the rate limit
+     */
+    private void throttle(int ops) throws InterruptedException {
+
+        long now = System.nanoTime();
+        if (nextOpNanos > now)
+            TimeUnit.NANOSECONDS.sleep(nextOpNanos - now);
+
+        nextOpNanos = Math.max(now, nextOpNanos) + ops * TimeUnit.SECONDS.toNanos(1)
+                      / maxOpsPerSecond;
+    }
+
+    private void record(int dirs) {
+
+        reclaimed.addAndGet(dirs);
+        windowReclaimed += dirs;
+    }
+
+    private void rollWindow() {
+
+        long now = System.currentTimeMillis();
+        long elapsed = now - windowStart;
+        if (elapsed < RATE_WINDOW_MILLIS)
+            return;
+
+        reclaimRate = windowReclaimed * 1000.0 / elapsed;
+        windowReclaimed = 0;
+        windowStart = now;
+    }
+
+    /**
+     * @return number of directories waiting to be deleted, including those within the retention window
+     */
+    public int getBacklog() {
+        return backlog.size();
+    }
+
+    /**
+     * @return number of directories deleted since creation
+     */
+    public long getReclaimed() {
+        return reclaimed.get();
+    }
+
+    /**
+     * @return number of directories given up after repeated failures
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return directories deleted per second over the latest measuring window
+     */
+    public double getReclaimRate() {
+        return reclaimRate;
+    }
+
+    /**
+     * set the time a closed transaction stays in ZK before it is deleted, applies to transactions closed afterwards
+     *
+     * @param retentionMillis
+     */
+    public void setRetentionMillis(long retentionMillis) {
+
+        if (retentionMillis < 0)
+            throw new IllegalArgumentException("retentionMillis must not be negative: "
+                                               + retentionMillis);
+
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * set the upper bound of delete operations issued per second
+     *
+     * @param maxOpsPerSecond
+     */
+    public void setMaxOpsPerSecond(int maxOpsPerSecond) {
+
+        if (maxOpsPerSecond <= 0)
+            throw new IllegalArgumentException("maxOpsPerSecond must be positive: "
+                                               + maxOpsPerSecond);
+
+        this.maxOpsPerSecond = maxOpsPerSecond;
+    }
+
+    /**
+     * set the upper bound of delete operations in one batch
+     *
+     * @param maxBatchSize
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+
+        if (maxBatchSize <= 0)
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public String toString() {
+        return "backlog=" + getBacklog() + ", reclaimed=" + getReclaimed() + ", failed="
+               + getFailed() + ", rate=" + String.format("%.1f", reclaimRate) + "tx/s";
+    }
+}
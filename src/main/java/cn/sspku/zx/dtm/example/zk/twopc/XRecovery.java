@@ -0,0 +1,316 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cn.sspku.zx.dtm.example.zk.twopc.XMessage.CoordinatorOrder;
+import cn.sspku.zx.dtm.example.zk.twopc.XMessage.ParticipantReport;
+
+/**
+ * recover in-doubt transactions of a coordinator after it restarts or its session is re-established.
+ * 
+ *      1>scan the transaction namespace, keeping at most 'parallelism' transactions being read at the same time;
+ *      2>read the owner, the participant nodes and the decision of each transaction with async reads;
+ *      3>classify the transaction as
+ *              undecided    : no decision is found, it is presumed aborted, even if every participant voted
+ *                             'PREPARED': an abort is reported before its order is written and is never logged;
+ *              decided      : a decision is found in ZK or in the local decision log, or some participant
+ *                             reported 'HEURISTIC' after it was told to commit, it is re-driven;
+ *              one-phase    : its only participant was told to commit on its own, its report is awaited;
+ *              completed    : every participant reported 'COMMITED' or 'READ_ONLY', nothing is left to do.
+ * 
+ * only transactions owned by the coordinator's id are recovered, one shard per run.
+ */
+public class XRecovery implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(XRecovery.class);
+
+    /**
+     * statistics of one recovery run
+     */
+    public static class Report {
+
+        private int  scanned;
+        private int  committed;
+        private int  aborted;
+        private int  completed;
+        private long elapsedMillis;
+
+        public int getScanned() {
+            return scanned;
+        }
+
+        public int getCommitted() {
+            return committed;
+        }
+
+        public int getAborted() {
+            return aborted;
+        }
+
+        public int getCompleted() {
+            return completed;
+        }
+
+        /**
+         * @return number of transactions this run finished
+         */
+        public int getResolved() {
+            return committed + aborted + completed;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "scanned=" + scanned + ", committed=" + committed + ", aborted=" + aborted
+                   + ", completed=" + completed + ", elapsed=" + elapsedMillis + "ms, rate="
+                   + (getResolved() * 1000L / Math.max(1, elapsedMillis)) + "tx/s";
+        }
+    }
+
+    private final DXCoordinator                    coordinator;
+    private final XStore                           session;
+    private final int                              shard;
+    private final String                           owner;
+    private final XDecisionLog                     decisionLog;
+    private final int                              parallelism;
+    private final Semaphore                        permits;
+    private final Report                           report = new Report();
+    private final Map<Long, XDecisionLog.Record> logged = new HashMap<Long, XDecisionLog.Record>();
+
+    public XRecovery(DXCoordinator coordinator, XStore session, int shard, String owner,
+                     XDecisionLog decisionLog, int parallelism) {
+        this.coordinator = coordinator;
+        this.session = session;
+        this.shard = shard;
+        this.owner = owner;
+        this.decisionLog = decisionLog;
+        this.parallelism = parallelism;
+        this.permits = new Semaphore(parallelism);
+    }
+
+    @Override
+    public void run() {
+
+        long begin = System.currentTimeMillis();
+        try {
+
+            recover();
+
+        } catch (KeeperException e) {
+
+            LOG.error("Failed to recover in-doubt transactions.", e);
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        report.elapsedMillis = System.currentTimeMillis() - begin;
+        LOG.info("Recovery finished: " + report);
+    }
+
+    /**
+     * @return statistics of this run, complete once run() returned
+     */
+    public Report getReport() {
+        return report;
+    }
+
+    private void recover() throws KeeperException, InterruptedException {
+
+        if (decisionLog != null)
+            for (XDecisionLog.Record record : decisionLog.getInDoubt())
+                if (XPaths.shardOf(record.getXid()) == shard)
+                    logged.put(record.getXid(), record);
+
+        List<String> dirs;
+        try {
+
+            dirs = session.getChildren(XPaths.DX_ROOT, null);
+
+        } catch (KeeperException.NoNodeException e) {
+
+            dirs = Collections.emptyList();
+        }
+
+        //shards may share a chroot, directories of other shards are left to their own recovery
+        Set<Long> existing = new HashSet<Long>();
+        for (String dir : dirs) {
+            long xid = XPaths.xidOf(XPaths.DX_ROOT + "/" + dir);
+            if (xid < 0 || XPaths.shardOf(xid) != shard)
+                continue;
+
+            existing.add(xid);
+            if (coordinator.getTransaction(xid) != null)
+                continue;
+
+            permits.acquire();
+            new Scan(xid).start();
+        }
+
+        //wait for all scans to finish
+        permits.acquire(parallelism);
+        permits.release(parallelism);
+
+        //logged decisions whose transaction directory has gone are finished
+        for (Long xid : logged.keySet())
+            if (!existing.contains(xid))
+                decisionLog.close(xid);
+    }
+
+    /**
+     * async reads of one transaction, all callbacks run on the ZK event thread
+     */
+    private class Scan implements DataCallback, ChildrenCallback {
+
+        private final long                    xid;
+        private final List<Integer>           members = new ArrayList<Integer>();
+        private final List<ParticipantReport> reports = new ArrayList<ParticipantReport>();
+        private CoordinatorOrder              decision;
+        private boolean                       onePhase;
+        private int                           pending;
+
+        Scan(long xid) {
+            this.xid = xid;
+        }
+
+        void start() {
+            session.getData(XPaths.xDir(xid), null, this, null);
+        }
+
+        /**
+         * the owner of the transaction directory, the decision node or a participant node is read
+         */
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+
+            if (ctx == null) {
+                //transaction directory
+                if (rc != Code.OK.intValue() || data == null || !owner.equals(new String(data))) {
+                    finish();
+                    return;
+                }
+                session.getChildren(path, null, this, null);
+                return;
+            }
+
+            if (rc == Code.OK.intValue()) {
+                CoordinatorOrder order = CoordinatorOrder.parse(data);
+                if (order == CoordinatorOrder.COMMIT || order == CoordinatorOrder.ABORT)
+                    decision = order;
+                else if (order == CoordinatorOrder.ONE_PHASE_COMMIT)
+                    onePhase = true;
+
+                Integer index = (Integer) ctx;
+                if (index >= 0)
+                    reports.set(index, ParticipantReport.parse(data));
+            }
+
+            if (--pending == 0)
+                classify();
+        }
+
+        /**
+         * children of the transaction directory are listed
+         */
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<String> children) {
+
+            if (rc != Code.OK.intValue()) {
+                finish();
+                return;
+            }
+
+            for (String child : children) {
+                if (XPaths.isParticipant(child)) {
+                    members.add(XPaths.participantSeqOf(child));
+                    reports.add(null);
+                }
+            }
+
+            pending = members.size() + (children.contains(XPaths.DECISION) ? 1 : 0);
+            if (pending == 0) {
+                classify();
+                return;
+            }
+
+            for (int i = 0; i < members.size(); i++)
+                session.getData(XPaths.participantNode(xid, members.get(i)), null, this, i);
+            if (children.contains(XPaths.DECISION))
+                session.getData(XPaths.decisionNode(xid), null, this, -1);
+        }
+
+        private void classify() {
+
+            XDecisionLog.Record record = logged.get(xid);
+            if (decision == null && record != null)
+                decision = record.getDecision();
+
+            int[] seqs = new int[members.size()];
+            boolean allCommitted = !members.isEmpty();
+            boolean heuristic = false;
+            for (int i = 0; i < seqs.length; i++) {
+                seqs[i] = members.get(i);
+                ParticipantReport vote = reports.get(i);
+                allCommitted &= vote == ParticipantReport.COMMITED
+                                || vote == ParticipantReport.READ_ONLY;
+                heuristic |= vote == ParticipantReport.HEURISTIC;
+            }
+            //a participant reports 'HEURISTIC' only after it was told to commit
+            if (decision == null && heuristic)
+                decision = CoordinatorOrder.COMMIT;
+            ParticipantReport[] votes = reports.toArray(new ParticipantReport[reports.size()]);
+
+            if (allCommitted) {
+                //completed
+                coordinator.recoverCompleted(xid);
+                report.completed++;
+            } else if (coordinator.getTransaction(xid) != null) {
+                //begun by this coordinator while recovery was running
+            } else if (decision == CoordinatorOrder.COMMIT) {
+                //decided
+                if (record != null)
+                    for (int seq : record.getParticipants())
+                        if (!members.contains(seq))
+                            LOG.error("Participant " + seq + " of " + XPaths.xDir(xid)
+                                      + " disappeared after commitment was decided, "
+                                      + "human intervention is required.");
+                if (coordinator.recoverCommit(xid, seqs, votes))
+                    report.committed++;
+            } else if (decision == null && onePhase) {
+                //one-phase
+                if (coordinator.recoverOnePhase(xid, seqs, votes))
+                    report.committed++;
+            } else {
+                //undecided, or abort decided
+                if (coordinator.recoverAbort(xid, seqs, votes))
+                    report.aborted++;
+            }
+            finish();
+        }
+
+        private void finish() {
+
+            report.scanned++;
+            permits.release();
+        }
+    }
+}
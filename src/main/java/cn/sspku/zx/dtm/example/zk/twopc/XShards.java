@@ -0,0 +1,108 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * the shards transactions are spread over, each shard is a ZK ensemble and a chroot within it.
+ *
+ *      a new transaction is placed into a shard by its coordinator, the index of the shard is packed into the xid;
+ *      so coordinators and participants route every request of a transaction to its shard by the xid alone.
+ *
+ * coordinators and participants must be configured with the same shards in the same order.
+ * the chroot of a shard must exist, shards may share an ensemble or even a chroot.
+ */
+public class XShards {
+
+    /** the single shard used unless configured otherwise */
+    public static final XShards DEFAULT = new XShards(new Shard("localhost:1281", null));
+
+    /**
+     * one shard: a connect string like 'host1:2181,host2:2181' and an optional chroot like '/dtm'
+     */
+    public static class Shard {
+
+        private final String connectString;
+        private final String chroot;
+
+        public Shard(String connectString, String chroot) {
+
+            if (connectString == null || connectString.isEmpty())
+                throw new IllegalArgumentException("connectString must not be empty.");
+            if (chroot != null && !chroot.isEmpty()
+                && (!chroot.startsWith("/") || chroot.endsWith("/")))
+                throw new IllegalArgumentException("Illegal chroot: " + chroot);
+
+            this.connectString = connectString;
+            this.chroot = chroot == null ? "" : chroot;
+        }
+
+        public String getConnectString() {
+            return connectString;
+        }
+
+        public String getChroot() {
+            return chroot;
+        }
+
+        /**
+         * @return the connect string with the chroot appended, as ZK client expects
+         */
+        public String getAddress() {
+            return connectString + chroot;
+        }
+
+        @Override
+        public String toString() {
+            return getAddress();
+        }
+    }
+
+    private final List<Shard> shards;
+
+    public XShards(Shard... shards) {
+
+        this(Arrays.asList(shards));
+    }
+
+    public XShards(List<Shard> shards) {
+
+        if (shards.isEmpty() || shards.size() > XPaths.MAX_SHARDS)
+            throw new IllegalArgumentException("Number of shards must be within [1, "
+                                               + XPaths.MAX_SHARDS + "]: " + shards.size());
+
+        this.shards = Collections.unmodifiableList(new ArrayList<Shard>(shards));
+    }
+
+    public int size() {
+        return shards.size();
+    }
+
+    /**
+     * @param index
+     * @return the shard with index
+     */
+    public Shard get(int index) {
+        return shards.get(index);
+    }
+
+    /**
+     * @param xid
+     * @return index of the shard holding the transaction xid
+     */
+    public int indexOf(long xid) {
+
+        int index = XPaths.shardOf(xid);
+        if (index >= shards.size())
+            throw new IllegalArgumentException("Transaction " + xid + " belongs to shard " + index
+                                               + " out of " + shards.size() + " shards.");
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return shards.toString();
+    }
+}
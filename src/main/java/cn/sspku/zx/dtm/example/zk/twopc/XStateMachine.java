@@ -0,0 +1,219 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * lock-free state machine of a transaction, shared by the coordinator side (DXTransaction) and the
+ * participant side (DXBranch).
+ * 
+ *      INIT --> PREPARING --> PREPARED --> COMMITTING --> COMMITTED
+ *        |          |  |         |                        ^
+ *        |          |  +-------------(read-only)----------+
+ *        +----------+------------+-------> ABORTING  --> ABORTED
+ * 
+ * the state is a primitive int advanced by CAS, so a transition costs neither a lock nor an allocation.
+ * every legal transition moves to a greater state, thus a duplicate or out-of-order event always fails
+ * its CAS and is dropped before it turns into a ZK write.
+ * 
+ * callers may wait for the end of phase one or for the final state through futures, which are only created on demand,
+ * so transactions nobody waits for still transit without any allocation.
+ */
+public abstract class XStateMachine {
+
+    public static final int  INIT       = 0;
+    public static final int  PREPARING  = 1;
+    public static final int  PREPARED   = 2;
+    public static final int  COMMITTING = 3;
+    public static final int  COMMITTED  = 4;
+    public static final int  ABORTING   = 5;
+    public static final int  ABORTED    = 6;
+
+    private static final String[] NAMES = { "INIT", "PREPARING", "PREPARED", "COMMITTING",
+            "COMMITTED", "ABORTING", "ABORTED" };
+
+    /** bit mask of legal target states indexed by the source state */
+    private static final int[] LEGAL = { 
+            bit(PREPARING) | bit(ABORTING) | bit(ABORTED), //INIT
+            bit(PREPARED) | bit(COMMITTED) | bit(ABORTING) | bit(ABORTED), //PREPARING
+            bit(COMMITTING) | bit(ABORTING) | bit(ABORTED), //PREPARED
+            bit(COMMITTED), //COMMITTING
+            0, //COMMITTED
+            bit(ABORTED), //ABORTING
+            0 //ABORTED
+    };
+
+    private static final AtomicIntegerFieldUpdater<XStateMachine> STATE = AtomicIntegerFieldUpdater
+                                                                            .newUpdater(
+                                                                                XStateMachine.class,
+                                                                                "state");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<XStateMachine, CompletableFuture> PREPARED_FUTURE  =
+        AtomicReferenceFieldUpdater.newUpdater(XStateMachine.class, CompletableFuture.class, "preparedFuture");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<XStateMachine, CompletableFuture> COMPLETED_FUTURE =
+        AtomicReferenceFieldUpdater.newUpdater(XStateMachine.class, CompletableFuture.class, "completedFuture");
+
+    private volatile int     state      = INIT;
+
+    /** when the state machine was created in this process, from System.nanoTime() */
+    private final long       startNanos = System.nanoTime();
+
+    /** completed once phase one is over, created on demand */
+    private volatile CompletableFuture<XOutcome> preparedFuture;
+
+    /** completed once COMMITTED or ABORTED is reached, created on demand */
+    private volatile CompletableFuture<XOutcome> completedFuture;
+
+    /** why the futures will never complete normally, set if the transaction is given up by this process */
+    private volatile Throwable abandoned;
+
+    private static int bit(int state) {
+        return 1 << state;
+    }
+
+    /**
+     * @return the current state
+     */
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * advance the state from 'from' to 'to' if and only if the current state is 'from' and the transition is legal
+     * 
+     * @param from
+     * @param to
+     * @return whether this call made the transition
+     */
+    public boolean transit(int from, int to) {
+
+        if ((LEGAL[from] & bit(to)) == 0 || !STATE.compareAndSet(this, from, to))
+            return false;
+
+        settle();
+        return true;
+    }
+
+    /**
+     * advance the state to 'to' from whatever state it is in, as long as the transition is legal
+     * 
+     * @param to
+     * @return whether this call made the transition
+     */
+    public boolean transitTo(int to) {
+
+        for (;;) {
+            int from = state;
+            if ((LEGAL[from] & bit(to)) == 0)
+                return false;
+            if (STATE.compareAndSet(this, from, to)) {
+                settle();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return when the state machine was created in this process, from System.nanoTime()
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * @return xid of the transaction
+     */
+    public abstract long getXid();
+
+    /**
+     * the future completes once phase one is over: with the state PREPARED or beyond if the transaction
+     * is going to commit, with ABORTING or ABORTED otherwise.
+     * 
+     * the future is shared by all callers, compose on it but do not complete it.
+     */
+    public CompletableFuture<XOutcome> whenPrepared() {
+
+        return future(PREPARED_FUTURE);
+    }
+
+    /**
+     * the future completes once the transaction is COMMITTED or ABORTED
+     * 
+     * the future is shared by all callers, compose on it but do not complete it.
+     */
+    public CompletableFuture<XOutcome> whenCompleted() {
+
+        return future(COMPLETED_FUTURE);
+    }
+
+    /**
+     * give the transaction up in this process, pending futures fail with cause
+     * 
+     * @param cause
+     */
+    public void abandon(Throwable cause) {
+
+        abandoned = cause;
+        settle();
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<XOutcome> future(@SuppressWarnings("rawtypes") AtomicReferenceFieldUpdater<XStateMachine, CompletableFuture> updater) {
+
+        CompletableFuture<XOutcome> future = updater.get(this);
+        if (future == null) {
+            updater.compareAndSet(this, null, new CompletableFuture<XOutcome>());
+            future = updater.get(this);
+        }
+
+        //the state may have been reached before the future existed
+        settle();
+        return future;
+    }
+
+    /**
+     * complete the futures whose state has been reached, a future completes only once however often this runs
+     */
+    private void settle() {
+
+        CompletableFuture<XOutcome> prepared = preparedFuture;
+        CompletableFuture<XOutcome> completed = completedFuture;
+        if (prepared == null && completed == null)
+            return;
+
+        int s = state;
+        if (prepared != null && s >= PREPARED)
+            prepared.complete(new XOutcome(getXid(), s));
+        if (completed != null && LEGAL[s] == 0)
+            completed.complete(new XOutcome(getXid(), s));
+
+        Throwable cause = abandoned;
+        if (cause != null) {
+            if (prepared != null)
+                prepared.completeExceptionally(cause);
+            if (completed != null)
+                completed.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * @return whether the transaction has reached COMMITTED or ABORTED
+     */
+    public boolean isCompleted() {
+
+        return LEGAL[state] == 0;
+    }
+
+    /**
+     * @param state
+     * @return readable name of state
+     */
+    public static String nameOf(int state) {
+
+        return state >= 0 && state < NAMES.length ? NAMES[state] : String.valueOf(state);
+    }
+}
@@ -0,0 +1,78 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.Watcher;
+
+/**
+ * the coordination store the two-phrase-commit protocol runs on, one session to one shard.
+ *
+ *      the operations are those of ZK the protocol uses, with the same paths, create modes, result codes,
+ *      one-shot watches and callbacks; a null watcher sets no watch;
+ *      callbacks and watch events of one session are delivered in order on one thread of the session,
+ *      so they must not block;
+ *      the session may be replaced underneath, e.g. after it expired, the store itself stays valid until released.
+ *
+ * XZkStore runs the protocol on ZooKeeper, XMemoryStore runs it in memory within one process.
+ */
+public interface XStore {
+
+    /**
+     * hands out stores by address, e.g. the address of a shard
+     */
+    interface Provider {
+
+        /**
+         * every acquire must be paired with a release of the returned store
+         *
+         * @param address
+         * @return store to address
+         * @throws IOException if the store cannot be opened
+         */
+        XStore acquire(String address) throws IOException;
+    }
+
+    void create(String path, byte[] data, CreateMode mode, StringCallback cb, Object ctx);
+
+    void setData(String path, byte[] data, int version, StatCallback cb, Object ctx);
+
+    void getData(String path, Watcher watcher, DataCallback cb, Object ctx);
+
+    void exists(String path, Watcher watcher, StatCallback cb, Object ctx);
+
+    void getChildren(String path, Watcher watcher, ChildrenCallback cb, Object ctx);
+
+    List<String> getChildren(String path, Watcher watcher) throws KeeperException,
+                                                          InterruptedException;
+
+    void delete(String path, int version) throws KeeperException, InterruptedException;
+
+    /**
+     * apply ops atomically, either all or none of them
+     */
+    List<OpResult> multi(Iterable<Op> ops) throws KeeperException, InterruptedException;
+
+    /**
+     * register a watcher for connection state changes of the session,
+     * a watcher registered to a connected session is told 'SyncConnected' at once
+     *
+     * @param watcher
+     */
+    void addWatcher(Watcher watcher);
+
+    void removeWatcher(Watcher watcher);
+
+    /**
+     * give the store back, its session is closed once no component holds it any more
+     */
+    void release() throws InterruptedException;
+}
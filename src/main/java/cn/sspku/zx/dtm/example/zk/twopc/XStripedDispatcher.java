@@ -0,0 +1,372 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * moves the handling of ZK events off the single ZK event thread onto a fixed number of stripes.
+ *
+ *      1>each event is keyed by the xid in its path and always handled by the same stripe,
+ *        so events of one transaction stay in the order ZK delivered them while transactions run in parallel;
+ *      2>each stripe is one thread with a bounded queue, a full queue blocks the ZK event thread until it drains,
+ *        which slows ZK delivery down instead of buffering without limit; an interrupt does not end the wait,
+ *        since handling the event elsewhere would break the order of its transaction;
+ *      3>before start() and after stop() events are handled inline on the delivering thread,
+ *        so are events whose stripe stops while they wait for room in its queue.
+ *
+ * callbacks are striped by wrapping them once, e.g. stripes.data(callback), the wrapper costs one task per event.
+ */
+public class XStripedDispatcher {
+
+    private static final Logger LOG                    = LoggerFactory
+                                                           .getLogger(XStripedDispatcher.class);
+
+    /** default number of stripes, one per core */
+    public static final int     DEFAULT_STRIPES        = Runtime.getRuntime()
+                                                           .availableProcessors();
+
+    /** default capacity of the queue of each stripe */
+    public static final int     DEFAULT_QUEUE_CAPACITY = 4096;
+
+    /** how long a full queue is waited for before checking again whether the stripe still runs */
+    private static final long   OFFER_WAIT_MILLIS      = 100;
+
+    /**
+     * one worker thread and its queue
+     */
+    private static class Stripe implements Runnable {
+
+        private final BlockingQueue<Runnable> queue;
+        private final Thread                  thread;
+        private volatile boolean              running  = true;
+        private volatile long                 executed;
+
+        Stripe(String name, int capacity) {
+            this.queue = new ArrayBlockingQueue<Runnable>(capacity);
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+
+            while (running) {
+                Runnable task;
+                try {
+
+                    task = queue.take();
+
+                } catch (InterruptedException e) {
+
+                    continue;
+                }
+
+                try {
+
+                    task.run();
+
+                } catch (Throwable t) {
+
+                    //a dead stripe would fill its queue and block the ZK event thread for good
+                    LOG.error("Failed to handle a ZK event on " + thread.getName(), t);
+                }
+                executed++;
+            }
+        }
+
+        /**
+         * @return false if the stripe stopped before task could be queued
+         */
+        boolean execute(Runnable task) {
+
+            //a task dispatched by the stripe itself would wait for its own queue
+            if (Thread.currentThread() == thread) {
+                task.run();
+                return true;
+            }
+
+            boolean interrupted = false;
+            try {
+
+                while (running) {
+                    try {
+
+                        if (queue.offer(task, OFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                            //stop() may have made room by dropping the queue meanwhile
+                            return running || !queue.remove(task);
+                        }
+
+                    } catch (InterruptedException e) {
+
+                        interrupted = true;
+                    }
+                }
+                return false;
+
+            } finally {
+
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final String       name;
+    private int                stripeCount   = DEFAULT_STRIPES;
+    private int                queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    private volatile Stripe[]  stripes;
+
+    /**
+     * @param name prefix of the names of the stripe threads
+     */
+    public XStripedDispatcher(String name) {
+        this.name = name;
+    }
+
+    public synchronized void start() {
+
+        if (stripes != null)
+            return;
+
+        Stripe[] started = new Stripe[stripeCount];
+        for (int i = 0; i < started.length; i++) {
+            started[i] = new Stripe(name + "-stripe-" + i, queueCapacity);
+            started[i].thread.start();
+        }
+        stripes = started;
+    }
+
+    /**
+     * stop the stripes, events still queued are dropped
+     */
+    public synchronized void stop() {
+
+        Stripe[] stopped = stripes;
+        if (stopped == null)
+            return;
+
+        stripes = null;
+        int dropped = 0;
+        for (Stripe stripe : stopped) {
+            stripe.running = false;
+            stripe.thread.interrupt();
+            dropped += stripe.queue.size();
+            stripe.queue.clear();
+        }
+        if (dropped > 0)
+            LOG.warn("Stopped " + name + " with " + dropped + " events not handled.");
+    }
+
+    /**
+     * run task after all tasks dispatched before with the same xid
+     *
+     * @param xid key of the task, -1 if the event belongs to no transaction
+     * @param task
+     */
+    public void execute(long xid, Runnable task) {
+
+        Stripe[] current = stripes;
+        if (current == null || !current[indexOf(xid, current.length)].execute(task))
+            task.run();
+    }
+
+    /**
+     * xids of one shard are 256 apart, so they are mixed before taking the remainder
+     */
+    private static int indexOf(long xid, int stripes) {
+
+        long h = xid * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 33) % stripes);
+    }
+
+    /**
+     * @param callback
+     * @return callback handled on the stripe of the xid in the path of each result
+     */
+    public DataCallback data(final DataCallback callback) {
+
+        return new DataCallback() {
+
+            @Override
+            public void processResult(final int rc, final String path, final Object ctx,
+                                      final byte[] data, final Stat stat) {
+
+                execute(XPaths.xidOf(path), new Runnable() {
+
+                    @Override
+                    public void run() {
+                        callback.processResult(rc, path, ctx, data, stat);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * @param callback
+     * @return callback handled on the stripe of the xid in the path of each result
+     */
+    public ChildrenCallback children(final ChildrenCallback callback) {
+
+        return new ChildrenCallback() {
+
+            @Override
+            public void processResult(final int rc, final String path, final Object ctx,
+                                      final List<String> children) {
+
+                execute(XPaths.xidOf(path), new Runnable() {
+
+                    @Override
+                    public void run() {
+                        callback.processResult(rc, path, ctx, children);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * @param callback
+     * @return callback handled on the stripe of the xid in the path of each result
+     */
+    public StatCallback stat(final StatCallback callback) {
+
+        return new StatCallback() {
+
+            @Override
+            public void processResult(final int rc, final String path, final Object ctx,
+                                      final Stat stat) {
+
+                execute(XPaths.xidOf(path), new Runnable() {
+
+                    @Override
+                    public void run() {
+                        callback.processResult(rc, path, ctx, stat);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * @param callback
+     * @return callback handled on the stripe of the xid in the path of each result
+     */
+    public StringCallback string(final StringCallback callback) {
+
+        return new StringCallback() {
+
+            @Override
+            public void processResult(final int rc, final String path, final Object ctx,
+                                      final String name) {
+
+                execute(XPaths.xidOf(path), new Runnable() {
+
+                    @Override
+                    public void run() {
+                        callback.processResult(rc, path, ctx, name);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * @param watcher
+     * @return watcher handled on the stripe of the xid in the path of each event
+     */
+    public Watcher watcher(final Watcher watcher) {
+
+        return new Watcher() {
+
+            @Override
+            public void process(final WatchedEvent event) {
+
+                execute(XPaths.xidOf(event.getPath()), new Runnable() {
+
+                    @Override
+                    public void run() {
+                        watcher.process(event);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * @return number of events waiting in the queue of each stripe, empty if not started
+     */
+    public int[] getQueueDepths() {
+
+        Stripe[] current = stripes;
+        if (current == null)
+            return new int[0];
+
+        int[] depths = new int[current.length];
+        for (int i = 0; i < depths.length; i++)
+            depths[i] = current[i].queue.size();
+        return depths;
+    }
+
+    /**
+     * @return number of events handled by each stripe, empty if not started
+     */
+    public long[] getExecutedCounts() {
+
+        Stripe[] current = stripes;
+        if (current == null)
+            return new long[0];
+
+        long[] counts = new long[current.length];
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = current[i].executed;
+        return counts;
+    }
+
+    /**
+     * set before start()
+     *
+     * @param stripeCount
+     */
+    public void setStripeCount(int stripeCount) {
+
+        if (stripeCount <= 0)
+            throw new IllegalArgumentException("stripeCount must be positive: " + stripeCount);
+        this.stripeCount = stripeCount;
+    }
+
+    /**
+     * set before start()
+     *
+     * @param queueCapacity
+     */
+    public void setQueueCapacity(int queueCapacity) {
+
+        if (queueCapacity <= 0)
+            throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+        this.queueCapacity = queueCapacity;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder("XStripedDispatcher[").append(name).append(", depths=");
+        int[] depths = getQueueDepths();
+        for (int i = 0; i < depths.length; i++)
+            sb.append(i == 0 ? "" : ",").append(depths[i]);
+        return sb.append("]").toString();
+    }
+}
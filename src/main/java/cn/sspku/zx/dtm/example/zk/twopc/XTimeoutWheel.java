@@ -0,0 +1,273 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * hashed timing wheel for the deadlines of transaction phases.
+ * 
+ *      the wheel is an array of buckets, each bucket covers one tick; a timeout lands in the bucket of its deadline
+ *      and remembers how many whole rounds of the wheel are left before it expires.
+ *      scheduling and cancelling are O(1) and need no thread per timeout, a single worker thread advances the wheel.
+ *      
+ *      new and cancelled timeouts are handed over to the worker through lock-free queues, so buckets are only 
+ *      touched by the worker thread.
+ * 
+ * a deadline fires at most one tick late.
+ */
+public class XTimeoutWheel {
+
+    private static final Logger LOG                 = LoggerFactory.getLogger(XTimeoutWheel.class);
+
+    public static final long    DEFAULT_TICK_MILLIS = 100;
+    public static final int     DEFAULT_WHEEL_SIZE  = 512;
+
+    /**
+     * a scheduled task, doubly linked into its bucket
+     */
+    public static class Timeout {
+
+        private static final int PENDING   = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED   = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater
+                                                                          .newUpdater(Timeout.class,
+                                                                              "state");
+
+        private final XTimeoutWheel wheel;
+        private final Runnable      task;
+        private final long          deadline;
+        private volatile int        state;
+
+        private long                rounds;
+        private Bucket              bucket;
+        private Timeout             prev;
+        private Timeout             next;
+
+        Timeout(XTimeoutWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * cancel the timeout
+         * 
+         * @return whether the task is prevented from running
+         */
+        public boolean cancel() {
+
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED))
+                return false;
+
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+    }
+
+    private static class Bucket {
+
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout timeout) {
+
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+
+            if (timeout.prev != null)
+                timeout.prev.next = timeout.next;
+            if (timeout.next != null)
+                timeout.next.prev = timeout.prev;
+            if (timeout == head)
+                head = timeout.next;
+            if (timeout == tail)
+                tail = timeout.prev;
+
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    private final long           tickNanos;
+    private final Bucket[]       wheel;
+    private final int            mask;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+    private final long           startTime = System.nanoTime();
+
+    private volatile boolean     running;
+    private Thread               worker;
+    private long                 tick;
+
+    public XTimeoutWheel() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param tickMillis
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    public XTimeoutWheel(long tickMillis, int wheelSize) {
+
+        if (tickMillis <= 0 || wheelSize <= 0)
+            throw new IllegalArgumentException("tickMillis and wheelSize must be positive.");
+
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize)
+            size <<= 1;
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new Bucket[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+    }
+
+    public synchronized void start() {
+
+        if (running)
+            return;
+
+        running = true;
+        worker = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                work();
+            }
+        }, "dx-timeout-wheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * stop the worker, pending timeouts never fire
+     */
+    public void stop() {
+
+        running = false;
+        if (worker == null)
+            return;
+
+        worker.interrupt();
+        try {
+
+            worker.join();
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * run task once delay has elapsed, on the worker thread
+     * 
+     * @param task
+     * @param delay
+     * @param unit
+     * @return handle to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+
+        Timeout timeout = new Timeout(this, task, System.nanoTime() - startTime
+                                                  + unit.toNanos(delay));
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    private void work() {
+
+        while (running) {
+            long deadline = tickNanos * (tick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+
+                } catch (InterruptedException e) {
+
+                    if (!running)
+                        return;
+                }
+                continue;
+            }
+
+            removeCancelled();
+            transferScheduled();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null)
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+    }
+
+    private void transferScheduled() {
+
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state != Timeout.PENDING)
+                continue;
+
+            //never schedule into a bucket already passed
+            long ticks = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.rounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket) {
+
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                bucket.remove(timeout);
+                if (Timeout.STATE.compareAndSet(timeout, Timeout.PENDING, Timeout.EXPIRED)) {
+                    try {
+
+                        timeout.task.run();
+
+                    } catch (RuntimeException e) {
+
+                        LOG.error("Failed to run an expired timeout.", e);
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.util.Arrays;
+
+/**
+ * incremental tally of participants' votes in one transaction.
+ * 
+ * every participant is identified by the sequence number of its node and occupies one bit in each bitmap,
+ * so a vote is counted in O(1) and counted only once however many times its node is read.
+ * 
+ * a tally is mostly touched by the ZK callbacks of its own transaction, which are delivered one at a time,
+ * but expired timeouts read it from the timeout wheel, so its methods are synchronized; the lock is uncontended
+ * in the common case.
+ */
+public class XVoteTally {
+
+    private long[] registeredBits = new long[1];
+    private long[] preparedBits   = new long[1];
+    private long[] committedBits  = new long[1];
+    /** participants which voted 'ABORTED', 'READ_ONLY' or 'HEURISTIC', or whose node disappeared */
+    private long[] goneBits       = new long[1];
+
+    private int    registered;
+    private int    prepared;
+    private int    committed;
+    private int    aborted;
+    private int    readOnly;
+    private int    heuristic;
+
+    /**
+     * register a participant, the set of participants is frozen once the transaction starts preparing
+     * 
+     * @param seq
+     * @return whether seq is newly registered
+     */
+    public synchronized boolean register(int seq) {
+
+        if (seq < 0 || test(registeredBits, seq))
+            return false;
+
+        registeredBits = set(registeredBits, seq);
+        registered++;
+        return true;
+    }
+
+    /**
+     * count a 'PREPARED' vote
+     * 
+     * @param seq
+     * @return whether the vote is counted for the first time
+     */
+    public synchronized boolean prepared(int seq) {
+
+        if (!isLive(seq) || test(preparedBits, seq))
+            return false;
+
+        preparedBits = set(preparedBits, seq);
+        prepared++;
+        return true;
+    }
+
+    /**
+     * count a 'COMMITED' report
+     * 
+     * @param seq
+     * @return whether the report is counted for the first time
+     */
+    public synchronized boolean committed(int seq) {
+
+        if (!isLive(seq) || test(committedBits, seq))
+            return false;
+
+        committedBits = set(committedBits, seq);
+        committed++;
+        return true;
+    }
+
+    /**
+     * count a 'READ_ONLY' vote, the participant is prepared and leaves the transaction at once:
+     * it takes no part in phase two and is not waited for to complete.
+     * 
+     * @param seq
+     * @return whether the vote is counted for the first time
+     */
+    public synchronized boolean readOnly(int seq) {
+
+        if (!isLive(seq) || test(preparedBits, seq))
+            return false;
+
+        preparedBits = set(preparedBits, seq);
+        goneBits = set(goneBits, seq);
+        prepared++;
+        readOnly++;
+        return true;
+    }
+
+    /**
+     * count an 'ABORTED' vote or the disappearance of a participant node
+     * 
+     * @param seq
+     * @return whether the participant is counted as aborted for the first time
+     */
+    public synchronized boolean aborted(int seq) {
+
+        if (!isLive(seq))
+            return false;
+
+        goneBits = set(goneBits, seq);
+        aborted++;
+        return true;
+    }
+
+    /**
+     * count a 'HEURISTIC' report, the participant gave up committing and is written to no more;
+     * the transaction is never all committed then.
+     * 
+     * @param seq
+     * @return whether the report is counted for the first time
+     */
+    public synchronized boolean heuristic(int seq) {
+
+        if (!isLive(seq))
+            return false;
+
+        goneBits = set(goneBits, seq);
+        heuristic++;
+        return true;
+    }
+
+    /**
+     * @param seq
+     * @return whether seq is registered and has neither aborted, left as read-only nor disappeared
+     */
+    public synchronized boolean isLive(int seq) {
+
+        return seq >= 0 && test(registeredBits, seq) && !test(goneBits, seq);
+    }
+
+    /**
+     * @return sequence numbers of all live participants, in ascending order
+     */
+    public synchronized int[] liveMembers() {
+
+        int[] members = new int[registered - aborted - readOnly - heuristic];
+        int n = 0;
+        for (int w = 0; w < registeredBits.length; w++) {
+            long bits = registeredBits[w] & ~(w < goneBits.length ? goneBits[w] : 0L);
+            while (bits != 0) {
+                int bit = Long.numberOfTrailingZeros(bits);
+                members[n++] = (w << 6) + bit;
+                bits &= bits - 1;
+            }
+        }
+        return members;
+    }
+
+    public synchronized boolean isAllPrepared() {
+        return aborted == 0 && prepared == registered;
+    }
+
+    public synchronized boolean isAllCommitted() {
+        return aborted == 0 && committed + readOnly == registered;
+    }
+
+    public synchronized int getRegistered() {
+        return registered;
+    }
+
+    public synchronized int getPrepared() {
+        return prepared;
+    }
+
+    public synchronized int getCommitted() {
+        return committed;
+    }
+
+    public synchronized int getAborted() {
+        return aborted;
+    }
+
+    public synchronized int getReadOnly() {
+        return readOnly;
+    }
+
+    public synchronized int getHeuristic() {
+        return heuristic;
+    }
+
+    /**
+     * @return number of participants which take part in phase two
+     */
+    public synchronized int getLive() {
+        return registered - aborted - readOnly - heuristic;
+    }
+
+    private static boolean test(long[] bits, int seq) {
+
+        int w = seq >>> 6;
+        return w < bits.length && (bits[w] & (1L << seq)) != 0;
+    }
+
+    private static long[] set(long[] bits, int seq) {
+
+        int w = seq >>> 6;
+        if (w >= bits.length)
+            bits = Arrays.copyOf(bits, Math.max(w + 1, bits.length << 1));
+
+        bits[w] |= 1L << seq;
+        return bits;
+    }
+
+    @Override
+    public String toString() {
+        return "registered=" + registered + ", prepared=" + prepared + ", readOnly=" + readOnly
+               + ", committed=" + committed + ", aborted=" + aborted + ", heuristic="
+               + heuristic;
+    }
+}
@@ -0,0 +1,127 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs.Ids;
+
+import cn.sspku.zx.dtm.example.zk.SessionManager;
+import cn.sspku.zx.dtm.example.zk.SessionManager.SharedSession;
+
+/**
+ * XStore on a ZK session shared through a SessionManager.
+ *
+ *      every operation goes to the current session, so the store survives the session being re-created after expiry;
+ *      nodes are created with OPEN_ACL_UNSAFE, a null watcher maps to 'watch = false'.
+ */
+public class XZkStore implements XStore {
+
+    /** stores on the sessions of the process-wide session manager */
+    public static final Provider DEFAULT_PROVIDER = providerOf(SessionManager.getDefault());
+
+    private final SharedSession  session;
+
+    public XZkStore(SharedSession session) {
+        this.session = session;
+    }
+
+    /**
+     * @param sessionManager
+     * @return provider of stores on the sessions shared through sessionManager
+     */
+    public static Provider providerOf(final SessionManager sessionManager) {
+
+        return new Provider() {
+
+            @Override
+            public XStore acquire(String address) throws IOException {
+                return new XZkStore(sessionManager.acquire(address));
+            }
+
+            @Override
+            public String toString() {
+                return "ZooKeeper";
+            }
+        };
+    }
+
+    @Override
+    public void create(String path, byte[] data, CreateMode mode, StringCallback cb, Object ctx) {
+        session.get().create(path, data, Ids.OPEN_ACL_UNSAFE, mode, cb, ctx);
+    }
+
+    @Override
+    public void setData(String path, byte[] data, int version, StatCallback cb, Object ctx) {
+        session.get().setData(path, data, version, cb, ctx);
+    }
+
+    @Override
+    public void getData(String path, Watcher watcher, DataCallback cb, Object ctx) {
+        if (watcher == null)
+            session.get().getData(path, false, cb, ctx);
+        else
+            session.get().getData(path, watcher, cb, ctx);
+    }
+
+    @Override
+    public void exists(String path, Watcher watcher, StatCallback cb, Object ctx) {
+        if (watcher == null)
+            session.get().exists(path, false, cb, ctx);
+        else
+            session.get().exists(path, watcher, cb, ctx);
+    }
+
+    @Override
+    public void getChildren(String path, Watcher watcher, ChildrenCallback cb, Object ctx) {
+        if (watcher == null)
+            session.get().getChildren(path, false, cb, ctx);
+        else
+            session.get().getChildren(path, watcher, cb, ctx);
+    }
+
+    @Override
+    public List<String> getChildren(String path, Watcher watcher) throws KeeperException,
+                                                                 InterruptedException {
+        return watcher == null ? session.get().getChildren(path, false) : session.get()
+            .getChildren(path, watcher);
+    }
+
+    @Override
+    public void delete(String path, int version) throws KeeperException, InterruptedException {
+        session.get().delete(path, version);
+    }
+
+    @Override
+    public List<OpResult> multi(Iterable<Op> ops) throws KeeperException, InterruptedException {
+        return session.get().multi(ops);
+    }
+
+    @Override
+    public void addWatcher(Watcher watcher) {
+        session.addWatcher(watcher);
+    }
+
+    @Override
+    public void removeWatcher(Watcher watcher) {
+        session.removeWatcher(watcher);
+    }
+
+    @Override
+    public void release() throws InterruptedException {
+        session.release();
+    }
+
+    @Override
+    public String toString() {
+        return "XZkStore[" + session + "]";
+    }
+}
@@ -0,0 +1,128 @@
+package cn.sspku.zx.dtm.trans;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * the distributed transaction of the current thread, started by the outermost @DistributedTransactional method.
+ *
+ *      1>each thread owns exactly one context, reused by all its transactions, so propagating it costs one
+ *        ThreadLocal.get and allocates nothing;
+ *      2>the transaction is begun at the coordinator when the first two-phrase resource is enlisted,
+ *        a method touching no resource causes no ZK traffic at all;
+ *      3>the context does not follow the call into other threads, hand getOrBeginXid() to them explicitly.
+ */
+public final class DXContext {
+
+    /** xid of a context which has not begun its transaction */
+    public static final long                NO_XID  = -1;
+
+    private static final ThreadLocal<DXContext> CURRENT = new ThreadLocal<DXContext>() {
+
+                                                           @Override
+                                                           protected DXContext initialValue() {
+                                                               return new DXContext();
+                                                           }
+                                                       };
+
+    /** the interceptor running the transaction, null if there is none */
+    private DXTransactionInterceptor        owner;
+    private long                            xid     = NO_XID;
+    private boolean                         rollbackOnly;
+    /** targets of the enlisted resources, compared by identity */
+    private final List<Object>              enlisted = new ArrayList<Object>(4);
+
+    private DXContext() {
+    }
+
+    /**
+     * @return the context of the current thread, never null
+     */
+    public static DXContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return whether the current thread runs within a @DistributedTransactional method
+     */
+    public boolean isActive() {
+        return owner != null;
+    }
+
+    /**
+     * @return xid of the transaction, NO_XID if no resource has been enlisted yet
+     */
+    public long getXid() {
+        return xid;
+    }
+
+    /**
+     * begin the transaction now if no resource has been enlisted yet, e.g. to pass the xid to a remote participant
+     *
+     * @return xid of the transaction
+     * @throws IllegalStateException if there is no active transaction
+     */
+    public long getOrBeginXid() {
+
+        if (owner == null)
+            throw new IllegalStateException("No active distributed transaction.");
+        if (xid == NO_XID)
+            xid = owner.begin();
+        return xid;
+    }
+
+    public boolean isRollbackOnly() {
+        return rollbackOnly;
+    }
+
+    /**
+     * make the outermost method abort the transaction instead of committing it
+     */
+    public void setRollbackOnly() {
+        rollbackOnly = true;
+    }
+
+    /**
+     * enlist target into the transaction, once per target
+     *
+     * @param definition
+     * @param target
+     */
+    <T> void enlist(TwoPhraseDefinition<T> definition, T target) {
+
+        for (int i = 0; i < enlisted.size(); i++)
+            if (enlisted.get(i) == target)
+                return;
+
+        owner.enlist(getOrBeginXid(), definition, target);
+        enlisted.add(target);
+    }
+
+    /**
+     * start a transaction run by owner on the current thread
+     */
+    void open(DXTransactionInterceptor owner) {
+
+        if (this.owner != null)
+            throw new IllegalStateException("Distributed transaction " + xid
+                                            + " is already active.");
+        this.owner = owner;
+    }
+
+    /**
+     * forget the transaction, the context is ready for the next one
+     */
+    void close() {
+
+        owner = null;
+        xid = NO_XID;
+        rollbackOnly = false;
+        enlisted.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "DXContext[active=" + isActive() + ", xid=" + xid + ", rollbackOnly=" + rollbackOnly
+               + ", resources=" + enlisted.size() + "]";
+    }
+}
@@ -0,0 +1,166 @@
+package cn.sspku.zx.dtm.trans;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cn.sspku.zx.dtm.example.zk.twopc.DXParticipant;
+import cn.sspku.zx.dtm.example.zk.twopc.XHeuristicReport;
+
+/**
+ * the participant of the two-phrase resources enlisted by @DistributedTransactional methods of this process.
+ *
+ *      1>it registers to a transaction when the first resource is enlisted into it;
+ *      2>the first and second actions already ran when the resources were called, so prepare does nothing;
+ *      3>commit and rollback of the transaction commit or roll back every resource enlisted into it.
+ */
+public class DXResourceParticipant extends DXParticipant {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DXResourceParticipant.class);
+
+    /** resources enlisted into each transaction, keyed by xid */
+    private final ConcurrentMap<Long, List<Resource<?>>> resources = new ConcurrentHashMap<Long, List<Resource<?>>>();
+
+    /**
+     * a target and its definition, committed at most once
+     */
+    private static final class Resource<T> {
+
+        final TwoPhraseDefinition<T> definition;
+        final T                      target;
+        volatile boolean             committed;
+
+        Resource(TwoPhraseDefinition<T> definition, T target) {
+            this.definition = definition;
+            this.target = target;
+        }
+
+        void commit() throws Throwable {
+
+            if (!committed) {
+                definition.commit(target);
+                committed = true;
+            }
+        }
+
+        void rollback() throws Throwable {
+            definition.rollback(target);
+        }
+
+        @Override
+        public String toString() {
+            return definition.getType().getSimpleName() + "[" + target + "]";
+        }
+    }
+
+    /**
+     * enlist target into the transaction xid
+     *
+     * @param xid
+     * @param definition
+     * @param target
+     * @return future of the registration to xid, already completed unless target is the first resource of xid
+     */
+    public <T> CompletableFuture<Long> enlist(long xid, TwoPhraseDefinition<T> definition, T target) {
+
+        List<Resource<?>> list = resources.get(xid);
+        if (list != null) {
+            list.add(new Resource<T>(definition, target));
+            return CompletableFuture.completedFuture(xid);
+        }
+
+        list = new CopyOnWriteArrayList<Resource<?>>();
+        list.add(new Resource<T>(definition, target));
+        List<Resource<?>> existing = resources.putIfAbsent(xid, list);
+        if (existing != null) {
+            existing.add(new Resource<T>(definition, target));
+            return CompletableFuture.completedFuture(xid);
+        }
+
+        final long enlisted = xid;
+        return register(xid).whenComplete(new BiConsumer<Long, Throwable>() {
+
+            @Override
+            public void accept(Long result, Throwable cause) {
+
+                // not registered, nothing will ever commit or roll back the resource
+                if (cause != null)
+                    resources.remove(enlisted);
+            }
+        });
+    }
+
+    /**
+     * @param xid
+     * @return number of resources enlisted into xid and not yet committed or rolled back
+     */
+    public int getResourceCount(long xid) {
+
+        List<Resource<?>> list = resources.get(xid);
+        return list == null ? 0 : list.size();
+    }
+
+    /**
+     * commit every resource of xid, a failure leaves the committed ones alone so the retrier resumes from the rest
+     */
+    @Override
+    protected void doBusinessCommit(long xid) {
+
+        List<Resource<?>> list = resources.get(xid);
+        if (list == null)
+            return;
+
+        for (Resource<?> resource : list) {
+            try {
+
+                resource.commit();
+
+            } catch (RuntimeException e) {
+
+                throw e;
+            } catch (Error e) {
+
+                throw e;
+            } catch (Throwable t) {
+
+                throw new IllegalStateException("Failed to commit " + resource + " of " + xid, t);
+            }
+        }
+        resources.remove(xid);
+    }
+
+    /**
+     * roll back every resource of xid, a failure is logged and the others are still rolled back
+     */
+    @Override
+    protected void doBusinessRollback(long xid) {
+
+        List<Resource<?>> list = resources.remove(xid);
+        if (list == null)
+            return;
+
+        for (Resource<?> resource : list) {
+            try {
+
+                resource.rollback();
+
+            } catch (Throwable t) {
+
+                LOG.error("Failed to roll back " + resource + " of " + xid, t);
+            }
+        }
+    }
+
+    @Override
+    protected void onHeuristicOutcome(XHeuristicReport report) {
+
+        resources.remove(report.getXid());
+        super.onHeuristicOutcome(report);
+    }
+}
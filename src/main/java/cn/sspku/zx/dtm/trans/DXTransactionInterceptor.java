@@ -0,0 +1,208 @@
+package cn.sspku.zx.dtm.trans;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cn.sspku.zx.dtm.example.zk.twopc.DXCoordinator;
+import cn.sspku.zx.dtm.example.zk.twopc.XFutures;
+import cn.sspku.zx.dtm.example.zk.twopc.XOutcome;
+
+/**
+ * runs @DistributedTransactional methods within a distributed transaction.
+ *
+ *      1>the outermost method opens the DXContext of its thread, nested methods just join it;
+ *      2>@TwoPhrase proxies called meanwhile enlist their resources into the context, the first one begins
+ *        the transaction at the coordinator and registers the participant;
+ *      3>when the outermost method returns the transaction is committed, or aborted if it was marked rollback-only;
+ *        when it throws the transaction is aborted and the exception rethrown;
+ *      4>a method which enlisted nothing ends without touching ZK.
+ *
+ * the annotation is matched once per method by the pointcut, see DXTransactionPostProcessor, never per call.
+ */
+public class DXTransactionInterceptor implements MethodInterceptor {
+
+    private static final Logger      LOG                    = LoggerFactory
+                                                                .getLogger(DXTransactionInterceptor.class);
+
+    /** default bound of every wait on the coordinator */
+    public static final long         DEFAULT_TIMEOUT_MILLIS = 30000;
+
+    /** shard value letting the coordinator pick the shard */
+    public static final int          ANY_SHARD              = -1;
+
+    private DXCoordinator            coordinator;
+    private DXResourceParticipant    participant;
+    private long                     timeoutMillis          = DEFAULT_TIMEOUT_MILLIS;
+    /** shard of the transactions, ANY_SHARD spreads them over all shards */
+    private int                      shard                  = ANY_SHARD;
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+
+        DXContext context = DXContext.current();
+        if (context.isActive()) {
+            try {
+
+                return invocation.proceed();
+
+            } catch (Throwable t) {
+
+                context.setRollbackOnly();
+                throw t;
+            }
+        }
+
+        context.open(this);
+        try {
+
+            Object result;
+            try {
+
+                result = invocation.proceed();
+
+            } catch (Throwable t) {
+
+                rollback(context, t);
+                throw t;
+            }
+            complete(context);
+            return result;
+
+        } finally {
+
+            context.close();
+        }
+    }
+
+    /**
+     * commit the transaction of context, or abort it if it is rollback-only
+     */
+    private void complete(DXContext context) {
+
+        long xid = context.getXid();
+        if (xid == DXContext.NO_XID)
+            return;
+
+        if (context.isRollbackOnly()) {
+            await(coordinator.abort(xid), xid);
+            throw new IllegalStateException("Transaction " + xid
+                                            + " was marked rollback-only and is rolled back.");
+        }
+
+        XOutcome outcome = await(coordinator.commit(xid), xid);
+        if (!outcome.isCommitted())
+            throw new IllegalStateException("Transaction " + xid + " aborted: " + outcome);
+    }
+
+    /**
+     * abort the transaction of context after the method threw cause
+     */
+    private void rollback(DXContext context, Throwable cause) {
+
+        long xid = context.getXid();
+        if (xid == DXContext.NO_XID)
+            return;
+
+        try {
+
+            await(coordinator.abort(xid), xid);
+
+        } catch (RuntimeException e) {
+
+            LOG.error("Failed to abort transaction " + xid, e);
+            cause.addSuppressed(e);
+        }
+    }
+
+    /**
+     * begin a transaction, called by DXContext on the first enlistment
+     *
+     * @return xid
+     */
+    long begin() {
+        return await(shard == ANY_SHARD ? coordinator.begin() : coordinator.begin(shard),
+            DXContext.NO_XID);
+    }
+
+    /**
+     * enlist target into xid, called by DXContext once per target
+     */
+    <T> void enlist(long xid, TwoPhraseDefinition<T> definition, T target) {
+        await(participant.enlist(xid, definition, target), xid);
+    }
+
+    private <T> T await(CompletableFuture<T> future, long xid) {
+
+        try {
+
+            return XFutures.within(future, timeoutMillis, TimeUnit.MILLISECONDS).get();
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for transaction " + xid, e);
+        } catch (ExecutionException e) {
+
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException)
+                throw new IllegalStateException("Transaction " + xid + " is in doubt: "
+                                                + cause.getMessage(), cause);
+            throw new IllegalStateException("Transaction " + xid + " failed", cause);
+        }
+    }
+
+    public DXCoordinator getCoordinator() {
+        return coordinator;
+    }
+
+    public void setCoordinator(DXCoordinator coordinator) {
+        this.coordinator = coordinator;
+    }
+
+    public DXResourceParticipant getParticipant() {
+        return participant;
+    }
+
+    public void setParticipant(DXResourceParticipant participant) {
+        this.participant = participant;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * bound every wait on the coordinator, the transaction itself goes on when a wait times out
+     *
+     * @param timeoutMillis
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+
+        if (timeoutMillis <= 0)
+            throw new IllegalArgumentException("timeoutMillis must be positive: " + timeoutMillis);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    /**
+     * begin every transaction in one shard, e.g. next to the data of the service
+     *
+     * @param shard index of the shard, or ANY_SHARD
+     */
+    public void setShard(int shard) {
+
+        if (shard < ANY_SHARD)
+            throw new IllegalArgumentException("Illegal shard: " + shard);
+        this.shard = shard;
+    }
+}
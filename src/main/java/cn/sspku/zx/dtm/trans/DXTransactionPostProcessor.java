@@ -0,0 +1,35 @@
+package cn.sspku.zx.dtm.trans;
+
+import org.springframework.aop.Pointcut;
+import org.springframework.aop.framework.AbstractAdvisingBeanPostProcessor;
+import org.springframework.aop.support.ComposablePointcut;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
+
+import cn.sspku.zx.dtm.anno.DistributedTransactional;
+
+/**
+ * proxies the beans having @DistributedTransactional classes or methods with a DXTransactionInterceptor.
+ *
+ *      <bean class="cn.sspku.zx.dtm.trans.DXTransactionPostProcessor">
+ *          <property name="interceptor" ref="dxTransactionInterceptor"/>
+ *      </bean>
+ */
+public class DXTransactionPostProcessor extends AbstractAdvisingBeanPostProcessor {
+
+    private static final long serialVersionUID = 1L;
+
+    /** matches the methods of annotated classes and the annotated methods */
+    static final Pointcut     POINTCUT         = new ComposablePointcut(new AnnotationMatchingPointcut(
+                                                   DistributedTransactional.class, true))
+                                                   .union(AnnotationMatchingPointcut
+                                                       .forMethodAnnotation(DistributedTransactional.class));
+
+    public DXTransactionPostProcessor() {
+        setBeforeExistingAdvisors(true);
+    }
+
+    public void setInterceptor(DXTransactionInterceptor interceptor) {
+        this.advisor = new DefaultPointcutAdvisor(POINTCUT, interceptor);
+    }
+}
@@ -0,0 +1,194 @@
+package cn.sspku.zx.dtm.trans;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import cn.sspku.zx.dtm.anno.TwoPhrase;
+
+/**
+ * an interface annotated with @TwoPhrase, checked and resolved once.
+ *
+ *      1>every method named by the annotation must exist exactly once, commit and rollback must take no parameters,
+ *        otherwise compile fails with IllegalArgumentException, so a wrong name is found at boot;
+ *      2>every method of the interface is bound to a MethodHandle of type (Object, Object[])Object,
+ *        so invoking it costs one hash lookup and one invokeExact, never a reflective lookup.
+ */
+public final class TwoPhraseDefinition<T> {
+
+    /** the role of a method of the interface */
+    public enum Role {
+        FIRST_ACTION, SECOND_ACTION, COMMIT, ROLLBACK, OTHER
+    }
+
+    /**
+     * a method of the interface and its bound handle
+     */
+    static final class Invoker {
+
+        final Method       method;
+        final Role         role;
+        /** (Object target, Object[] args)Object */
+        final MethodHandle handle;
+
+        Invoker(Method method, Role role, MethodHandle handle) {
+            this.method = method;
+            this.role = role;
+            this.handle = handle;
+        }
+
+        Object invoke(Object target, Object[] args) throws Throwable {
+            return (Object) handle.invokeExact(target, args);
+        }
+    }
+
+    private static final MethodType   INVOKER_TYPE = MethodType.methodType(Object.class,
+                                                       Object.class, Object[].class);
+    private static final Object[]     NO_ARGS      = new Object[0];
+
+    private final Class<T>            type;
+    private final TwoPhrase           annotation;
+    private final Map<Method, Invoker> invokers;
+    private final Invoker             commit;
+    private final Invoker             rollback;
+
+    private TwoPhraseDefinition(Class<T> type, TwoPhrase annotation, Map<Method, Invoker> invokers,
+                                Invoker commit, Invoker rollback) {
+        this.type = type;
+        this.annotation = annotation;
+        this.invokers = invokers;
+        this.commit = commit;
+        this.rollback = rollback;
+    }
+
+    /**
+     * @param type
+     * @return the definition of type
+     * @throws IllegalArgumentException if type is not a well-formed @TwoPhrase interface
+     */
+    public static <T> TwoPhraseDefinition<T> compile(Class<T> type) {
+
+        if (!type.isInterface())
+            throw new IllegalArgumentException(type.getName() + " is not an interface.");
+        TwoPhrase annotation = type.getAnnotation(TwoPhrase.class);
+        if (annotation == null)
+            throw new IllegalArgumentException(type.getName() + " is not annotated with @"
+                                               + TwoPhrase.class.getSimpleName() + ".");
+
+        Map<String, Role> roles = new HashMap<String, Role>();
+        roleOf(type, roles, annotation.firstAction(), Role.FIRST_ACTION);
+        roleOf(type, roles, annotation.secondAction(), Role.SECOND_ACTION);
+        roleOf(type, roles, annotation.commit(), Role.COMMIT);
+        roleOf(type, roles, annotation.rollback(), Role.ROLLBACK);
+
+        Map<Method, Invoker> invokers = new HashMap<Method, Invoker>();
+        Map<Role, Invoker> byRole = new HashMap<Role, Invoker>();
+        for (Method method : type.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers()))
+                continue;
+
+            Role role = roles.get(method.getName());
+            if (role == null)
+                role = Role.OTHER;
+            else if (byRole.containsKey(role))
+                throw new IllegalArgumentException(type.getName() + "." + method.getName()
+                                                   + " named as " + role
+                                                   + " is overloaded, it must be unique.");
+            if ((role == Role.COMMIT || role == Role.ROLLBACK)
+                && method.getParameterTypes().length > 0)
+                throw new IllegalArgumentException(type.getName() + "." + method.getName()
+                                                   + " named as " + role
+                                                   + " must take no parameters.");
+
+            Invoker invoker = new Invoker(method, role, bind(method));
+            invokers.put(method, invoker);
+            if (role != Role.OTHER)
+                byRole.put(role, invoker);
+        }
+
+        for (Map.Entry<String, Role> entry : roles.entrySet())
+            if (!byRole.containsKey(entry.getValue()))
+                throw new IllegalArgumentException(type.getName() + " has no method "
+                                                   + entry.getKey() + " named as "
+                                                   + entry.getValue() + ".");
+
+        return new TwoPhraseDefinition<T>(type, annotation, Collections.unmodifiableMap(invokers),
+            byRole.get(Role.COMMIT), byRole.get(Role.ROLLBACK));
+    }
+
+    private static void roleOf(Class<?> type, Map<String, Role> roles, String name, Role role) {
+
+        if (name == null || name.isEmpty())
+            throw new IllegalArgumentException("@TwoPhrase of " + type.getName() + " names no "
+                                               + role + ".");
+        Role other = roles.put(name, role);
+        if (other != null)
+            throw new IllegalArgumentException("@TwoPhrase of " + type.getName() + " names "
+                                               + name + " as both " + other + " and " + role
+                                               + ".");
+    }
+
+    /**
+     * @return handle of method adapted to (Object target, Object[] args)Object
+     */
+    private static MethodHandle bind(Method method) {
+
+        try {
+
+            if (!Modifier.isPublic(method.getDeclaringClass().getModifiers()))
+                method.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflect(method);
+            return handle.asSpreader(Object[].class, method.getParameterTypes().length).asType(
+                INVOKER_TYPE);
+
+        } catch (IllegalAccessException e) {
+
+            throw new IllegalArgumentException("Cannot access " + method, e);
+        } catch (RuntimeException e) {
+
+            throw new IllegalArgumentException("Cannot bind " + method, e);
+        }
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    public TwoPhrase getAnnotation() {
+        return annotation;
+    }
+
+    /**
+     * @param method a method of the interface, e.g. as passed to an InvocationHandler
+     * @return its invoker, null if it is not a method of the interface
+     */
+    Invoker invokerOf(Method method) {
+        return invokers.get(method);
+    }
+
+    /**
+     * invoke the commit method on target
+     */
+    public void commit(T target) throws Throwable {
+        commit.invoke(target, NO_ARGS);
+    }
+
+    /**
+     * invoke the rollback method on target
+     */
+    public void rollback(T target) throws Throwable {
+        rollback.invoke(target, NO_ARGS);
+    }
+
+    @Override
+    public String toString() {
+        return "TwoPhraseDefinition[" + type.getName() + ", first=" + annotation.firstAction()
+               + ", second=" + annotation.secondAction() + ", commit=" + annotation.commit()
+               + ", rollback=" + annotation.rollback() + "]";
+    }
+}
@@ -0,0 +1,188 @@
+package cn.sspku.zx.dtm.trans;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cn.sspku.zx.dtm.trans.TwoPhraseDefinition.Invoker;
+import cn.sspku.zx.dtm.trans.TwoPhraseDefinition.Role;
+
+/**
+ * turns implementations of @TwoPhrase interfaces into transactional proxies.
+ *
+ *      1>a call to the first or the second action that throws rolls the resource back before the exception is rethrown;
+ *      2>a second action that returns commits the resource;
+ *      3>commit, rollback and the other methods of the interface are passed through.
+ *
+ * within a @DistributedTransactional method the actions enlist the resource into the DXContext of the thread instead,
+ * it is committed or rolled back with the distributed transaction, and an action that throws marks it rollback-only.
+ *
+ * definitions are compiled once per interface and cached, register the interfaces at boot so a misconfigured
+ * annotation fails the boot instead of the first call.
+ */
+public class TwoPhraseEngine {
+
+    private static final Logger          LOG     = LoggerFactory.getLogger(TwoPhraseEngine.class);
+
+    private static final TwoPhraseEngine DEFAULT = new TwoPhraseEngine();
+
+    private static final Object[]        NO_ARGS = new Object[0];
+
+    private final ConcurrentMap<Class<?>, TwoPhraseDefinition<?>> definitions = new ConcurrentHashMap<Class<?>, TwoPhraseDefinition<?>>();
+
+    /**
+     * @return the engine shared by the whole process
+     */
+    public static TwoPhraseEngine getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * compile the definitions of types now
+     *
+     * @param types
+     * @throws IllegalArgumentException if any type is not a well-formed @TwoPhrase interface
+     */
+    public void register(Class<?>... types) {
+
+        for (Class<?> type : types)
+            definitionOf(type);
+    }
+
+    /**
+     * @param type
+     * @return the definition of type, compiled on first use
+     */
+    @SuppressWarnings("unchecked")
+    public <T> TwoPhraseDefinition<T> definitionOf(Class<T> type) {
+
+        TwoPhraseDefinition<?> definition = definitions.get(type);
+        if (definition == null) {
+            definition = TwoPhraseDefinition.compile(type);
+            TwoPhraseDefinition<?> existing = definitions.putIfAbsent(type, definition);
+            if (existing != null)
+                definition = existing;
+            else
+                LOG.info("Compiled " + definition);
+        }
+        return (TwoPhraseDefinition<T>) definition;
+    }
+
+    /**
+     * @param type a @TwoPhrase interface
+     * @param target implementation of type
+     * @return proxy of target running the two phrases of type
+     */
+    public <T> T newProxy(Class<T> type, T target) {
+
+        if (!type.isInstance(target))
+            throw new IllegalArgumentException(target + " does not implement " + type.getName());
+
+        TwoPhraseDefinition<T> definition = definitionOf(type);
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+            new Handler<T>(definition, target)));
+    }
+
+    /**
+     * @param proxy
+     * @return whether proxy was made by newProxy
+     */
+    public static boolean isProxy(Object proxy) {
+
+        return proxy != null && Proxy.isProxyClass(proxy.getClass())
+               && Proxy.getInvocationHandler(proxy) instanceof Handler;
+    }
+
+    /**
+     * dispatches the calls of a proxy through the invokers of its definition
+     */
+    static class Handler<T> implements InvocationHandler {
+
+        final TwoPhraseDefinition<T> definition;
+        final T                      target;
+
+        Handler(TwoPhraseDefinition<T> definition, T target) {
+            this.definition = definition;
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+            Invoker invoker = definition.invokerOf(method);
+            if (invoker == null)
+                return invokeObjectMethod(proxy, method, args);
+            if (args == null)
+                args = NO_ARGS;
+
+            if (invoker.role == Role.FIRST_ACTION || invoker.role == Role.SECOND_ACTION) {
+                DXContext context = DXContext.current();
+                if (context.isActive())
+                    return invokeEnlisted(context, invoker, args);
+            }
+
+            switch (invoker.role) {
+                case FIRST_ACTION:
+                    return invokeOrRollback(invoker, args);
+                case SECOND_ACTION:
+                    Object result = invokeOrRollback(invoker, args);
+                    definition.commit(target);
+                    return result;
+                default:
+                    return invoker.invoke(target, args);
+            }
+        }
+
+        private Object invokeEnlisted(DXContext context, Invoker invoker, Object[] args)
+                                                                                        throws Throwable {
+
+            try {
+
+                context.enlist(definition, target);
+                return invoker.invoke(target, args);
+
+            } catch (Throwable t) {
+
+                context.setRollbackOnly();
+                throw t;
+            }
+        }
+
+        private Object invokeOrRollback(Invoker invoker, Object[] args) throws Throwable {
+
+            try {
+
+                return invoker.invoke(target, args);
+
+            } catch (Throwable t) {
+
+                try {
+
+                    definition.rollback(target);
+
+                } catch (Throwable e) {
+
+                    t.addSuppressed(e);
+                }
+                throw t;
+            }
+        }
+
+        private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+
+            String name = method.getName();
+            if ("equals".equals(name) && args != null && args.length == 1)
+                return proxy == args[0];
+            if ("hashCode".equals(name))
+                return System.identityHashCode(proxy);
+            if ("toString".equals(name))
+                return "TwoPhraseProxy[" + definition.getType().getName() + ", " + target + "]";
+            throw new UnsupportedOperationException(method.toString());
+        }
+    }
+}
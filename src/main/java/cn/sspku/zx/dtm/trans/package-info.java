@@ -1,8 +1,12 @@
 /**
  * through encapsulating algorithm and AOP technique, offer easy-to-use distributed transaction support for daily-use business.
+ *
+ *      1>TwoPhraseEngine turns @TwoPhrase resources into transactional proxies;
+ *      2>DXTransactionPostProcessor runs @DistributedTransactional methods within a distributed transaction,
+ *        propagated through the DXContext of the thread.
  */
 /**
  * @author zhangxu
  *
  */
-package cn.sspku.zx.dtm.trans;
\ No newline at end of file
+package cn.sspku.zx.dtm.trans;
@@ -0,0 +1,252 @@
+package cn.sspku.zx.dtm.xml;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cn.sspku.zx.dtm.example.zk.twopc.XShards;
+
+/**
+ * compiles XML definitions into the binary descriptor cache read by DXDefinitions.
+ *
+ *      run it at build time to ship the cache with the application:
+ *          java cn.sspku.zx.dtm.xml.DXDefinitionCompiler dtm.xml dtm.dxd
+ *      or let DXDefinitions.load compile it at the first start.
+ *
+ * layout, big-endian, every reference to a string is its absolute offset:
+ *
+ *      header       : int magic, int version, long fingerprint of the XML,
+ *                     int shard count, int service count, int participant count,
+ *                     int offset of services, int offset of participants, int offset of the participant index;
+ *      shards       : (int connectString, int chroot) each;
+ *      services     : (int name, int shard, long timeoutMillis, int first index entry, int participant count) each,
+ *                     sorted by name;
+ *      participants : (int name, int interface, int class, int service) each, sorted by name;
+ *      index        : int participant number, the participants of each service in declaration order;
+ *      strings      : (unsigned short length, UTF-8 bytes) each.
+ */
+public final class DXDefinitionCompiler {
+
+    private static final Logger LOG                = LoggerFactory
+                                                       .getLogger(DXDefinitionCompiler.class);
+
+    /** "DXDC" */
+    static final int            MAGIC              = 0x44584443;
+    static final int            VERSION            = 1;
+
+    static final int            HEADER_SIZE        = 40;
+    static final int            SHARD_SIZE         = 8;
+    static final int            SERVICE_SIZE       = 24;
+    static final int            PARTICIPANT_SIZE   = 16;
+
+    private static final int    MAX_STRING_LENGTH  = 0xFFFF;
+
+    private DXDefinitionCompiler() {
+    }
+
+    /**
+     * @param xml content of the XML
+     * @return the fingerprint recorded in the cache, a cache is up to date if it records the fingerprint of the XML
+     */
+    public static long fingerprint(byte[] xml) {
+
+        CRC32 crc = new CRC32();
+        crc.update(xml, 0, xml.length);
+        return ((long) VERSION << 32) | crc.getValue();
+    }
+
+    /**
+     * parse and validate xmlFile, then write its cache into cacheFile
+     *
+     * @param xmlFile
+     * @param cacheFile
+     * @throws IOException
+     * @throws IllegalArgumentException if the XML is invalid
+     */
+    public static void compile(File xmlFile, File cacheFile) throws IOException {
+        compile(Files.readAllBytes(xmlFile.toPath()), xmlFile.getPath(), cacheFile);
+    }
+
+    /**
+     * parse and validate xml, then write its cache into cacheFile, replacing it at once
+     *
+     * @param xml content of the XML
+     * @param source name of the XML in error messages
+     * @param cacheFile
+     * @throws IOException
+     * @throws IllegalArgumentException if the XML is invalid
+     */
+    public static void compile(byte[] xml, String source, File cacheFile) throws IOException {
+
+        DXDefinitionParser.Parsed parsed = DXDefinitionParser.parse(xml, source);
+        ByteBuffer cache = encode(parsed, fingerprint(xml));
+
+        File parent = cacheFile.getAbsoluteFile().getParentFile();
+        if (parent != null)
+            Files.createDirectories(parent.toPath());
+        File temp = File.createTempFile(cacheFile.getName(), ".tmp", parent);
+        try {
+
+            FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE);
+            try {
+                while (cache.hasRemaining())
+                    channel.write(cache);
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+
+            try {
+                Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+        } finally {
+
+            Files.deleteIfExists(temp.toPath());
+        }
+
+        LOG.info("Compiled " + parsed.services.size() + " services and "
+                 + parsed.participants.size() + " participants of " + source + " into "
+                 + cacheFile);
+    }
+
+    static ByteBuffer encode(DXDefinitionParser.Parsed parsed, long fingerprint) {
+
+        List<DXServiceDefinition> services = new ArrayList<DXServiceDefinition>(parsed.services);
+        Collections.sort(services, new Comparator<DXServiceDefinition>() {
+
+            @Override
+            public int compare(DXServiceDefinition a, DXServiceDefinition b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        List<DXParticipantDefinition> participants = new ArrayList<DXParticipantDefinition>(
+            parsed.participants);
+        Collections.sort(participants, new Comparator<DXParticipantDefinition>() {
+
+            @Override
+            public int compare(DXParticipantDefinition a, DXParticipantDefinition b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+
+        Map<String, Integer> serviceNumbers = new HashMap<String, Integer>();
+        for (int i = 0; i < services.size(); i++)
+            serviceNumbers.put(services.get(i).getName(), i);
+        Map<String, Integer> participantNumbers = new HashMap<String, Integer>();
+        for (int i = 0; i < participants.size(); i++)
+            participantNumbers.put(participants.get(i).getName(), i);
+
+        int servicesOffset = HEADER_SIZE + parsed.shards.size() * SHARD_SIZE;
+        int participantsOffset = servicesOffset + services.size() * SERVICE_SIZE;
+        int indexOffset = participantsOffset + participants.size() * PARTICIPANT_SIZE;
+        int stringsOffset = indexOffset + participants.size() * 4;
+
+        Strings strings = new Strings(stringsOffset);
+        for (XShards.Shard shard : parsed.shards) {
+            strings.add(shard.getConnectString());
+            strings.add(shard.getChroot());
+        }
+        for (DXServiceDefinition service : services)
+            strings.add(service.getName());
+        for (DXParticipantDefinition participant : participants) {
+            strings.add(participant.getName());
+            strings.add(participant.getInterfaceName());
+            strings.add(participant.getClassName());
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(stringsOffset + strings.size);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(fingerprint);
+        buffer.putInt(parsed.shards.size()).putInt(services.size()).putInt(participants.size());
+        buffer.putInt(servicesOffset).putInt(participantsOffset).putInt(indexOffset);
+
+        for (XShards.Shard shard : parsed.shards)
+            buffer.putInt(strings.offsetOf(shard.getConnectString())).putInt(
+                strings.offsetOf(shard.getChroot()));
+
+        int first = 0;
+        for (DXServiceDefinition service : services) {
+            buffer.putInt(strings.offsetOf(service.getName())).putInt(service.getShard())
+                .putLong(service.getTimeoutMillis()).putInt(first)
+                .putInt(service.getParticipantNames().size());
+            first += service.getParticipantNames().size();
+        }
+
+        for (DXParticipantDefinition participant : participants)
+            buffer.putInt(strings.offsetOf(participant.getName()))
+                .putInt(strings.offsetOf(participant.getInterfaceName()))
+                .putInt(strings.offsetOf(participant.getClassName()))
+                .putInt(serviceNumbers.get(participant.getServiceName()));
+
+        for (DXServiceDefinition service : services)
+            for (String name : service.getParticipantNames())
+                buffer.putInt(participantNumbers.get(name));
+
+        for (String string : strings.offsets.keySet()) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            buffer.putShort((short) bytes.length).put(bytes);
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * the string table, each distinct string is written once
+     */
+    private static class Strings {
+
+        final Map<String, Integer> offsets = new LinkedHashMap<String, Integer>();
+        final int                  base;
+        int                        size;
+
+        Strings(int base) {
+            this.base = base;
+        }
+
+        void add(String string) {
+
+            if (offsets.containsKey(string))
+                return;
+            int length = string.getBytes(StandardCharsets.UTF_8).length;
+            if (length > MAX_STRING_LENGTH)
+                throw new IllegalArgumentException("String too long: " + string.substring(0, 64)
+                                                   + "...");
+            offsets.put(string, base + size);
+            size += 2 + length;
+        }
+
+        int offsetOf(String string) {
+            return offsets.get(string);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length != 2) {
+            System.err.println("Usage: DXDefinitionCompiler <definitions.xml> <cache file>");
+            System.exit(1);
+        }
+        compile(new File(args[0]), new File(args[1]));
+    }
+}
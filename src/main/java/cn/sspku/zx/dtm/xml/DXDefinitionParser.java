@@ -0,0 +1,172 @@
+package cn.sspku.zx.dtm.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import cn.sspku.zx.dtm.example.zk.twopc.XShards;
+import cn.sspku.zx.dtm.trans.DXTransactionInterceptor;
+
+/**
+ * parses and validates XML definitions against dtm.xsd, it runs only when the descriptor cache is compiled.
+ *
+ *      1>the schema checks the structure, the names, the timeouts and the uniqueness of service and participant names;
+ *      2>the parser checks that the shard of every service is declared.
+ */
+public final class DXDefinitionParser {
+
+    /** namespace of the definitions */
+    public static final String NAMESPACE = "http://www.sspku.cn/schema/dtm";
+
+    /** classpath location of the schema */
+    public static final String SCHEMA    = "dtm.xsd";
+
+    /**
+     * the definitions parsed from one XML
+     */
+    static final class Parsed {
+
+        final List<XShards.Shard>             shards       = new ArrayList<XShards.Shard>();
+        final List<DXServiceDefinition>     services     = new ArrayList<DXServiceDefinition>();
+        final List<DXParticipantDefinition> participants = new ArrayList<DXParticipantDefinition>();
+    }
+
+    private DXDefinitionParser() {
+    }
+
+    /**
+     * @param xml content of the XML
+     * @param source name of the XML in error messages
+     * @return the definitions
+     * @throws IllegalArgumentException if the XML is malformed or invalid
+     */
+    static Parsed parse(byte[] xml, String source) {
+
+        Document document;
+        try {
+
+            DocumentBuilder builder = newFactory().newDocumentBuilder();
+            builder.setErrorHandler(new ErrorHandler() {
+
+                @Override
+                public void warning(SAXParseException e) {
+                }
+
+                @Override
+                public void error(SAXParseException e) throws SAXException {
+                    throw e;
+                }
+
+                @Override
+                public void fatalError(SAXParseException e) throws SAXException {
+                    throw e;
+                }
+            });
+            document = builder.parse(new ByteArrayInputStream(xml), source);
+
+        } catch (SAXParseException e) {
+
+            throw new IllegalArgumentException("Invalid " + source + " at line " + e.getLineNumber()
+                                               + ": " + e.getMessage(), e);
+        } catch (SAXException e) {
+
+            throw new IllegalArgumentException("Invalid " + source + ": " + e.getMessage(), e);
+        } catch (IOException e) {
+
+            throw new IllegalArgumentException("Cannot read " + source, e);
+        } catch (ParserConfigurationException e) {
+
+            throw new IllegalStateException("Cannot create XML parser", e);
+        }
+
+        Parsed parsed = new Parsed();
+        for (Element element : children(document.getDocumentElement())) {
+            if ("shards".equals(element.getLocalName())) {
+                for (Element shard : children(element))
+                    parsed.shards.add(new XShards.Shard(shard.getAttribute("connectString"), shard
+                        .getAttribute("chroot")));
+            } else if ("service".equals(element.getLocalName())) {
+                parseService(element, parsed, source);
+            }
+        }
+        return parsed;
+    }
+
+    private static void parseService(Element element, Parsed parsed, String source) {
+
+        String name = element.getAttribute("name");
+        int shard = DXTransactionInterceptor.ANY_SHARD;
+        if (element.hasAttribute("shard")) {
+            shard = Integer.parseInt(element.getAttribute("shard"));
+            int shards = parsed.shards.isEmpty() ? XShards.DEFAULT.size() : parsed.shards.size();
+            if (shard >= shards)
+                throw new IllegalArgumentException("Invalid " + source + ": service " + name
+                                                   + " is pinned to shard " + shard + " out of "
+                                                   + shards + " shards.");
+        }
+
+        List<String> participantNames = new ArrayList<String>();
+        for (Element participant : children(element)) {
+            participantNames.add(participant.getAttribute("name"));
+            parsed.participants.add(new DXParticipantDefinition(participant.getAttribute("name"),
+                participant.getAttribute("interface"), participant.getAttribute("class"), name,
+                null));
+        }
+        long timeoutMillis = DXTransactionInterceptor.DEFAULT_TIMEOUT_MILLIS;
+        if (element.hasAttribute("timeoutMillis"))
+            timeoutMillis = Long.parseLong(element.getAttribute("timeoutMillis"));
+        parsed.services.add(new DXServiceDefinition(name, timeoutMillis, shard, Collections
+            .unmodifiableList(participantNames)));
+    }
+
+    private static List<Element> children(Element parent) {
+
+        List<Element> children = new ArrayList<Element>();
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling())
+            if (node.getNodeType() == Node.ELEMENT_NODE)
+                children.add((Element) node);
+        return children;
+    }
+
+    private static DocumentBuilderFactory newFactory() throws SAXException {
+
+        URL schema = DXDefinitionParser.class.getResource(SCHEMA);
+        if (schema == null)
+            throw new IllegalStateException("Schema " + SCHEMA + " not found on the classpath");
+
+        SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        Schema compiled = schemaFactory.newSchema(schema);
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setIgnoringComments(true);
+        try {
+
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+
+        } catch (ParserConfigurationException e) {
+
+            throw new IllegalStateException("XML parser does not support secure processing", e);
+        }
+        factory.setSchema(compiled);
+        return factory;
+    }
+}
@@ -0,0 +1,293 @@
+package cn.sspku.zx.dtm.xml;
+
+import static cn.sspku.zx.dtm.xml.DXDefinitionCompiler.HEADER_SIZE;
+import static cn.sspku.zx.dtm.xml.DXDefinitionCompiler.MAGIC;
+import static cn.sspku.zx.dtm.xml.DXDefinitionCompiler.PARTICIPANT_SIZE;
+import static cn.sspku.zx.dtm.xml.DXDefinitionCompiler.SERVICE_SIZE;
+import static cn.sspku.zx.dtm.xml.DXDefinitionCompiler.SHARD_SIZE;
+import static cn.sspku.zx.dtm.xml.DXDefinitionCompiler.VERSION;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cn.sspku.zx.dtm.example.zk.twopc.XShards;
+
+/**
+ * the distributed transaction definitions of an application, read from a memory-mapped descriptor cache.
+ *
+ *      1>opening a cache reads its header only, no XML is parsed and no class is loaded;
+ *      2>a service or a participant is found by binary search over the sorted records and decoded on first lookup;
+ *      3>the classes of a participant are loaded on the first call to DXParticipantDefinition.getProxy.
+ *
+ * load compiles the cache from the XML when it is missing or records another fingerprint, see DXDefinitionCompiler.
+ */
+public final class DXDefinitions {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DXDefinitions.class);
+
+    /** read only, only absolute gets are used so it is shared by all threads */
+    private final ByteBuffer    cache;
+    private final ClassLoader   classLoader;
+
+    private final long          fingerprint;
+    private final int           shardCount;
+    private final int           serviceCount;
+    private final int           participantCount;
+    private final int           servicesOffset;
+    private final int           participantsOffset;
+    private final int           indexOffset;
+
+    private final ConcurrentMap<String, DXServiceDefinition>     services     = new ConcurrentHashMap<String, DXServiceDefinition>();
+    private final ConcurrentMap<String, DXParticipantDefinition> participants = new ConcurrentHashMap<String, DXParticipantDefinition>();
+
+    private DXDefinitions(ByteBuffer cache, ClassLoader classLoader, String source) {
+
+        if (cache.limit() < HEADER_SIZE || cache.getInt(0) != MAGIC)
+            throw new IllegalArgumentException(source + " is not a descriptor cache.");
+        if (cache.getInt(4) != VERSION)
+            throw new IllegalArgumentException(source + " has version " + cache.getInt(4)
+                                               + ", expected " + VERSION + ".");
+
+        this.cache = cache;
+        this.classLoader = classLoader;
+        this.fingerprint = cache.getLong(8);
+        this.shardCount = cache.getInt(16);
+        this.serviceCount = cache.getInt(20);
+        this.participantCount = cache.getInt(24);
+        this.servicesOffset = cache.getInt(28);
+        this.participantsOffset = cache.getInt(32);
+        this.indexOffset = cache.getInt(36);
+    }
+
+    /**
+     * map a cache compiled by DXDefinitionCompiler, e.g. at build time
+     *
+     * @param cacheFile
+     * @return the definitions in cacheFile
+     * @throws IOException
+     * @throws IllegalArgumentException if cacheFile is not a cache of this version
+     */
+    public static DXDefinitions open(File cacheFile) throws IOException {
+        return open(cacheFile, defaultClassLoader());
+    }
+
+    /**
+     * @param cacheFile
+     * @param classLoader loads the classes of the participants
+     * @return the definitions in cacheFile
+     * @throws IOException
+     * @throws IllegalArgumentException if cacheFile is not a cache of this version
+     */
+    public static DXDefinitions open(File cacheFile, ClassLoader classLoader) throws IOException {
+
+        FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ);
+        try {
+
+            // the mapping stays valid once the channel is closed
+            return new DXDefinitions(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                classLoader, cacheFile.getPath());
+
+        } finally {
+
+            channel.close();
+        }
+    }
+
+    /**
+     * map the cache of xmlFile, compile it first if it is missing, stale or unreadable
+     *
+     * @param xmlFile
+     * @param cacheFile
+     * @return the definitions in xmlFile
+     * @throws IOException
+     * @throws IllegalArgumentException if the XML is invalid
+     */
+    public static DXDefinitions load(File xmlFile, File cacheFile) throws IOException {
+        return load(xmlFile, cacheFile, defaultClassLoader());
+    }
+
+    /**
+     * @param xmlFile
+     * @param cacheFile
+     * @param classLoader loads the classes of the participants
+     * @return the definitions in xmlFile
+     * @throws IOException
+     * @throws IllegalArgumentException if the XML is invalid
+     */
+    public static DXDefinitions load(File xmlFile, File cacheFile, ClassLoader classLoader)
+                                                                                          throws IOException {
+
+        byte[] xml = Files.readAllBytes(xmlFile.toPath());
+        long expected = DXDefinitionCompiler.fingerprint(xml);
+
+        if (cacheFile.isFile()) {
+            try {
+
+                DXDefinitions definitions = open(cacheFile, classLoader);
+                if (definitions.getFingerprint() == expected)
+                    return definitions;
+                LOG.info(cacheFile + " is stale, recompiling " + xmlFile);
+
+            } catch (IllegalArgumentException e) {
+
+                LOG.warn(cacheFile + " is unreadable, recompiling " + xmlFile + ": "
+                         + e.getMessage());
+            }
+        }
+
+        DXDefinitionCompiler.compile(xml, xmlFile.getPath(), cacheFile);
+        return open(cacheFile, classLoader);
+    }
+
+    private static ClassLoader defaultClassLoader() {
+
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        return classLoader != null ? classLoader : DXDefinitions.class.getClassLoader();
+    }
+
+    /**
+     * @return fingerprint of the XML the cache was compiled from
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return the declared shards, XShards.DEFAULT if none is declared
+     */
+    public XShards getShards() {
+
+        if (shardCount == 0)
+            return XShards.DEFAULT;
+
+        List<XShards.Shard> shards = new ArrayList<XShards.Shard>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            int record = HEADER_SIZE + i * SHARD_SIZE;
+            shards.add(new XShards.Shard(string(cache.getInt(record)), string(cache
+                .getInt(record + 4))));
+        }
+        return new XShards(shards);
+    }
+
+    public int getServiceCount() {
+        return serviceCount;
+    }
+
+    public int getParticipantCount() {
+        return participantCount;
+    }
+
+    /**
+     * @return names of all services in ascending order
+     */
+    public List<String> getServiceNames() {
+
+        List<String> names = new ArrayList<String>(serviceCount);
+        for (int i = 0; i < serviceCount; i++)
+            names.add(string(cache.getInt(servicesOffset + i * SERVICE_SIZE)));
+        return names;
+    }
+
+    /**
+     * @param name
+     * @return the service, null if it is not declared
+     */
+    public DXServiceDefinition getService(String name) {
+
+        DXServiceDefinition service = services.get(name);
+        if (service != null)
+            return service;
+
+        int number = search(servicesOffset, SERVICE_SIZE, serviceCount, name);
+        if (number < 0)
+            return null;
+
+        int record = servicesOffset + number * SERVICE_SIZE;
+        int first = cache.getInt(record + 16);
+        int count = cache.getInt(record + 20);
+        List<String> participantNames = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++)
+            participantNames.add(string(cache.getInt(participantsOffset
+                                                     + cache.getInt(indexOffset + (first + i) * 4)
+                                                     * PARTICIPANT_SIZE)));
+
+        service = new DXServiceDefinition(name, cache.getLong(record + 8),
+            cache.getInt(record + 4), Collections.unmodifiableList(participantNames));
+        DXServiceDefinition existing = services.putIfAbsent(name, service);
+        return existing != null ? existing : service;
+    }
+
+    /**
+     * @param name
+     * @return the participant, null if it is not declared; its classes are not loaded yet
+     */
+    public DXParticipantDefinition getParticipant(String name) {
+
+        DXParticipantDefinition participant = participants.get(name);
+        if (participant != null)
+            return participant;
+
+        int number = search(participantsOffset, PARTICIPANT_SIZE, participantCount, name);
+        if (number < 0)
+            return null;
+
+        int record = participantsOffset + number * PARTICIPANT_SIZE;
+        int service = cache.getInt(record + 12);
+        participant = new DXParticipantDefinition(name, string(cache.getInt(record + 4)),
+            string(cache.getInt(record + 8)),
+            string(cache.getInt(servicesOffset + service * SERVICE_SIZE)), classLoader);
+        DXParticipantDefinition existing = participants.putIfAbsent(name, participant);
+        return existing != null ? existing : participant;
+    }
+
+    /**
+     * binary search over records sorted by the name they start with
+     *
+     * @return number of the record named name, -1 if there is none
+     */
+    private int search(int offset, int size, int count, String name) {
+
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = string(cache.getInt(offset + middle * size)).compareTo(name);
+            if (comparison < 0)
+                low = middle + 1;
+            else if (comparison > 0)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+    private String string(int offset) {
+
+        int length = cache.getShort(offset) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        ByteBuffer view = cache.duplicate();
+        view.position(offset + 2);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "DXDefinitions[services=" + serviceCount + ", participants=" + participantCount
+               + ", shards=" + shardCount + ", fingerprint=" + Long.toHexString(fingerprint) + "]";
+    }
+}
@@ -0,0 +1,115 @@
+package cn.sspku.zx.dtm.xml;
+
+import cn.sspku.zx.dtm.trans.TwoPhraseEngine;
+
+/**
+ * a two-phrase resource declared by &lt;participant&gt;.
+ *
+ * its classes are neither loaded nor checked until getProxy is first called, so a boot pays nothing for the
+ * participants it never uses.
+ */
+public final class DXParticipantDefinition {
+
+    private final String      name;
+    private final String      interfaceName;
+    private final String      className;
+    private final String      serviceName;
+    private final ClassLoader classLoader;
+
+    private volatile Object   proxy;
+
+    DXParticipantDefinition(String name, String interfaceName, String className,
+                            String serviceName, ClassLoader classLoader) {
+        this.name = name;
+        this.interfaceName = interfaceName;
+        this.className = className;
+        this.serviceName = serviceName;
+        this.classLoader = classLoader;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getInterfaceName() {
+        return interfaceName;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    /**
+     * load the interface and the implementation, compile the @TwoPhrase definition and instantiate the
+     * implementation on the first call
+     *
+     * @return the TwoPhraseEngine proxy of the participant, the same one on every call
+     * @throws IllegalStateException if the classes cannot be loaded or instantiated
+     */
+    public Object getProxy() {
+
+        Object result = proxy;
+        if (result == null) {
+            synchronized (this) {
+                result = proxy;
+                if (result == null)
+                    proxy = result = newProxy(loadClass(interfaceName));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param type the interface of the participant
+     * @return the proxy of the participant
+     * @throws ClassCastException if the participant does not implement type
+     */
+    public <T> T getProxy(Class<T> type) {
+        return type.cast(getProxy());
+    }
+
+    private <T> T newProxy(Class<T> type) {
+
+        Class<?> implementation = loadClass(className);
+        if (!type.isAssignableFrom(implementation))
+            throw new IllegalStateException("Participant " + name + ": " + className
+                                            + " does not implement " + interfaceName);
+        try {
+
+            return TwoPhraseEngine.getDefault().newProxy(type,
+                type.cast(implementation.getDeclaredConstructor().newInstance()));
+
+        } catch (ReflectiveOperationException e) {
+
+            //no accessible no-arg constructor, or the constructor threw
+            throw new IllegalStateException("Participant " + name + ": cannot instantiate "
+                                            + className, e);
+        } catch (IllegalArgumentException e) {
+
+            throw new IllegalStateException("Participant " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    private Class<?> loadClass(String className) {
+
+        try {
+
+            return Class.forName(className, false, classLoader);
+
+        } catch (ClassNotFoundException e) {
+
+            throw new IllegalStateException("Participant " + name + ": class " + className
+                                            + " not found", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DXParticipantDefinition[" + name + ", service=" + serviceName + ", interface="
+               + interfaceName + ", class=" + className + ", loaded=" + (proxy != null) + "]";
+    }
+}
@@ -0,0 +1,62 @@
+package cn.sspku.zx.dtm.xml;
+
+import java.util.List;
+
+import cn.sspku.zx.dtm.trans.DXTransactionInterceptor;
+
+/**
+ * a transactional service declared by &lt;service&gt;
+ */
+public final class DXServiceDefinition {
+
+    private final String       name;
+    private final long         timeoutMillis;
+    private final int          shard;
+    private final List<String> participantNames;
+
+    DXServiceDefinition(String name, long timeoutMillis, int shard, List<String> participantNames) {
+        this.name = name;
+        this.timeoutMillis = timeoutMillis;
+        this.shard = shard;
+        this.participantNames = participantNames;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @return index of the shard the transactions are pinned to, DXTransactionInterceptor.ANY_SHARD if not pinned
+     */
+    public int getShard() {
+        return shard;
+    }
+
+    /**
+     * @return names of the participants declared within the service
+     */
+    public List<String> getParticipantNames() {
+        return participantNames;
+    }
+
+    /**
+     * apply the timeout and the shard of the service to interceptor
+     *
+     * @param interceptor
+     */
+    public void configure(DXTransactionInterceptor interceptor) {
+
+        interceptor.setTimeoutMillis(timeoutMillis);
+        interceptor.setShard(shard);
+    }
+
+    @Override
+    public String toString() {
+        return "DXServiceDefinition[" + name + ", timeoutMillis=" + timeoutMillis + ", shard="
+               + shard + ", participants=" + participantNames + "]";
+    }
+}
@@ -1,8 +1,12 @@
 /**
  * provide distributed transaction ability for business through configuring XML file.
+ *
+ *      1>DXDefinitionParser validates the XML against dtm.xsd;
+ *      2>DXDefinitionCompiler compiles it into a binary descriptor cache, at build time or at the first start;
+ *      3>DXDefinitions memory-maps the cache and decodes services and participants on first use.
  */
 /**
  * @author zhangxu
  *
  */
-package cn.sspku.zx.dtm.xml;
\ No newline at end of file
+package cn.sspku.zx.dtm.xml;
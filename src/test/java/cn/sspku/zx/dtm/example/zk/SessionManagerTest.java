@@ -0,0 +1,71 @@
+package cn.sspku.zx.dtm.example.zk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.Test;
+
+/**
+ * an expired shared session is re-created even if the first attempts fail; no ZK server is needed,
+ * the sessions never connect
+ */
+public class SessionManagerTest {
+
+    private static final String ADDRESS = "127.0.0.1:1";
+
+    @Test
+    public void expiredSessionIsRecreatedAfterFailures() throws Exception {
+
+        //number of attempts to fail from now on
+        final AtomicInteger failures = new AtomicInteger();
+        SessionManager manager = new SessionManager(3000) {
+
+            @Override
+            ZooKeeper connect(String address, Watcher watcher) throws IOException {
+
+                if (failures.getAndDecrement() > 0)
+                    throw new IOException("cannot connect");
+                return super.connect(address, watcher);
+            }
+        };
+
+        SessionManager.SharedSession session = manager.acquire(ADDRESS);
+        final List<KeeperState> states = new CopyOnWriteArrayList<KeeperState>();
+        session.addWatcher(new Watcher() {
+
+            @Override
+            public void process(WatchedEvent event) {
+                states.add(event.getState());
+            }
+        });
+
+        ZooKeeper expired = session.get();
+        //the attempt made on expiry fails, so does the first retry
+        failures.set(2);
+        session.process(new WatchedEvent(EventType.None, KeeperState.Expired, null));
+        assertTrue(states.contains(KeeperState.Expired));
+        assertSame(expired, session.get());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (session.get() == expired && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertNotSame(expired, session.get());
+        assertTrue(failures.get() < 0);
+
+        expired.close();
+        session.release();
+        assertEquals(0, manager.getSessionCount());
+    }
+}
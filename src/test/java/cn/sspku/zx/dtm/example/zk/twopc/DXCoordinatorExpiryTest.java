@@ -0,0 +1,102 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cn.sspku.zx.dtm.example.zk.twopc.XMetrics.AbortReason;
+
+/**
+ * transactions dropped when the session of their coordinator expires are left to recovery alone
+ */
+public class DXCoordinatorExpiryTest {
+
+    private final XMemoryStore                 store    = new XMemoryStore();
+    private final List<XMemoryStore.Session>   sessions = new CopyOnWriteArrayList<XMemoryStore.Session>();
+    private final XMetrics                     metrics  = new XMetrics();
+    private DXCoordinator                      coordinator;
+    private DXParticipant[]                    participants;
+
+    @Before
+    public void setUp() throws Exception {
+
+        coordinator = new DXCoordinator();
+        coordinator.setCoordinatorId("expiring");
+        coordinator.setMetrics(metrics);
+        coordinator.setPrepareTimeoutMillis(300);
+        coordinator.setStoreProvider(new XStore.Provider() {
+
+            @Override
+            public XStore acquire(String address) {
+
+                XMemoryStore.Session session = store.acquire(address);
+                sessions.add(session);
+                return session;
+            }
+        });
+        coordinator.start();
+
+        participants = new DXParticipant[2];
+        for (int i = 0; i < participants.length; i++) {
+            participants[i] = new DXParticipant() {
+
+                @Override
+                protected void doBusinessPrepare() {
+                    sleep(800);
+                }
+            };
+            participants[i].setStoreProvider(store);
+            participants[i].start();
+        }
+    }
+
+    @After
+    public void tearDown() {
+
+        for (DXParticipant participant : participants)
+            participant.destroy();
+        coordinator.destroy();
+    }
+
+    @Test
+    public void phaseTimeoutOfAbandonedTransactionDoesNotFire() throws Exception {
+
+        long xid = coordinator.begin().get(5, TimeUnit.SECONDS);
+        for (DXParticipant participant : participants)
+            participant.register(xid).get(5, TimeUnit.SECONDS);
+
+        CompletableFuture<XOutcome> outcome = coordinator.commit(xid);
+        sleep(100);
+        sessions.get(0).expire();
+
+        try {
+            outcome.get(5, TimeUnit.SECONDS);
+            fail("the transaction should have been abandoned");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        //well past the prepare timeout of the abandoned transaction
+        sleep(1500);
+        assertEquals(0, metrics.getAborts(AbortReason.PREPARE_TIMEOUT));
+    }
+
+    private static void sleep(long millis) {
+
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
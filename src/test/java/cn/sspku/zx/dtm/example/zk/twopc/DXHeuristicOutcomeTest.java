@@ -0,0 +1,95 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * a participant which gave up committing reports 'HEURISTIC' to the coordinator
+ */
+public class DXHeuristicOutcomeTest {
+
+    private final XMemoryStore                   store     = new XMemoryStore();
+    private final XMetrics                       metrics   = new XMetrics();
+    private final CompletableFuture<DXTransaction> heuristic = new CompletableFuture<DXTransaction>();
+    private DXCoordinator                        coordinator;
+    private DXParticipant                        failing;
+    private DXParticipant                        other;
+
+    @Before
+    public void setUp() throws Exception {
+
+        coordinator = new DXCoordinator() {
+
+            @Override
+            protected void heuristicX(DXTransaction x, int seq) {
+                heuristic.complete(x);
+            }
+        };
+        coordinator.setMetrics(metrics);
+        coordinator.setStoreProvider(store);
+        coordinator.start();
+
+        failing = new DXParticipant() {
+
+            @Override
+            protected void doBusinessCommit() {
+                throw new IllegalStateException("resource manager is down");
+            }
+        };
+        failing.getRetrier().setBaseDelayMillis(10);
+        failing.getRetrier().setMaxDelayMillis(20);
+        failing.getRetrier().setMaxAttempts(2);
+        failing.setStoreProvider(store);
+        failing.start();
+
+        other = new DXParticipant();
+        other.setStoreProvider(store);
+        other.start();
+    }
+
+    @After
+    public void tearDown() {
+
+        failing.destroy();
+        other.destroy();
+        coordinator.destroy();
+    }
+
+    @Test
+    public void coordinatorLearnsOfGivenUpCommitment() throws Exception {
+
+        long xid = coordinator.begin().get(5, TimeUnit.SECONDS);
+        failing.register(xid).get(5, TimeUnit.SECONDS);
+        other.register(xid).get(5, TimeUnit.SECONDS);
+        coordinator.commit(xid);
+
+        DXTransaction x = heuristic.get(5, TimeUnit.SECONDS);
+        assertEquals(xid, x.getXid());
+        assertEquals(1, x.getTally().getHeuristic());
+        assertEquals(1, metrics.getHeuristicOutcomes());
+        //the transaction is kept for human intervention
+        assertSame(x, coordinator.getTransaction(xid));
+        assertEquals(1, failing.getRetrier().getRetried());
+    }
+
+    @Test
+    public void singleAttemptIsNeverRetried() throws Exception {
+
+        failing.getRetrier().setMaxAttempts(1);
+        long xid = coordinator.begin().get(5, TimeUnit.SECONDS);
+        failing.register(xid).get(5, TimeUnit.SECONDS);
+        other.register(xid).get(5, TimeUnit.SECONDS);
+        coordinator.commit(xid);
+
+        assertEquals(xid, heuristic.get(5, TimeUnit.SECONDS).getXid());
+        assertEquals(0, failing.getRetrier().getRetried());
+        assertEquals(1, failing.getRetrier().getGivenUp());
+    }
+}
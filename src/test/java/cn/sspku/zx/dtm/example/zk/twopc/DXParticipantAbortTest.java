@@ -0,0 +1,94 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * an abort arriving while a branch is preparing is run once the preparation returned
+ */
+public class DXParticipantAbortTest {
+
+    private final XMemoryStore   store    = new XMemoryStore();
+    private final List<String>   events   = new CopyOnWriteArrayList<String>();
+    private final CountDownLatch entered  = new CountDownLatch(1);
+    private final CountDownLatch released = new CountDownLatch(1);
+    private DXCoordinator        coordinator;
+    private DXParticipant        slow;
+    private DXParticipant        other;
+
+    @Before
+    public void setUp() throws Exception {
+
+        coordinator = new DXCoordinator();
+        coordinator.setStoreProvider(store);
+        coordinator.start();
+
+        slow = new DXParticipant() {
+
+            @Override
+            protected void doBusinessPrepare() {
+
+                events.add("prepare");
+                entered.countDown();
+                try {
+                    released.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                events.add("prepared");
+            }
+
+            @Override
+            protected void doBusinessRollback() {
+                events.add("rollback");
+            }
+        };
+        slow.setStoreProvider(store);
+        slow.start();
+
+        other = new DXParticipant();
+        other.setStoreProvider(store);
+        other.start();
+    }
+
+    @After
+    public void tearDown() {
+
+        released.countDown();
+        slow.destroy();
+        other.destroy();
+        coordinator.destroy();
+    }
+
+    @Test
+    public void abortWaitsForPreparation() throws Exception {
+
+        long xid = coordinator.begin().get(5, TimeUnit.SECONDS);
+        slow.register(xid).get(5, TimeUnit.SECONDS);
+        other.register(xid).get(5, TimeUnit.SECONDS);
+        CompletableFuture<XOutcome> outcome = slow.outcome(xid);
+
+        coordinator.commit(xid);
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+        coordinator.abort(xid).get(5, TimeUnit.SECONDS);
+        //give the order time to reach the branch, its rollback must not start yet
+        Thread.sleep(200);
+        assertEquals(Arrays.asList("prepare"), events);
+
+        released.countDown();
+        assertTrue(outcome.get(5, TimeUnit.SECONDS).isAborted());
+        assertEquals(Arrays.asList("prepare", "prepared", "rollback"), events);
+    }
+}
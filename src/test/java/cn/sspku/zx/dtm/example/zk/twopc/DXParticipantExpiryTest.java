@@ -0,0 +1,139 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * branches whose participant nodes went with an expired session follow the decision of their transaction
+ */
+public class DXParticipantExpiryTest {
+
+    private final XMemoryStore               store     = new XMemoryStore();
+    private final List<XMemoryStore.Session> sessions  = new CopyOnWriteArrayList<XMemoryStore.Session>();
+    /** orders of the expiring participant, run by the test one by one */
+    private final List<Runnable>             held      = new CopyOnWriteArrayList<Runnable>();
+    private final AtomicInteger              commits   = new AtomicInteger();
+    private final AtomicInteger              rollbacks = new AtomicInteger();
+    private DXCoordinator                    coordinator;
+    private DXParticipant                    expiring;
+    private DXParticipant                    other;
+
+    @Before
+    public void setUp() throws Exception {
+
+        coordinator = new DXCoordinator();
+        coordinator.setStoreProvider(store);
+        coordinator.start();
+
+        expiring = new DXParticipant() {
+
+            @Override
+            protected void doBusinessCommit() {
+                commits.incrementAndGet();
+            }
+
+            @Override
+            protected void doBusinessRollback() {
+                rollbacks.incrementAndGet();
+            }
+        };
+        expiring.setStoreProvider(new XStore.Provider() {
+
+            @Override
+            public XStore acquire(String address) {
+
+                XMemoryStore.Session session = store.acquire(address);
+                sessions.add(session);
+                return session;
+            }
+        });
+        expiring.setBusinessExecutor(new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+                held.add(command);
+            }
+        });
+        expiring.start();
+
+        other = new DXParticipant();
+        other.setStoreProvider(store);
+        other.start();
+    }
+
+    @After
+    public void tearDown() {
+
+        expiring.destroy();
+        other.destroy();
+        coordinator.destroy();
+    }
+
+    @Test
+    public void commitDecidedWhileExpiredIsFollowed() throws Exception {
+
+        long xid = coordinator.begin().get(5, TimeUnit.SECONDS);
+        expiring.register(xid).get(5, TimeUnit.SECONDS);
+        other.register(xid).get(5, TimeUnit.SECONDS);
+        CompletableFuture<XOutcome> outcome = expiring.outcome(xid);
+
+        coordinator.commit(xid);
+        runHeld();
+
+        //the order to commit is lost with the session
+        awaitHeld();
+        held.clear();
+        sessions.get(0).expire();
+
+        runHeld();
+        assertTrue(outcome.get(5, TimeUnit.SECONDS).isCommitted());
+        assertEquals(1, commits.get());
+        assertEquals(0, rollbacks.get());
+    }
+
+    @Test
+    public void unpreparedBranchIsRolledBack() throws Exception {
+
+        long xid = coordinator.begin().get(5, TimeUnit.SECONDS);
+        expiring.register(xid).get(5, TimeUnit.SECONDS);
+        other.register(xid).get(5, TimeUnit.SECONDS);
+        CompletableFuture<XOutcome> outcome = expiring.outcome(xid);
+
+        sessions.get(0).expire();
+        //the branch is gone before it voted, the coordinator goes on without it
+        assertTrue(coordinator.commit(xid).get(5, TimeUnit.SECONDS).isCommitted());
+
+        runHeld();
+        assertTrue(outcome.get(5, TimeUnit.SECONDS).isAborted());
+        assertEquals(0, commits.get());
+        assertEquals(1, rollbacks.get());
+    }
+
+    private void awaitHeld() throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (held.isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue("no order arrived", !held.isEmpty());
+    }
+
+    private void runHeld() throws InterruptedException {
+
+        awaitHeld();
+        for (Runnable command : held) {
+            held.remove(command);
+            command.run();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import cn.sspku.zx.dtm.example.zk.twopc.XMessage.CoordinatorOrder;
+
+/**
+ * decisions of XDecisionLog survive a reopen until closed, closed segments are deleted, a decision which cannot
+ * be written is reported without breaking the log
+ */
+public class XDecisionLogTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder   folder       = new TemporaryFolder();
+
+    @Test
+    public void replaysDecisionsNotClosed() throws Exception {
+
+        File dir = folder.newFolder();
+        XDecisionLog log = new XDecisionLog(dir, SEGMENT_SIZE);
+        log.open();
+        append(log, 0, 3, new int[] { 1, 2, 7 });
+        log.close(1);
+        log.destroy();
+
+        XDecisionLog reopened = new XDecisionLog(dir, SEGMENT_SIZE);
+        reopened.open();
+        Map<Long, XDecisionLog.Record> inDoubt = inDoubt(reopened);
+        reopened.destroy();
+
+        assertEquals(2, inDoubt.size());
+        XDecisionLog.Record record = inDoubt.get(2L);
+        assertEquals(CoordinatorOrder.COMMIT, record.getDecision());
+        assertArrayEquals(new int[] { 1, 2, 7 }, record.getParticipants());
+        assertTrue(inDoubt.containsKey(0L));
+    }
+
+    @Test
+    public void truncatesSegmentsOfClosedDecisions() throws Exception {
+
+        File dir = folder.newFolder();
+        XDecisionLog log = new XDecisionLog(dir, SEGMENT_SIZE);
+        log.open();
+        append(log, 0, 1000, new int[] { 1, 2, 5, 900 });
+        int written = dir.list().length;
+        assertTrue("expected rollovers, got " + written + " segments", written > 2);
+
+        for (long xid = 0; xid < 990; xid++)
+            log.close(xid);
+        assertTrue(dir.list().length < written);
+        log.destroy();
+
+        XDecisionLog reopened = new XDecisionLog(dir, SEGMENT_SIZE);
+        reopened.open();
+        Map<Long, XDecisionLog.Record> inDoubt = inDoubt(reopened);
+        reopened.destroy();
+
+        assertEquals(10, inDoubt.size());
+        assertEquals(990L, (long) ((TreeMap<Long, XDecisionLog.Record>) inDoubt).firstKey());
+    }
+
+    @Test
+    public void failedWritesAreReported() throws Exception {
+
+        File dir = folder.newFolder();
+        XDecisionLog log = new XDecisionLog(dir, SEGMENT_SIZE);
+        log.open();
+        Runnable ignored = new Runnable() {
+
+            @Override
+            public void run() {
+            }
+        };
+
+        int[] tooMany = new int[SEGMENT_SIZE];
+        for (int i = 0; i < tooMany.length; i++)
+            tooMany[i] = i + 1;
+        assertFalse(log.append(0, CoordinatorOrder.COMMIT, tooMany, ignored));
+        append(log, 1, 2, new int[] { 1 });
+
+        //take the directory away, so that the log cannot roll over once the segment is full
+        for (File file : dir.listFiles())
+            assertTrue(file.delete());
+        assertTrue(dir.delete());
+        long xid = 2;
+        while (log.append(xid, CoordinatorOrder.COMMIT, new int[] { 1 }, ignored))
+            assertTrue("never rolled over", ++xid < SEGMENT_SIZE);
+        assertFalse(log.append(xid, CoordinatorOrder.COMMIT, new int[] { 1 }, ignored));
+
+        assertTrue(dir.mkdir());
+        append(log, xid, xid + 1, new int[] { 1 });
+        assertEquals(1, dir.list().length);
+        log.destroy();
+    }
+
+    /**
+     * append decisions to commit xids [from, to) and wait until all of them are durable
+     */
+    private static void append(XDecisionLog log, long from, long to, int[] participants)
+                                                                                       throws InterruptedException {
+
+        final CountDownLatch durable = new CountDownLatch((int) (to - from));
+        for (long xid = from; xid < to; xid++)
+            log.append(xid, CoordinatorOrder.COMMIT, participants, new Runnable() {
+
+                @Override
+                public void run() {
+                    durable.countDown();
+                }
+            });
+        assertTrue(durable.await(5, TimeUnit.SECONDS));
+    }
+
+    private static Map<Long, XDecisionLog.Record> inDoubt(XDecisionLog log) {
+
+        Map<Long, XDecisionLog.Record> byXid = new TreeMap<Long, XDecisionLog.Record>();
+        for (XDecisionLog.Record record : log.getInDoubt())
+            byXid.put(record.getXid(), record);
+        return byXid;
+    }
+}
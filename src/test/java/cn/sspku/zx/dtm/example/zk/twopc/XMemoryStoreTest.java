@@ -0,0 +1,317 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * transaction flows on an XMemoryStore, and interleavings replayed on a stepped one
+ */
+public class XMemoryStoreTest {
+
+    private final List<String>        events       = new CopyOnWriteArrayList<String>();
+    private final List<DXParticipant> participants = new ArrayList<DXParticipant>();
+    private DXCoordinator             coordinator;
+
+    @After
+    public void tearDown() {
+
+        for (DXParticipant participant : participants)
+            participant.destroy();
+        if (coordinator != null)
+            coordinator.destroy();
+    }
+
+    @Test
+    public void commitsWhenAllPrepared() throws Exception {
+
+        XMemoryStore store = new XMemoryStore();
+        start(store);
+        long xid = begin(participant(store, "a", false, false), participant(store, "b", false, false));
+
+        assertTrue(coordinator.commit(xid).get(5, TimeUnit.SECONDS).isCommitted());
+        awaitEvents(4);
+        assertTrue(events.containsAll(Arrays.asList("a prepare", "b prepare", "a commit",
+            "b commit")));
+    }
+
+    @Test
+    public void abortsWhenOnePreparationFails() throws Exception {
+
+        XMemoryStore store = new XMemoryStore();
+        start(store);
+        long xid = begin(participant(store, "a", false, false), participant(store, "b", false, true));
+
+        assertTrue(coordinator.commit(xid).get(5, TimeUnit.SECONDS).isAborted());
+        awaitEvents(3);
+        assertTrue(events.contains("a rollback"));
+        assertFalse(events.contains("a commit"));
+        assertFalse(events.contains("b rollback"));
+    }
+
+    @Test
+    public void onlyParticipantCommitsInOnePhase() throws Exception {
+
+        XMemoryStore store = new XMemoryStore();
+        start(store);
+        long xid = begin(participant(store, "a", false, false));
+
+        assertTrue(coordinator.commit(xid).get(5, TimeUnit.SECONDS).isCommitted());
+        awaitEvents(2);
+        assertEquals(Arrays.asList("a prepare", "a commit"), events);
+    }
+
+    @Test
+    public void readOnlyParticipantSkipsPhaseTwo() throws Exception {
+
+        XMemoryStore store = new XMemoryStore();
+        start(store);
+        long xid = begin(participant(store, "a", true, false), participant(store, "b", false, false));
+
+        assertTrue(coordinator.commit(xid).get(5, TimeUnit.SECONDS).isCommitted());
+        awaitEvents(3);
+        assertTrue(events.containsAll(Arrays.asList("a prepare", "b prepare", "b commit")));
+        assertFalse(events.contains("a commit"));
+    }
+
+    @Test
+    public void steppedSessionDeliversInOrderOnlyWhenStepped() throws Exception {
+
+        XMemoryStore store = new XMemoryStore(true);
+        XMemoryStore.Session session = store.acquire("test");
+        final List<String> delivered = new ArrayList<String>();
+        StringCallback created = new StringCallback() {
+
+            @Override
+            public void processResult(int rc, String path, Object ctx, String name) {
+                delivered.add("created " + name);
+            }
+        };
+
+        session.create("/a", new byte[0], CreateMode.PERSISTENT, created, null);
+        session.exists("/a", new Watcher() {
+
+            @Override
+            public void process(WatchedEvent event) {
+                delivered.add(event.getType() + " " + event.getPath());
+            }
+        }, new StatCallback() {
+
+            @Override
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                delivered.add("exists " + path);
+            }
+        }, null);
+        session.setData("/a", new byte[] { 1 }, -1, new StatCallback() {
+
+            @Override
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                delivered.add("set " + path);
+            }
+        }, null);
+
+        assertTrue(delivered.isEmpty());
+        assertEquals(4, session.getPending());
+        assertTrue(session.step());
+        assertEquals(Arrays.asList("created /a"), delivered);
+        assertEquals(3, session.runPending());
+        assertEquals(Arrays.asList("created /a", "exists /a", "NodeDataChanged /a", "set /a"),
+            delivered);
+        assertFalse(session.step());
+        session.release();
+    }
+
+    @Test
+    public void steppedExpiryHoldsSyncConnectedBack() throws Exception {
+
+        XMemoryStore store = new XMemoryStore(true);
+        XMemoryStore.Session session = store.acquire("test");
+        final List<String> states = new ArrayList<String>();
+        session.addWatcher(new Watcher() {
+
+            @Override
+            public void process(WatchedEvent event) {
+                states.add(event.getState().toString());
+            }
+        });
+        session.create("/e", new byte[0], CreateMode.EPHEMERAL, new StringCallback() {
+
+            @Override
+            public void processResult(int rc, String path, Object ctx, String name) {
+                states.add("created");
+            }
+        }, null);
+        session.runPending();
+
+        session.expire();
+        assertEquals(Arrays.asList("SyncConnected", "created"), states);
+        session.step();
+        assertEquals(Arrays.asList("SyncConnected", "created", "Expired"), states);
+        //the ephemeral node went with the session before anybody was told
+        assertNull(existsNow(store, "/e"));
+        session.step();
+        assertEquals(Arrays.asList("SyncConnected", "created", "Expired", "SyncConnected"),
+            states);
+        session.release();
+    }
+
+    /**
+     * the race of an abort arriving while the branch prepares, replayed on one thread:
+     * the preparation itself steps the store until the order to abort has been handled
+     */
+    @Test
+    public void replaysAbortArrivingDuringPreparation() throws Exception {
+
+        final XMemoryStore store = new XMemoryStore(true);
+        coordinator = new DXCoordinator();
+        coordinator.setStoreProvider(store);
+        coordinator.setOnePhaseEnabled(false);
+        coordinator.start();
+
+        final long[] xid = new long[1];
+        DXParticipant racing = new DXParticipant() {
+
+            @Override
+            protected void doBusinessPrepare() {
+
+                events.add("prepare");
+                coordinator.abort(xid[0]);
+                //the order is written by a writer thread of the coordinator, step until it is handled
+                long deadline = System.currentTimeMillis() + 5000;
+                while (!events.contains("abort") && System.currentTimeMillis() < deadline)
+                    store.runPending();
+                events.add("prepared");
+            }
+
+            @Override
+            public void abortX(long xid) {
+
+                events.add("abort");
+                super.abortX(xid);
+            }
+
+            @Override
+            protected void doBusinessRollback() {
+                events.add("rollback");
+            }
+        };
+        racing.setStoreProvider(store);
+        racing.setBusinessExecutor(XExecutors.direct());
+        racing.start();
+        participants.add(racing);
+
+        xid[0] = pump(store, coordinator.begin());
+        pump(store, racing.register(xid[0]));
+        CompletableFuture<XOutcome> outcome = racing.outcome(xid[0]);
+
+        coordinator.commit(xid[0]);
+        assertTrue(pump(store, outcome).isAborted());
+        assertEquals(Arrays.asList("prepare", "abort", "prepared", "abort", "rollback"), events);
+    }
+
+    private void start(XMemoryStore store) throws Exception {
+
+        coordinator = new DXCoordinator();
+        coordinator.setStoreProvider(store);
+        coordinator.start();
+    }
+
+    private DXParticipant participant(XMemoryStore store, final String name,
+                                      final boolean readOnly, final boolean failPrepare)
+                                                                                        throws Exception {
+
+        DXParticipant participant = new DXParticipant() {
+
+            @Override
+            protected void doBusinessPrepare() {
+
+                events.add(name + " prepare");
+                if (failPrepare)
+                    throw new IllegalStateException(name + " cannot prepare");
+            }
+
+            @Override
+            protected boolean isBusinessReadOnly() {
+                return readOnly;
+            }
+
+            @Override
+            protected void doBusinessCommit() {
+                events.add(name + " commit");
+            }
+
+            @Override
+            protected void doBusinessRollback() {
+                events.add(name + " rollback");
+            }
+        };
+        participant.setStoreProvider(store);
+        participant.start();
+        participants.add(participant);
+        return participant;
+    }
+
+    private long begin(DXParticipant... members) throws Exception {
+
+        long xid = coordinator.begin().get(5, TimeUnit.SECONDS);
+        for (DXParticipant member : members)
+            member.register(xid).get(5, TimeUnit.SECONDS);
+        return xid;
+    }
+
+    /**
+     * the reports behind the outcome of the coordinator may still be on their way to the participants
+     */
+    private void awaitEvents(int count) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (events.size() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+    }
+
+    /**
+     * step a stepped store until future is done, the stripes of the components run on their own threads
+     */
+    private static <T> T pump(XMemoryStore store, Future<T> future) throws Exception {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!future.isDone() && System.currentTimeMillis() < deadline)
+            if (store.runPending() == 0)
+                Thread.sleep(1);
+        return future.get(0, TimeUnit.MILLISECONDS);
+    }
+
+    private static Stat existsNow(XMemoryStore store, String path) {
+
+        XMemoryStore.Session probe = store.acquire("test");
+        final Stat[] stat = new Stat[1];
+        probe.exists(path, null, new StatCallback() {
+
+            @Override
+            public void processResult(int rc, String path, Object ctx, Stat read) {
+                stat[0] = read;
+            }
+        }, null);
+        probe.runPending();
+        probe.release();
+        return stat[0];
+    }
+}
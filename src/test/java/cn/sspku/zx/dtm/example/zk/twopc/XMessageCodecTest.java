@@ -0,0 +1,53 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import cn.sspku.zx.dtm.example.zk.twopc.XMessage.CoordinatorOrder;
+import cn.sspku.zx.dtm.example.zk.twopc.XMessage.ParticipantReport;
+
+/**
+ * payloads of XMessageCodec
+ */
+public class XMessageCodecTest {
+
+    @Test
+    public void ordersAndReportsRoundTrip() {
+
+        for (CoordinatorOrder order : CoordinatorOrder.values()) {
+            byte[] payload = XMessageCodec.encode(order);
+            assertEquals(XMessageCodec.LENGTH, payload.length);
+            assertSame(order, XMessageCodec.orderOf(payload));
+            assertNull(XMessageCodec.reportOf(payload));
+        }
+        for (ParticipantReport report : ParticipantReport.values()) {
+            byte[] payload = XMessageCodec.encode(report);
+            assertSame(report, XMessageCodec.reportOf(payload));
+            assertNull(XMessageCodec.orderOf(payload));
+        }
+    }
+
+    @Test
+    public void payloadsAreSharedNotAllocated() {
+
+        assertSame(XMessageCodec.encode(CoordinatorOrder.COMMIT),
+            XMessageCodec.encode(CoordinatorOrder.COMMIT));
+        assertSame(XMessageCodec.encode(ParticipantReport.PREPAERD),
+            XMessageCodec.encode(ParticipantReport.PREPAERD));
+    }
+
+    @Test
+    public void rejectsOtherContent() {
+
+        assertNull(XMessageCodec.orderOf(null));
+        assertNull(XMessageCodec.orderOf(new byte[0]));
+        assertNull(XMessageCodec.orderOf(new byte[] { 9, 0x01 }));
+        assertNull(XMessageCodec.orderOf(new byte[] { 1, 0x00 }));
+        assertNull(XMessageCodec.orderOf(new byte[] { 1, 0x3F }));
+        assertNull(XMessageCodec.reportOf(new byte[] { 1, 0x7F }));
+        assertNull(XMessageCodec.orderOf("COMMIT".getBytes()));
+    }
+}
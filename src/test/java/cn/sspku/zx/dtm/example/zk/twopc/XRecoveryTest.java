@@ -0,0 +1,316 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.SetDataRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cn.sspku.zx.dtm.example.zk.twopc.XMessage.CoordinatorOrder;
+import cn.sspku.zx.dtm.example.zk.twopc.XMessage.ParticipantReport;
+
+/**
+ * recovery of in-doubt transactions by their owner, on an XMemoryStore
+ */
+public class XRecoveryTest {
+
+    private XMemoryStore  store;
+    private DXCoordinator first;
+    private DXCoordinator second;
+    private DXParticipant participant;
+
+    @Before
+    public void setUp() throws Exception {
+
+        store = new XMemoryStore();
+        participant = new DXParticipant();
+        participant.setStoreProvider(store);
+        participant.start();
+    }
+
+    @After
+    public void tearDown() {
+
+        participant.destroy();
+        if (first != null)
+            first.destroy();
+        if (second != null)
+            second.destroy();
+    }
+
+    private DXCoordinator newCoordinator(String id) throws Exception {
+
+        DXCoordinator coordinator = new DXCoordinator();
+        coordinator.setStoreProvider(store);
+        coordinator.setMetrics(new XMetrics());
+        if (id != null)
+            coordinator.setCoordinatorId(id);
+        coordinator.start();
+        awaitRecovery(coordinator);
+        return coordinator;
+    }
+
+    private static void awaitRecovery(DXCoordinator coordinator) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (coordinator.getLastRecoveryReport() == null) {
+            assertTrue("recovery did not finish", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void defaultIdsAreUnique() {
+
+        assertFalse(new DXCoordinator().getCoordinatorId().equals(
+            new DXCoordinator().getCoordinatorId()));
+    }
+
+    @Test
+    public void startingCoordinatorLeavesLiveTransactionsOfOthersAlone() throws Exception {
+
+        first = newCoordinator(null);
+        long xid = first.begin().get(5, TimeUnit.SECONDS);
+        participant.register(xid).get(5, TimeUnit.SECONDS);
+        CompletableFuture<XOutcome> outcome = participant.outcome(xid);
+
+        second = newCoordinator(null);
+        assertEquals(0, second.getLastRecoveryReport().getAborted());
+
+        assertTrue(first.commit(xid).get(5, TimeUnit.SECONDS).isCommitted());
+        assertTrue(outcome.get(5, TimeUnit.SECONDS).isCommitted());
+    }
+
+    @Test
+    public void restartedCoordinatorAbortsItsUndecidedTransactions() throws Exception {
+
+        first = newCoordinator("owner");
+        long xid = first.begin().get(5, TimeUnit.SECONDS);
+        participant.register(xid).get(5, TimeUnit.SECONDS);
+        CompletableFuture<XOutcome> outcome = participant.outcome(xid);
+        first.destroy();
+        first = null;
+
+        second = newCoordinator("owner");
+        assertFalse(outcome.get(5, TimeUnit.SECONDS).isCommitted());
+        assertEquals(1, second.getLastRecoveryReport().getAborted());
+    }
+
+    /**
+     * the abort is reported to the caller, then the session expires before 'ABORT' is written:
+     * recovery finds every participant prepared and no decision, which must not be committed
+     */
+    @Test
+    public void abortLostWithExpiredSessionIsNotCommitted() throws Exception {
+
+        final CountDownLatch preparing = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final AtomicInteger commits = new AtomicInteger();
+        final AtomicInteger rollbacks = new AtomicInteger();
+        List<DXParticipant> members = new ArrayList<DXParticipant>();
+        for (int i = 0; i < 2; i++) {
+            final boolean slow = i == 1;
+            DXParticipant member = new DXParticipant() {
+
+                @Override
+                protected void doBusinessPrepare() {
+
+                    if (!slow)
+                        return;
+                    preparing.countDown();
+                    try {
+                        released.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                @Override
+                protected void doBusinessCommit() {
+                    commits.incrementAndGet();
+                }
+
+                @Override
+                protected void doBusinessRollback() {
+                    rollbacks.incrementAndGet();
+                }
+            };
+            member.setStoreProvider(store);
+            member.start();
+            members.add(member);
+        }
+
+        first = new DXCoordinator();
+        first.setCoordinatorId("owner");
+        first.setMetrics(new XMetrics());
+        first.setStoreProvider(new XStore.Provider() {
+
+            @Override
+            public XStore acquire(String address) {
+                return new ExpiringOnAbort(address, released);
+            }
+        });
+        first.start();
+        awaitRecovery(first);
+
+        try {
+
+            long xid = first.begin().get(5, TimeUnit.SECONDS);
+            List<CompletableFuture<XOutcome>> outcomes;
+            outcomes = new ArrayList<CompletableFuture<XOutcome>>();
+            for (DXParticipant member : members) {
+                member.register(xid).get(5, TimeUnit.SECONDS);
+                outcomes.add(member.outcome(xid));
+            }
+
+            first.commit(xid);
+            assertTrue(preparing.await(5, TimeUnit.SECONDS));
+            assertTrue(first.abort(xid).get(5, TimeUnit.SECONDS).isAborted());
+
+            for (CompletableFuture<XOutcome> outcome : outcomes)
+                assertTrue(outcome.get(5, TimeUnit.SECONDS).isAborted());
+            assertEquals(0, commits.get());
+            assertEquals(2, rollbacks.get());
+
+        } finally {
+
+            for (DXParticipant member : members)
+                member.destroy();
+        }
+    }
+
+    /**
+     * a session whose first batch of 'ABORT' is lost: the slow participant is released, and once every node
+     * it was meant for reads 'PREPARED' the session expires instead of writing the batch
+     */
+    private class ExpiringOnAbort implements XStore {
+
+        private final String               address;
+        private final XMemoryStore.Session session;
+        private final CountDownLatch       released;
+        private boolean                    expired;
+
+        ExpiringOnAbort(String address, CountDownLatch released) {
+            this.address = address;
+            this.session = store.acquire(address);
+            this.released = released;
+        }
+
+        @Override
+        public List<OpResult> multi(Iterable<Op> ops) throws KeeperException, InterruptedException {
+
+            Op first = ops.iterator().next();
+            byte[] data = ((SetDataRequest) first.toRequestRecord()).getData();
+            if (expired || CoordinatorOrder.parse(data) != CoordinatorOrder.ABORT)
+                return session.multi(ops);
+
+            expired = true;
+            released.countDown();
+            for (Op op : ops)
+                awaitPrepared(op.getPath());
+            session.expire();
+            throw KeeperException.create(Code.SESSIONEXPIRED);
+        }
+
+        private void awaitPrepared(String path) throws InterruptedException {
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (reportOf(path) != ParticipantReport.PREPAERD) {
+                assertTrue(path + " was not prepared", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+
+        private ParticipantReport reportOf(String path) throws InterruptedException {
+
+            final ParticipantReport[] report = new ParticipantReport[1];
+            final CountDownLatch read = new CountDownLatch(1);
+            XMemoryStore.Session probe = store.acquire(address);
+            probe.getData(path, null, new DataCallback() {
+
+                @Override
+                public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+
+                    if (data != null)
+                        report[0] = ParticipantReport.parse(data);
+                    read.countDown();
+                }
+            }, null);
+            read.await(5, TimeUnit.SECONDS);
+            probe.release();
+            return report[0];
+        }
+
+        @Override
+        public void create(String path, byte[] data, CreateMode mode, StringCallback cb,
+                           Object ctx) {
+            session.create(path, data, mode, cb, ctx);
+        }
+
+        @Override
+        public void setData(String path, byte[] data, int version, StatCallback cb, Object ctx) {
+            session.setData(path, data, version, cb, ctx);
+        }
+
+        @Override
+        public void getData(String path, Watcher watcher, DataCallback cb, Object ctx) {
+            session.getData(path, watcher, cb, ctx);
+        }
+
+        @Override
+        public void exists(String path, Watcher watcher, StatCallback cb, Object ctx) {
+            session.exists(path, watcher, cb, ctx);
+        }
+
+        @Override
+        public void getChildren(String path, Watcher watcher, ChildrenCallback cb, Object ctx) {
+            session.getChildren(path, watcher, cb, ctx);
+        }
+
+        @Override
+        public List<String> getChildren(String path, Watcher watcher) throws KeeperException {
+            return session.getChildren(path, watcher);
+        }
+
+        @Override
+        public void delete(String path, int version) throws KeeperException {
+            session.delete(path, version);
+        }
+
+        @Override
+        public void addWatcher(Watcher watcher) {
+            session.addWatcher(watcher);
+        }
+
+        @Override
+        public void removeWatcher(Watcher watcher) {
+            session.removeWatcher(watcher);
+        }
+
+        @Override
+        public void release() {
+            session.release();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * a stripe of XStripedDispatcher survives failing tasks, keeps the order of its events and never blocks for good
+ */
+public class XStripedDispatcherTest {
+
+    private final List<String>   handled = new CopyOnWriteArrayList<String>();
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private XStripedDispatcher   dispatcher;
+
+    @Before
+    public void setUp() {
+
+        dispatcher = new XStripedDispatcher("test");
+        dispatcher.setStripeCount(1);
+        dispatcher.setQueueCapacity(1);
+        dispatcher.start();
+    }
+
+    @After
+    public void tearDown() {
+
+        release.countDown();
+        dispatcher.stop();
+    }
+
+    @Test
+    public void stripeSurvivesError() throws Exception {
+
+        dispatcher.execute(1, new Runnable() {
+
+            @Override
+            public void run() {
+                throw new AssertionError("callback failed");
+            }
+        });
+        final CountDownLatch next = new CountDownLatch(1);
+        dispatcher.execute(1, new Runnable() {
+
+            @Override
+            public void run() {
+                next.countDown();
+            }
+        });
+        assertTrue(next.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void interruptedDispatchKeepsOrder() throws Exception {
+
+        blockStripe();
+        dispatcher.execute(1, record("queued"));
+
+        final CountDownLatch dispatched = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                //the queue is full, the interrupt must not let this event jump ahead
+                Thread.currentThread().interrupt();
+                dispatcher.execute(1, record("interrupted"));
+                if (Thread.currentThread().isInterrupted())
+                    dispatched.countDown();
+            }
+        });
+        thread.start();
+
+        Thread.sleep(300);
+        assertTrue(handled.isEmpty());
+        release.countDown();
+        assertTrue(dispatched.await(5, TimeUnit.SECONDS));
+        awaitHandled(2);
+        assertEquals(Arrays.asList("queued", "interrupted"), handled);
+    }
+
+    @Test
+    public void dispatchWaitingForStoppedStripeRunsInline() throws Exception {
+
+        blockStripe();
+        dispatcher.execute(1, record("queued"));
+
+        final CountDownLatch dispatched = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                dispatcher.execute(1, record("late"));
+                dispatched.countDown();
+            }
+        });
+        thread.start();
+
+        assertFalse(dispatched.await(300, TimeUnit.MILLISECONDS));
+        dispatcher.stop();
+        assertTrue(dispatched.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("late"), handled);
+    }
+
+    /**
+     * occupy the only stripe until release
+     */
+    private void blockStripe() throws InterruptedException {
+
+        dispatcher.execute(1, new Runnable() {
+
+            @Override
+            public void run() {
+
+                blocked.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+    }
+
+    private Runnable record(final String event) {
+
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                handled.add(event);
+            }
+        };
+    }
+
+    private void awaitHandled(int count) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (handled.size() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+    }
+}
@@ -0,0 +1,111 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * timeouts of XTimeoutWheel fire once their delay elapsed, cancelled ones never do
+ */
+public class XTimeoutWheelTest {
+
+    private static final long TICK_MILLIS = 10;
+
+    private XTimeoutWheel     wheel;
+
+    @Before
+    public void setUp() {
+
+        //small enough for the delays below to need more than one round
+        wheel = new XTimeoutWheel(TICK_MILLIS, 8);
+        wheel.start();
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void expiresNotBeforeDelay() throws Exception {
+
+        final CountDownLatch fired = new CountDownLatch(1);
+        final long[] elapsed = new long[1];
+        final long start = System.nanoTime();
+        XTimeoutWheel.Timeout timeout = wheel.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+
+                elapsed[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                fired.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(timeout.isExpired());
+        assertTrue("fired after " + elapsed[0] + "ms", elapsed[0] >= 50);
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void expiresAfterSeveralRoundsInDeadlineOrder() throws Exception {
+
+        final List<Integer> order = new CopyOnWriteArrayList<Integer>();
+        final CountDownLatch fired = new CountDownLatch(3);
+        //the wheel covers 80ms, 250ms is three rounds ahead
+        for (final int delay : new int[] { 250, 30, 130 })
+            wheel.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    order.add(delay);
+                    fired.countDown();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertEquals(30, (int) order.get(0));
+        assertEquals(130, (int) order.get(1));
+        assertEquals(250, (int) order.get(2));
+    }
+
+    @Test
+    public void cancelledTimeoutNeverFires() throws Exception {
+
+        final CountDownLatch cancelledFired = new CountDownLatch(1);
+        final CountDownLatch laterFired = new CountDownLatch(1);
+        XTimeoutWheel.Timeout timeout = wheel.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                cancelledFired.countDown();
+            }
+        }, 30, TimeUnit.MILLISECONDS);
+        wheel.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                laterFired.countDown();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+        assertFalse(timeout.cancel());
+
+        assertTrue(laterFired.await(5, TimeUnit.SECONDS));
+        assertEquals(1, cancelledFired.getCount());
+        assertFalse(timeout.isExpired());
+    }
+}
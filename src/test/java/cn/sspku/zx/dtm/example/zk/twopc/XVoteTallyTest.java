@@ -0,0 +1,111 @@
+package cn.sspku.zx.dtm.example.zk.twopc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * counting of votes by XVoteTally
+ */
+public class XVoteTallyTest {
+
+    @Test
+    public void countsEveryVoteOnce() {
+
+        XVoteTally tally = new XVoteTally();
+        assertTrue(tally.register(0));
+        assertTrue(tally.register(70));
+        assertFalse(tally.register(0));
+        assertFalse(tally.register(-1));
+
+        assertTrue(tally.prepared(0));
+        assertFalse(tally.prepared(0));
+        assertFalse(tally.isAllPrepared());
+        assertTrue(tally.prepared(70));
+        assertTrue(tally.isAllPrepared());
+        assertEquals(2, tally.getPrepared());
+
+        assertTrue(tally.committed(0));
+        assertFalse(tally.committed(0));
+        assertFalse(tally.isAllCommitted());
+        assertTrue(tally.committed(70));
+        assertTrue(tally.isAllCommitted());
+        assertEquals(2, tally.getCommitted());
+    }
+
+    @Test
+    public void ignoresVotesOfUnregisteredParticipants() {
+
+        XVoteTally tally = new XVoteTally();
+        tally.register(1);
+
+        assertFalse(tally.prepared(2));
+        assertFalse(tally.readOnly(2));
+        assertFalse(tally.aborted(2));
+        assertEquals(0, tally.getPrepared());
+        assertEquals(0, tally.getAborted());
+    }
+
+    @Test
+    public void readOnlyParticipantLeavesPhaseTwo() {
+
+        XVoteTally tally = new XVoteTally();
+        tally.register(0);
+        tally.register(1);
+        tally.register(2);
+
+        assertTrue(tally.readOnly(1));
+        assertFalse(tally.readOnly(1));
+        assertFalse(tally.prepared(1));
+        assertFalse(tally.isLive(1));
+        assertEquals(1, tally.getReadOnly());
+        assertEquals(2, tally.getLive());
+        assertArrayEquals(new int[] { 0, 2 }, tally.liveMembers());
+
+        tally.prepared(0);
+        tally.prepared(2);
+        assertTrue(tally.isAllPrepared());
+
+        tally.committed(0);
+        assertFalse(tally.isAllCommitted());
+        tally.committed(2);
+        assertTrue(tally.isAllCommitted());
+    }
+
+    @Test
+    public void abortedParticipantFailsThePrepare() {
+
+        XVoteTally tally = new XVoteTally();
+        tally.register(0);
+        tally.register(1);
+
+        tally.prepared(0);
+        assertTrue(tally.aborted(1));
+        assertFalse(tally.aborted(1));
+        assertEquals(1, tally.getAborted());
+        assertFalse(tally.isAllPrepared());
+        assertArrayEquals(new int[] { 0 }, tally.liveMembers());
+        assertEquals(0, tally.getReadOnly());
+    }
+
+    @Test
+    public void heuristicParticipantLeavesButNeverCompletes() {
+
+        XVoteTally tally = new XVoteTally();
+        tally.register(0);
+        tally.register(1);
+        tally.prepared(0);
+        tally.prepared(1);
+
+        assertTrue(tally.heuristic(1));
+        assertFalse(tally.heuristic(1));
+        assertTrue(tally.committed(0));
+        assertArrayEquals(new int[] { 0 }, tally.liveMembers());
+        assertEquals(1, tally.getLive());
+        assertEquals(1, tally.getHeuristic());
+        assertFalse(tally.isAllCommitted());
+    }
+}
@@ -0,0 +1,165 @@
+package cn.sspku.zx.dtm.trans;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import cn.sspku.zx.dtm.anno.TwoPhrase;
+
+/**
+ * TwoPhraseDefinition binds well-formed interfaces and rejects wrong ones when compiled
+ */
+public class TwoPhraseDefinitionTest {
+
+    @TwoPhrase(firstAction = "reserve", secondAction = "pay", commit = "confirm",
+               rollback = "cancel")
+    public interface Account {
+
+        void reserve(long amount);
+
+        void pay(String to);
+
+        void confirm();
+
+        void cancel();
+
+        long balance();
+    }
+
+    public interface NotAnnotated {
+
+        void confirm();
+    }
+
+    @TwoPhrase(firstAction = "reserve", secondAction = "pay", commit = "confirm",
+               rollback = "cancel")
+    public interface MissingRollback {
+
+        void reserve(long amount);
+
+        void pay(String to);
+
+        void confirm();
+    }
+
+    @TwoPhrase(firstAction = "reserve", secondAction = "pay", commit = "confirm",
+               rollback = "cancel")
+    public interface OverloadedFirstAction {
+
+        void reserve(long amount);
+
+        void reserve(int amount);
+
+        void pay(String to);
+
+        void confirm();
+
+        void cancel();
+    }
+
+    @TwoPhrase(firstAction = "reserve", secondAction = "pay", commit = "confirm",
+               rollback = "cancel")
+    public interface CommitWithParameters {
+
+        void reserve(long amount);
+
+        void pay(String to);
+
+        void confirm(boolean force);
+
+        void cancel();
+    }
+
+    @TwoPhrase(firstAction = "reserve", secondAction = "reserve", commit = "confirm",
+               rollback = "cancel")
+    public interface NameUsedTwice {
+
+        void reserve(long amount);
+
+        void confirm();
+
+        void cancel();
+    }
+
+    @TwoPhrase(firstAction = "reserve", secondAction = "pay", commit = "confirm",
+               rollback = "cancel")
+    public static class NotAnInterface {
+    }
+
+    @Test
+    public void bindsWellFormedInterface() throws Throwable {
+
+        TwoPhraseDefinition<Account> definition = TwoPhraseDefinition.compile(Account.class);
+        final List<String> calls = new ArrayList<String>();
+        Account account = new Account() {
+
+            @Override
+            public void reserve(long amount) {
+                calls.add("reserve " + amount);
+            }
+
+            @Override
+            public void pay(String to) {
+                calls.add("pay " + to);
+            }
+
+            @Override
+            public void confirm() {
+                calls.add("confirm");
+            }
+
+            @Override
+            public void cancel() {
+                calls.add("cancel");
+            }
+
+            @Override
+            public long balance() {
+                return 42;
+            }
+        };
+
+        TwoPhraseDefinition.Invoker reserve = definition.invokerOf(Account.class.getMethod(
+            "reserve", long.class));
+        assertEquals(TwoPhraseDefinition.Role.FIRST_ACTION, reserve.role);
+        reserve.invoke(account, new Object[] { 10L });
+        TwoPhraseDefinition.Invoker balance = definition.invokerOf(Account.class
+            .getMethod("balance"));
+        assertEquals(TwoPhraseDefinition.Role.OTHER, balance.role);
+        assertEquals(42L, balance.invoke(account, new Object[0]));
+
+        definition.commit(account);
+        definition.rollback(account);
+        assertEquals(Arrays.asList("reserve 10", "confirm", "cancel"), calls);
+    }
+
+    @Test
+    public void rejectsBadDefinitions() {
+
+        assertRejected(NotAnInterface.class, "is not an interface");
+        assertRejected(NotAnnotated.class, "is not annotated");
+        assertRejected(MissingRollback.class, "has no method cancel");
+        assertRejected(OverloadedFirstAction.class, "is overloaded");
+        assertRejected(CommitWithParameters.class, "must take no parameters");
+        assertRejected(NameUsedTwice.class, "as both FIRST_ACTION and SECOND_ACTION");
+    }
+
+    private static void assertRejected(Class<?> type, String reason) {
+
+        try {
+
+            TwoPhraseDefinition.compile(type);
+            fail(type.getSimpleName() + " was accepted");
+
+        } catch (IllegalArgumentException e) {
+
+            assertTrue(e.getMessage(), e.getMessage().contains(reason));
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package cn.sspku.zx.dtm.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import cn.sspku.zx.dtm.anno.TwoPhrase;
+
+/**
+ * definitions read back from the descriptor cache match the XML, a stale or broken cache is recompiled
+ */
+public class DXDefinitionsTest {
+
+    @TwoPhrase(firstAction = "reserve", secondAction = "pay", commit = "confirm",
+               rollback = "cancel")
+    public interface Account {
+
+        void reserve();
+
+        void pay();
+
+        void confirm();
+
+        void cancel();
+    }
+
+    public static class AccountImpl implements Account {
+
+        @Override
+        public void reserve() {
+        }
+
+        @Override
+        public void pay() {
+        }
+
+        @Override
+        public void confirm() {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    }
+
+    private static final String SHARDS   = "<shards><shard connectString=\"zk1:2181,zk2:2181\""
+                                           + " chroot=\"/dtm\"/><shard connectString=\"zk3:2181\"/>"
+                                           + "</shards>";
+    private static final String TRANSFER = "<service name=\"transfer\" timeoutMillis=\"1234\""
+                                           + " shard=\"1\"><participant name=\"debit\" interface=\""
+                                           + Account.class.getName() + "\" class=\""
+                                           + AccountImpl.class.getName() + "\"/><participant"
+                                           + " name=\"credit\" interface=\"no.Such\""
+                                           + " class=\"no.SuchImpl\"/></service>";
+    private static final String REFUND   = "<service name=\"refund\"/>";
+
+    @Rule
+    public TemporaryFolder      folder   = new TemporaryFolder();
+
+    private File                xmlFile;
+    private File                cacheFile;
+
+    @Before
+    public void setUp() throws IOException {
+
+        xmlFile = folder.newFile("dtm.xml");
+        cacheFile = new File(folder.getRoot(), "dtm.dxd");
+    }
+
+    @Test
+    public void roundTripsThroughCache() throws Exception {
+
+        write(SHARDS + TRANSFER + REFUND);
+        DXDefinitions loaded = DXDefinitions.load(xmlFile, cacheFile);
+        assertTrue(cacheFile.isFile());
+
+        DXDefinitions opened = DXDefinitions.open(cacheFile);
+        assertEquals(loaded.getFingerprint(), opened.getFingerprint());
+        assertEquals(Arrays.asList("refund", "transfer"), opened.getServiceNames());
+        assertEquals(2, opened.getParticipantCount());
+
+        assertEquals(2, opened.getShards().size());
+        assertEquals("zk1:2181,zk2:2181", opened.getShards().get(0).getConnectString());
+        assertEquals("/dtm", opened.getShards().get(0).getChroot());
+
+        DXServiceDefinition transfer = opened.getService("transfer");
+        assertEquals(1234, transfer.getTimeoutMillis());
+        assertEquals(1, transfer.getShard());
+        assertEquals(Arrays.asList("debit", "credit"), transfer.getParticipantNames());
+        assertSame(transfer, opened.getService("transfer"));
+        assertNull(opened.getService("nope"));
+
+        DXParticipantDefinition debit = opened.getParticipant("debit");
+        assertEquals("transfer", debit.getServiceName());
+        assertEquals(AccountImpl.class.getName(), debit.getClassName());
+        assertTrue(debit.getProxy(Account.class) instanceof Account);
+        //classes are only loaded when the proxy is asked for
+        assertEquals("no.SuchImpl", opened.getParticipant("credit").getClassName());
+    }
+
+    @Test
+    public void freshCacheIsNotRecompiled() throws Exception {
+
+        write(SHARDS + TRANSFER);
+        DXDefinitions.load(xmlFile, cacheFile);
+        long compiled = 1000000000000L;
+        assertTrue(cacheFile.setLastModified(compiled));
+
+        DXDefinitions.load(xmlFile, cacheFile);
+        assertEquals(compiled, cacheFile.lastModified());
+    }
+
+    @Test
+    public void staleCacheIsRecompiled() throws Exception {
+
+        write(SHARDS + TRANSFER);
+        long before = DXDefinitions.load(xmlFile, cacheFile).getFingerprint();
+
+        write(REFUND);
+        DXDefinitions reloaded = DXDefinitions.load(xmlFile, cacheFile);
+        assertNotEquals(before, reloaded.getFingerprint());
+        assertEquals(Arrays.asList("refund"), reloaded.getServiceNames());
+        assertNull(reloaded.getParticipant("debit"));
+    }
+
+    @Test
+    public void brokenCacheIsRecompiled() throws Exception {
+
+        write(SHARDS + TRANSFER);
+        Files.write(cacheFile.toPath(), "not a descriptor cache, not at all".getBytes(
+            StandardCharsets.UTF_8));
+
+        DXDefinitions loaded = DXDefinitions.load(xmlFile, cacheFile);
+        assertEquals(Arrays.asList("transfer"), loaded.getServiceNames());
+    }
+
+    @Test
+    public void duplicateServiceIsRejected() throws Exception {
+
+        write(SHARDS + TRANSFER + "<service name=\"transfer\"/>");
+        try {
+
+            DXDefinitions.load(xmlFile, cacheFile);
+            fail("a service declared twice was accepted");
+
+        } catch (IllegalArgumentException e) {
+
+            assertTrue(e.getMessage(), e.getMessage().contains("[transfer]"));
+        }
+    }
+
+    private void write(String body) throws IOException {
+
+        String xml = "<?xml version=\"1.0\"?>\n<dtm xmlns=\"http://www.sspku.cn/schema/dtm\">"
+                     + body + "</dtm>\n";
+        Files.write(xmlFile.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+    }
+}